@@ -0,0 +1,183 @@
+package cn.codepub.redis.directory.benchmark;
+
+import cn.codepub.redis.directory.RedisFile;
+import cn.codepub.redis.directory.io.RedisInputStream;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/14 09:30.
+ * </p>
+ * <p>
+ * Description: CPU cost of the read path of RedisInputStream over blocks already on the heap, no redis involved, against the
+ * inputs of RAMDirectory and MMapDirectory over the same bytes. Run it by gradle jmh, e.g. -PjmhArgs="IndexInput -p
+ * bufferSize=4096,262144" to compare block sizes
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexInputBenchmark {
+    private static final String FILE_NAME = "benchmark.dat";
+    //the bytes read by one invocation of the sequential benchmarks
+    private static final int READ_BYTES = 64 * 1024;
+    private static final int SEEKS = 1024;
+    @Param({"redis", "ram", "mmap"})
+    private String directory;
+    //the block size of the redis file, the other directories ignore it
+    @Param({"262144"})
+    private int bufferSize;
+    @Param({"4194304"})
+    private int fileLength;
+    //bytes per readBytes call
+    @Param({"1024"})
+    private int chunkSize;
+    private Directory luceneDirectory;
+    private Path tempDir;
+    private IndexInput input;
+    private byte[] chunk;
+    private long[] seekTargets;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        byte[] content = new byte[fileLength];
+        random.nextBytes(content);
+        switch (directory) {
+            case "redis":
+                input = new RedisInputStream(FILE_NAME, newRedisFile(content));
+                break;
+            case "ram":
+                luceneDirectory = new RAMDirectory();
+                input = writeAndOpen(luceneDirectory, content);
+                break;
+            case "mmap":
+                tempDir = Files.createTempDirectory("redis-directory-benchmark");
+                luceneDirectory = new MMapDirectory(tempDir);
+                input = writeAndOpen(luceneDirectory, content);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown directory " + directory);
+        }
+        chunk = new byte[chunkSize];
+        seekTargets = new long[SEEKS];
+        for (int i = 0; i < SEEKS; i++) {
+            seekTargets[i] = (long) (random.nextDouble() * (fileLength - 1));
+        }
+    }
+
+    /**
+     * The blocks as openInput leaves them on the heap, every one bufferSize bytes but the last one
+     */
+    private RedisFile newRedisFile(byte[] content) {
+        RedisFile redisFile = new RedisFile(FILE_NAME, content.length, bufferSize);
+        List<byte[]> buffers = new ArrayList<>();
+        for (int start = 0; start < content.length; start += bufferSize) {
+            byte[] buffer = new byte[Math.min(bufferSize, content.length - start)];
+            System.arraycopy(content, start, buffer, 0, buffer.length);
+            buffers.add(buffer);
+        }
+        redisFile.setBuffers(buffers);
+        return redisFile;
+    }
+
+    private static IndexInput writeAndOpen(Directory directory, byte[] content) throws IOException {
+        try (IndexOutput output = directory.createOutput(FILE_NAME, IOContext.DEFAULT)) {
+            output.writeBytes(content, content.length);
+        }
+        return directory.openInput(FILE_NAME, IOContext.DEFAULT);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        IOUtils.close(input, luceneDirectory);
+        if (tempDir != null) {
+            IOUtils.rm(tempDir);
+        }
+    }
+
+    /**
+     * Start over at the beginning of the file once the next invocation would run past its end
+     */
+    private void rewind(int bytes) throws IOException {
+        if (input.getFilePointer() + bytes > fileLength) {
+            input.seek(0);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(READ_BYTES)
+    public void readByte(Blackhole blackhole) throws IOException {
+        rewind(READ_BYTES);
+        for (int i = 0; i < READ_BYTES; i++) {
+            blackhole.consume(input.readByte());
+        }
+    }
+
+    @Benchmark
+    public void readBytes(Blackhole blackhole) throws IOException {
+        rewind(chunkSize);
+        input.readBytes(chunk, 0, chunkSize);
+        blackhole.consume(chunk);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SEEKS)
+    public void seek(Blackhole blackhole) throws IOException {
+        //the redis input binds the block on the next read, so a seek alone would measure nothing
+        for (long target : seekTargets) {
+            input.seek(target);
+            blackhole.consume(input.readByte());
+        }
+    }
+
+    @Benchmark
+    public void cloneInput(Blackhole blackhole) throws IOException {
+        IndexInput clone = input.clone();
+        clone.seek(seekTargets[0]);
+        blackhole.consume(clone.readByte());
+    }
+
+    @Benchmark
+    public void slice(Blackhole blackhole) throws IOException {
+        IndexInput slice = input.slice("slice", seekTargets[0], fileLength - seekTargets[0]);
+        blackhole.consume(slice.readByte());
+    }
+}
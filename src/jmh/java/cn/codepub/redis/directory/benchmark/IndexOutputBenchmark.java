@@ -0,0 +1,132 @@
+package cn.codepub.redis.directory.benchmark;
+
+import cn.codepub.redis.directory.io.RedisOutputStream;
+import cn.codepub.redis.directory.util.Constants;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/14 10:15.
+ * </p>
+ * <p>
+ * Description: CPU cost of the write path of RedisOutputStream, the blocks filling up on the heap, against the output of
+ * RAMDirectory. The outputs are never closed, so nothing goes to redis; once an output holds MAX_FILE_LENGTH bytes the next
+ * invocation starts a new one. Needs STREAM_OUTPUT=false, a streaming output sends its full blocks at once
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexOutputBenchmark {
+    private static final String FILE_NAME = "benchmark.dat";
+    private static final long MAX_FILE_LENGTH = 16 * 1024 * 1024;
+    //the bytes written by one invocation of writeByte
+    private static final int WRITE_BYTES = 64 * 1024;
+    @Param({"redis", "ram"})
+    private String directory;
+    //bytes per writeBytes call
+    @Param({"1024"})
+    private int chunkSize;
+    private RAMDirectory ramDirectory;
+    private IndexOutput output;
+    private byte[] chunk;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (Constants.STREAM_OUTPUT) {
+            throw new IllegalStateException("Set STREAM_OUTPUT=false in config file, the outputs must not talk to redis");
+        }
+        if ("ram".equals(directory)) {
+            ramDirectory = new RAMDirectory();
+        } else if (!"redis".equals(directory)) {
+            throw new IllegalArgumentException("Unknown directory " + directory);
+        }
+        chunk = new byte[chunkSize];
+        new Random(42).nextBytes(chunk);
+        output = newOutput();
+    }
+
+    private IndexOutput newOutput() throws IOException {
+        if (ramDirectory == null) {
+            //closing it would save the file, it is left to the garbage collector instead
+            return new RedisOutputStream(FILE_NAME, null);
+        }
+        if (output != null) {
+            output.close();
+            ramDirectory.deleteFile(FILE_NAME);
+        }
+        return ramDirectory.createOutput(FILE_NAME, IOContext.DEFAULT);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (ramDirectory != null) {
+            output.close();
+            ramDirectory.close();
+        }
+    }
+
+    /**
+     * Start a new output once the next invocation would grow this one over MAX_FILE_LENGTH
+     */
+    private void rotate(int bytes) throws IOException {
+        if (output.getFilePointer() + bytes > MAX_FILE_LENGTH) {
+            output = newOutput();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WRITE_BYTES)
+    public IndexOutput writeByte() throws IOException {
+        rotate(WRITE_BYTES);
+        for (int i = 0; i < WRITE_BYTES; i++) {
+            output.writeByte((byte) i);
+        }
+        return output;
+    }
+
+    @Benchmark
+    public IndexOutput writeBytes() throws IOException {
+        rotate(chunkSize);
+        output.writeBytes(chunk, 0, chunkSize);
+        return output;
+    }
+
+    /**
+     * A checksum after every long, as often as the footers of many small files ask for it
+     */
+    @Benchmark
+    public long getChecksum() throws IOException {
+        rotate(Long.BYTES);
+        output.writeLong(output.getFilePointer());
+        return output.getChecksum();
+    }
+}
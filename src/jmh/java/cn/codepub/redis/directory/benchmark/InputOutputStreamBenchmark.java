@@ -0,0 +1,243 @@
+package cn.codepub.redis.directory.benchmark;
+
+import cn.codepub.redis.directory.FileMetadata;
+import cn.codepub.redis.directory.codec.BlockCodecs;
+import cn.codepub.redis.directory.io.InputOutputStream;
+import cn.codepub.redis.directory.io.JedisClusterStream;
+import cn.codepub.redis.directory.io.JedisPoolStream;
+import cn.codepub.redis.directory.io.JedisStream;
+import cn.codepub.redis.directory.io.ShardedJedisPoolStream;
+import cn.codepub.redis.directory.server.RespServer;
+import cn.codepub.redis.directory.util.Constants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.ShardedJedisPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/17 14:30.
+ * </p>
+ * <p>
+ * Description: The four backends end to end against {@link RespServer} stand-ins on the loopback interface, a single server
+ * for JedisStream and JedisPoolStream, NODES of them for the shards and the cluster. Reports the throughput and the latency
+ * percentiles of every operation; choose the file size, block size, codec and layout by -p, the number of threads by -t, e.g.
+ * gradle jmh -PjmhArgs="InputOutputStream -t 8 -p backend=pool,cluster -p codec=none,zstd". The stand-in answers at memory
+ * speed, so the numbers show the round trips and the client side cost of every backend, not the cost of a real redis;
+ * -p roundTripMicros and -p bandwidth put a network in between
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(1)
+@Fork(1)
+public class InputOutputStreamBenchmark {
+    private static final String METADATA_KEY = "benchmark:metadata";
+    private static final String DATA_KEY = "benchmark:data";
+
+    @State(Scope.Benchmark)
+    public static class Backend {
+        @Param({"jedis", "pool", "sharded", "cluster"})
+        private String backend;
+        //servers behind the sharded and the cluster backend
+        @Param({"3"})
+        private int nodes;
+        //injected by every server, e.g. 500 for a network of half a millisecond round trip
+        @Param({"0"})
+        private long roundTripMicros;
+        //bytes per second and connection, 0 for no cap
+        @Param({"0"})
+        private long bandwidth;
+        private final List<RespServer> servers = new ArrayList<>();
+        private final AtomicInteger threads = new AtomicInteger();
+        private InputOutputStream inputOutputStream;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            JedisPoolConfig poolConfig = new JedisPoolConfig();
+            //every benchmark thread and the parallel fetches get a connection of their own
+            poolConfig.setMaxTotal(256);
+            poolConfig.setMaxIdle(256);
+            switch (backend) {
+                case "jedis": {
+                    RespServer server = start(new RespServer());
+                    inputOutputStream = new JedisStream(server.getHost(), server.getPort());
+                    break;
+                }
+                case "pool": {
+                    RespServer server = start(new RespServer());
+                    inputOutputStream = new JedisPoolStream(new JedisPool(poolConfig, server.getHost(), server.getPort()));
+                    break;
+                }
+                case "sharded": {
+                    List<JedisShardInfo> shards = new ArrayList<>();
+                    for (int i = 0; i < nodes; i++) {
+                        RespServer server = start(new RespServer());
+                        shards.add(new JedisShardInfo(server.getHost(), server.getPort()));
+                    }
+                    inputOutputStream = new ShardedJedisPoolStream(new ShardedJedisPool(poolConfig, shards));
+                    break;
+                }
+                case "cluster": {
+                    Set<HostAndPort> seeds = new HashSet<>();
+                    for (RespServer server : RespServer.startCluster(nodes)) {
+                        seeds.add(new HostAndPort(start(server).getHost(), server.getPort()));
+                    }
+                    inputOutputStream = new JedisClusterStream(new JedisCluster(seeds, 2000, 5, poolConfig));
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown backend " + backend);
+            }
+        }
+
+        private RespServer start(RespServer server) {
+            server.setRoundTripMicros(roundTripMicros);
+            server.setBandwidth(bandwidth);
+            servers.add(server);
+            return server;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            inputOutputStream.close();
+            for (RespServer server : servers) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * The files of one benchmark thread, their names are unique across the threads
+     */
+    @State(Scope.Thread)
+    public static class Files {
+        @Param({"1048576"})
+        private int fileLength;
+        @Param({"262144"})
+        private int bufferSize;
+        //none, snappy, lz4 or zstd
+        @Param({"none"})
+        private String codec;
+        @Param({"false"})
+        private boolean keyPerFile;
+        private InputOutputStream inputOutputStream;
+        private List<byte[]> blocks;
+        private FileMetadata metadata;
+        private String fileName;
+        private String renamed;
+        private boolean isRenamed;
+
+        @Setup(Level.Trial)
+        public void setUp(Backend backend) {
+            inputOutputStream = backend.inputOutputStream;
+            int thread = backend.threads.getAndIncrement();
+            fileName = "_" + thread + ".dat";
+            renamed = "_" + thread + ".renamed";
+            //index files compress to about half, so do these
+            Random random = new Random(thread);
+            blocks = new ArrayList<>();
+            for (int start = 0; start < fileLength; start += bufferSize) {
+                byte[] block = new byte[Math.min(bufferSize, fileLength - start)];
+                for (int i = 0; i < block.length; i++) {
+                    block[i] = (byte) ('a' + random.nextInt(16));
+                }
+                blocks.add(block);
+            }
+            metadata = new FileMetadata(fileLength, FileMetadata.newContentId(fileName), keyPerFile, Constants.KEY_STRIPES,
+                    BlockCodecs.forName(codec).getId(), bufferSize);
+            save();
+        }
+
+        void save() {
+            //saveFile consumes the list it is given
+            inputOutputStream.saveFile(METADATA_KEY, DATA_KEY, fileName, new ArrayList<>(blocks), metadata, null);
+            isRenamed = false;
+        }
+    }
+
+    @Benchmark
+    public void saveFile(Files files) {
+        files.save();
+    }
+
+    @Benchmark
+    public List<byte[]> loadFileOnce(Files files) {
+        return files.inputOutputStream.loadFileOnce(DATA_KEY, files.metadata);
+    }
+
+    @Benchmark
+    public void rename(Files files) {
+        //back and forth, the metadata moves, the blocks stay
+        if (files.isRenamed) {
+            files.inputOutputStream.rename(METADATA_KEY, files.renamed, files.fileName, files.metadata, null);
+        } else {
+            files.inputOutputStream.rename(METADATA_KEY, files.fileName, files.renamed, files.metadata, null);
+        }
+        files.isRenamed = !files.isRenamed;
+    }
+
+    @State(Scope.Thread)
+    public static class Deletion {
+        /**
+         * Every deletion needs a file, saving it is not measured
+         */
+        @Setup(Level.Invocation)
+        public void setUp(Files files) {
+            files.save();
+        }
+    }
+
+    @Benchmark
+    public void deleteFile(Files files, Deletion deletion) {
+        files.inputOutputStream.deleteFile(METADATA_KEY, DATA_KEY, files.fileName, files.metadata, null);
+    }
+
+    @Benchmark
+    public FileMetadata getFileMetadata(Files files) {
+        return files.inputOutputStream.getFileMetadata(METADATA_KEY, files.isRenamed ? files.renamed : files.fileName);
+    }
+
+    @Benchmark
+    public Boolean hexists(Files files) {
+        return files.inputOutputStream.hexists(METADATA_KEY.getBytes(), files.fileName.getBytes());
+    }
+
+    @Benchmark
+    public String[] getAllFileNames(Files files) {
+        return files.inputOutputStream.getAllFileNames(METADATA_KEY);
+    }
+}
@@ -0,0 +1,143 @@
+package cn.codepub.redis.directory;
+
+import cn.codepub.redis.directory.io.InputOutputStream;
+import cn.codepub.redis.directory.util.Constants;
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.lucene.search.ReferenceManager;
+import redis.clients.jedis.BinaryJedisPubSub;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/13 16:10.
+ * </p>
+ * <p>
+ * Description: Pushes the commits of a directory to the programs reading it. The writer publishes the generation of every
+ * commit point it publishes on {@link #CHANNEL}, see COMMIT_NOTIFICATIONS, and a subscriber hands it to its listener at once,
+ * so readers refresh when there is something new instead of polling listAll. Pub/sub delivers to whoever is connected, so a
+ * subscriber which (re)connects tells its listener {@link #UNKNOWN_GENERATION}, commits may have been missed meanwhile
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@Log4j2
+public class CommitSubscriber implements Closeable {
+    //the channel the generations of the commits of the directory are published on
+    public static final String CHANNEL = Constants.DIRECTORY_METADATA + ":commits";
+    //passed to the listener when commits may have been missed
+    public static final long UNKNOWN_GENERATION = -1;
+    private static final long MAX_BACKOFF_MILLIS = 10000;
+    private final InputOutputStream inputOutputStream;
+    private final CommitListener listener;
+    private final Thread thread;
+    private volatile BinaryJedisPubSub subscription;
+    private volatile boolean closed;
+
+    /**
+     * Subscribe in a daemon thread of its own, the listener is called in that thread
+     *
+     * @param directory the directory to follow
+     * @param listener  gets the generation of every commit
+     */
+    public CommitSubscriber(RedisDirectory directory, CommitListener listener) {
+        this.inputOutputStream = directory.getInputOutputStream();
+        this.listener = listener;
+        this.thread = new Thread(this::run, "redis-commit-subscriber");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @param directory the directory the searchers read
+     * @param manager   e.g. a SearcherManager, refreshed on every commit
+     * @return the subscriber, close it before the manager
+     */
+    public static CommitSubscriber refreshing(RedisDirectory directory, ReferenceManager<?> manager) {
+        return new CommitSubscriber(directory, generation -> {
+            try {
+                //a refresh finds every commit up to now, the notifications which queued up meanwhile refresh cheaply
+                manager.maybeRefreshBlocking();
+            } catch (IOException e) {
+                log.error("Refresh on commit " + generation + " failed!", e);
+            }
+        });
+    }
+
+    private void run() {
+        byte[] channel = CHANNEL.getBytes();
+        long backoff = 100;
+        while (!closed) {
+            BinaryJedisPubSub current = new BinaryJedisPubSub() {
+                @Override
+                public void onSubscribe(byte[] channel, int subscribedChannels) {
+                    if (closed) {
+                        unsubscribe();
+                        return;
+                    }
+                    notifyListener(UNKNOWN_GENERATION);
+                }
+
+                @Override
+                public void onMessage(byte[] channel, byte[] message) {
+                    notifyListener(NumberUtils.toLong(new String(message, StandardCharsets.UTF_8), UNKNOWN_GENERATION));
+                }
+            };
+            subscription = current;
+            try {
+                inputOutputStream.subscribe(channel, current);
+                backoff = 100;
+            } catch (RuntimeException e) {
+                if (closed) {
+                    break;
+                }
+                log.error("Subscription to " + CHANNEL + " failed, retry in " + backoff + "ms", e);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    private void notifyListener(long generation) {
+        try {
+            listener.onCommit(generation);
+        } catch (RuntimeException e) {
+            //the subscription goes on, the next commit tries again
+            log.error("Commit listener failed on generation " + generation, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        BinaryJedisPubSub current = subscription;
+        //not yet subscribed it unsubscribes itself in onSubscribe
+        if (current != null && current.isSubscribed()) {
+            try {
+                current.unsubscribe();
+            } catch (RuntimeException e) {
+                log.debug("Unsubscribe from {} failed", CHANNEL, e);
+            }
+        }
+        thread.interrupt();
+    }
+
+    public interface CommitListener {
+        /**
+         * @param generation the generation of the new commit point, or UNKNOWN_GENERATION if commits may have been missed
+         */
+        void onCommit(long generation);
+    }
+}
@@ -0,0 +1,177 @@
+package cn.codepub.redis.directory;
+
+import cn.codepub.redis.directory.io.InputOutputStream;
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.lang3.ArrayUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/12 10:40.
+ * </p>
+ * <p>
+ * Description: Client side copy of the metadata hash of a directory, every name with its length, block size and codec. The
+ * hash carries a version which every change bumps after it is applied, a refresh sends the cached version and gets back either
+ * the same version or the whole hash, in one round trip. Lookups of known files are answered locally: Lucene never writes a
+ * file name twice, so the metadata of a name never changes while it exists. An unknown name refreshes the copy before it is
+ * reported missing, and listAll always refreshes, so files published by other programs show up at once. A refresh sent before
+ * a publish, delete or rename of this program may come back after it, so the names this program added and removed are kept
+ * aside until a refresh sent after the change is installed
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@Log4j2
+public class DirectoryManifest {
+    //KEYS[1] the metadata hash, ARGV[1] the version field, ARGV[2] the cached version
+    private static final byte[] FETCH_SCRIPT = ("local v = redis.call('HGET', KEYS[1], ARGV[1]) " +
+            "if v and v == ARGV[2] then return v end return redis.call('HGETALL', KEYS[1])").getBytes();
+    private final InputOutputStream inputOutputStream;
+    private final byte[] fileLengthKey;
+    //replaced as a whole by a refresh, the files of a directory touched by this program are updated in place
+    private volatile Snapshot snapshot = new Snapshot(ArrayUtils.EMPTY_BYTE_ARRAY, new ConcurrentHashMap<>(), 0);
+    //counts the names added and removed by this program
+    private final AtomicLong changes = new AtomicLong();
+    //name added by this program -> its metadata and change number, a refresh sent before the change may miss the name
+    private final Map<String, Added> added = new ConcurrentHashMap<>();
+    //name removed by this program -> its change number, a refresh sent before the change may still list the name
+    private final Map<String, Long> removed = new ConcurrentHashMap<>();
+
+    /**
+     * @param inputOutputStream the redis the directory lives in
+     * @param fileLengthKey     the key using for hash file length
+     */
+    public DirectoryManifest(InputOutputStream inputOutputStream, String fileLengthKey) {
+        this.inputOutputStream = inputOutputStream;
+        this.fileLengthKey = fileLengthKey.getBytes();
+    }
+
+    /**
+     * @param fileName the index file name
+     * @return the metadata of the file, null if it does not exist
+     */
+    public FileMetadata get(String fileName) {
+        FileMetadata metadata = snapshot.files.get(fileName);
+        if (metadata == null) {
+            metadata = refresh().files.get(fileName);
+        }
+        return metadata;
+    }
+
+    /**
+     * @return the names of all files, as of now
+     */
+    public String[] listAll() {
+        return refresh().files.keySet().toArray(ArrayUtils.EMPTY_STRING_ARRAY);
+    }
+
+    /**
+     * The file was published by this program, so it is found without a refresh
+     */
+    public synchronized void put(String fileName, FileMetadata metadata) {
+        removed.remove(fileName);
+        added.put(fileName, new Added(metadata, changes.incrementAndGet()));
+        snapshot.files.put(fileName, metadata);
+    }
+
+    /**
+     * The file was deleted by this program, so it is gone from the copy before the next refresh
+     */
+    public synchronized void remove(String fileName) {
+        added.remove(fileName);
+        removed.put(fileName, changes.incrementAndGet());
+        snapshot.files.remove(fileName);
+    }
+
+    /**
+     * The file was renamed by this program, so it is found under the new name without a refresh
+     */
+    public synchronized void rename(String source, String dest, FileMetadata metadata) {
+        put(dest, metadata);
+        remove(source);
+    }
+
+    private Snapshot refresh() {
+        Snapshot current = snapshot;
+        //the changes counted so far were applied in redis before the fetch is sent
+        long sent = changes.get();
+        Object reply = inputOutputStream.eval(FETCH_SCRIPT, Collections.singletonList(fileLengthKey), Arrays.asList
+                (InputOutputStream.MANIFEST_VERSION_BYTES, current.version));
+        if (reply instanceof byte[]) {
+            return current;
+        }
+        //the whole hash as field, value, field, value...
+        List<?> fields = (List<?>) reply;
+        byte[] version = ArrayUtils.EMPTY_BYTE_ARRAY;
+        Map<String, FileMetadata> files = new ConcurrentHashMap<>(fields.size());
+        for (int i = 0; i + 1 < fields.size(); i += 2) {
+            byte[] field = (byte[]) fields.get(i);
+            byte[] value = (byte[]) fields.get(i + 1);
+            if (Arrays.equals(field, InputOutputStream.MANIFEST_VERSION_BYTES)) {
+                version = value;
+            } else {
+                String fileName = new String(field, StandardCharsets.UTF_8);
+                files.put(fileName, FileMetadata.fromBytes(fileName, value));
+            }
+        }
+        log.debug("Refresh manifest of {} files at version {}", files.size(), new String(version, StandardCharsets.UTF_8));
+        return install(new Snapshot(version, files, sent));
+    }
+
+    private synchronized Snapshot install(Snapshot refreshed) {
+        if (refreshed.sent < snapshot.sent) {
+            //a refresh sent later was installed meanwhile
+            return snapshot;
+        }
+        //added or removed after the fetch was sent, redis may have answered before the change
+        added.forEach((fileName, change) -> {
+            if (change.change > refreshed.sent) {
+                refreshed.files.put(fileName, change.metadata);
+            }
+        });
+        removed.forEach((fileName, change) -> {
+            if (change > refreshed.sent) {
+                refreshed.files.remove(fileName);
+            }
+        });
+        added.values().removeIf(change -> change.change <= refreshed.sent);
+        removed.values().removeIf(change -> change <= refreshed.sent);
+        snapshot = refreshed;
+        return refreshed;
+    }
+
+    private static final class Added {
+        private final FileMetadata metadata;
+        private final long change;
+
+        private Added(FileMetadata metadata, long change) {
+            this.metadata = metadata;
+            this.change = change;
+        }
+    }
+
+    private static final class Snapshot {
+        //the version field as stored, empty if the hash has none yet, which never matches
+        private final byte[] version;
+        private final Map<String, FileMetadata> files;
+        //the change number of this program when the fetch was sent
+        private final long sent;
+
+        private Snapshot(byte[] version, Map<String, FileMetadata> files, long sent) {
+            this.version = version;
+            this.files = files;
+            this.sent = sent;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package cn.codepub.redis.directory;
+
+import cn.codepub.redis.directory.codec.BlockCodecs;
+import cn.codepub.redis.directory.util.Constants;
+import cn.codepub.redis.directory.util.FileBlocksUtils;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/20 14:08.
+ * </p>
+ * <p>
+ * Description: The value of an index file name in the directory metadata. The blocks of a file are keyed by an immutable
+ * content id instead of the file name, so renaming a file only rewrites its metadata. Files written before the content id
+ * was introduced store only the 8 bytes of their length, their content id is the file name. The blocks either share one hash
+ * with all other files or live in hashes of their own, which are deleted by UNLINK. A file may spread its blocks over
+ * several hashes of its own, so on a cluster they land on different nodes. The codec picked for the file is recorded, every
+ * block says by itself which codec compressed it. The block size is recorded too, files written before it use DEFAULT_BUFFER_SIZE
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+public class FileMetadata {
+    //the only format besides the 8 bytes of length of legacy files
+    private static final byte VERSION = 1;
+    private final long length;
+    private final String contentId;
+    //the blocks live in a hash of their own instead of the shared file data hash
+    private final boolean ownKey;
+    //the number of hashes of its own the blocks are spread over, block i lives in hash i % stripes
+    private final int stripes;
+    //id of the codec new blocks are compressed with, BlockCodecs.LEGACY for files whose blocks have no codec id
+    private final byte codec;
+    //the size of every block but the last one
+    private final int bufferSize;
+
+    public FileMetadata(long length, String contentId) {
+        this(length, contentId, false, 1, BlockCodecs.LEGACY, Constants.BUFFER_SIZE);
+    }
+
+    public FileMetadata(long length, String contentId, boolean ownKey, int stripes, byte codec, int bufferSize) {
+        this.length = length;
+        this.contentId = contentId;
+        this.ownKey = ownKey;
+        this.stripes = ownKey ? Math.max(1, stripes) : 1;
+        this.codec = codec;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param fileName the index file name
+     * @return a new content id, unique for every file written
+     */
+    public static String newContentId(String fileName) {
+        return fileName + "#" + UUID.randomUUID();
+    }
+
+    /**
+     * @param length the index file length
+     * @return the metadata of the same content with the given length
+     */
+    public FileMetadata withLength(long length) {
+        return new FileMetadata(length, contentId, ownKey, stripes, codec, bufferSize);
+    }
+
+    /**
+     * @param fileDataKey the shared key using for hash file data
+     * @param blockIndex  the block number
+     * @return the key of the hash the block lives in
+     */
+    public String getFileDataKey(String fileDataKey, int blockIndex) {
+        if (!ownKey) {
+            return fileDataKey;
+        }
+        //the hash tag keeps each hash on one cluster slot whatever the prefix is, the stripes of a file land on different slots
+        if (stripes == 1) {
+            return fileDataKey + ":{" + contentId + "}";
+        }
+        return fileDataKey + ":{" + contentId + ":" + blockIndex % stripes + "}";
+    }
+
+    /**
+     * @param fileDataKey the shared key using for hash file data
+     * @return the keys of all hashes the blocks live in
+     */
+    public List<String> getFileDataKeys(String fileDataKey) {
+        int keys = (int) Math.min(stripes, Math.max(1, getBlockSize()));
+        List<String> fileDataKeys = new ArrayList<>(keys);
+        for (int i = 0; i < keys; i++) {
+            fileDataKeys.add(getFileDataKey(fileDataKey, i));
+        }
+        return fileDataKeys;
+    }
+
+    /**
+     * @return the number of blocks of the index file
+     */
+    public long getBlockSize() {
+        return FileBlocksUtils.getBlockSize(length, bufferSize);
+    }
+
+    public byte[] toBytes() {
+        byte[] id = contentId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + Long.BYTES + 1 + Integer.BYTES + 1 + Integer.BYTES + Integer.BYTES +
+                id.length);
+        buffer.put(VERSION).putLong(length).put((byte) (ownKey ? 1 : 0)).putInt(stripes).put(codec).putInt(bufferSize);
+        buffer.putInt(id.length).put(id);
+        return buffer.array();
+    }
+
+    /**
+     * @param fileName the index file name
+     * @param bytes    the value stored in the directory metadata
+     * @return the metadata, null if bytes is null
+     */
+    public static FileMetadata fromBytes(String fileName, byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length == Long.BYTES) {
+            return new FileMetadata(buffer.getLong(), fileName);
+        }
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalStateException("Unknown metadata version " + version + " of file " + fileName);
+        }
+        long length = buffer.getLong();
+        boolean ownKey = buffer.get() == 1;
+        int stripes = buffer.getInt();
+        byte codec = buffer.get();
+        int bufferSize = buffer.getInt();
+        byte[] id = new byte[buffer.getInt()];
+        buffer.get(id);
+        return new FileMetadata(length, new String(id, StandardCharsets.UTF_8), ownKey, stripes, codec, bufferSize);
+    }
+}
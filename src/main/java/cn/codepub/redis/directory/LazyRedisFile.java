@@ -0,0 +1,115 @@
+package cn.codepub.redis.directory;
+
+import cn.codepub.redis.directory.cache.BlockCache;
+import cn.codepub.redis.directory.codec.BlockCodecs;
+import cn.codepub.redis.directory.io.InputOutputStream;
+import cn.codepub.redis.directory.jfr.IoEventKind;
+import cn.codepub.redis.directory.jfr.IoEvents;
+import cn.codepub.redis.directory.jfr.IoTrace;
+import cn.codepub.redis.directory.util.Constants;
+import org.apache.lucene.store.IOContext;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/02 14:21.
+ * </p>
+ * <p>
+ * Description: A redis file whose blocks are not held in memory, every block is read through the block cache of the
+ * directory and fetched from redis when it is not cached
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class LazyRedisFile extends RedisFile {
+    private final InputOutputStream inputOutputStream;
+    private final BlockCache blockCache;
+    //the blocks are loaded and cached by content id, a renamed file keeps its cached blocks
+    private final FileMetadata metadata;
+    private final int numBuffers;
+    //the context the file was opened with, recorded with every block fetch
+    private final IOContext context;
+    //the blocks of a file loaded whole on open, held until the input is dropped, so it reads on once they are evicted from the
+    //cache or deleted from redis. Null if the blocks are fetched on demand, a delete through the directory then leaves the
+    //blocks to the input until it is closed, a delete by another process fails the read
+    private final ByteBuffer[] pinned;
+
+    public LazyRedisFile(String fileName, FileMetadata metadata, InputOutputStream inputOutputStream, BlockCache blockCache) {
+        this(fileName, metadata, inputOutputStream, blockCache, IOContext.DEFAULT);
+    }
+
+    public LazyRedisFile(String fileName, FileMetadata metadata, InputOutputStream inputOutputStream, BlockCache blockCache,
+                         IOContext context) {
+        this(fileName, metadata, inputOutputStream, blockCache, context, null);
+    }
+
+    /**
+     * @param pinned the cached blocks of the file, see {@link BlockCache#getAll} and {@link BlockCache#putAll}
+     */
+    public LazyRedisFile(String fileName, FileMetadata metadata, InputOutputStream inputOutputStream, BlockCache blockCache,
+                         IOContext context, ByteBuffer[] pinned) {
+        super(fileName, metadata.getLength(), metadata.getBufferSize());
+        this.inputOutputStream = inputOutputStream;
+        this.blockCache = blockCache;
+        this.metadata = metadata;
+        this.numBuffers = (int) metadata.getBlockSize();
+        this.context = context;
+        this.pinned = pinned;
+    }
+
+    /**
+     * @return a copy of the block, the cached block is shared by all inputs
+     */
+    @Override
+    public byte[] getBuffer(int index) {
+        try {
+            ByteBuffer block = getBlock(index, needsWorkingBuffer() ? BlockCodecs.newWorkingBuffer(getBufferSize()) : null);
+            byte[] buffer = new byte[block.remaining()];
+            block.get(buffer);
+            return buffer;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public ByteBuffer getBlock(int index, byte[] workingBuffer) throws IOException {
+        ByteBuffer block;
+        if (pinned != null && index < pinned.length && pinned[index] != null) {
+            block = blockCache.get(metadata, index, pinned[index], workingBuffer);
+        } else {
+            block = blockCache.get(metadata, index, () -> fetch(index), workingBuffer);
+        }
+        if (block == null) {
+            throw new FileNotFoundException("Block " + index + " of " + getFileName() + " does not exist, the file was deleted");
+        }
+        return block;
+    }
+
+    private byte[] fetch(int index) {
+        try (IoTrace trace = IoEvents.begin(IoEventKind.BLOCK_FETCH, getFileName(), metadata, inputOutputStream, context)) {
+            byte[] block = inputOutputStream.loadBlock(Constants.FILE_METADATA, metadata, index, blockCache.getLoadOperations());
+            trace.setBlocks(index, index + 1);
+            trace.setBytes(block == null ? 0 : block.length);
+            return block;
+        }
+    }
+
+    @Override
+    public boolean needsWorkingBuffer() {
+        return blockCache.needsWorkingBuffer();
+    }
+
+    @Override
+    public int numBuffers() {
+        return numBuffers;
+    }
+}
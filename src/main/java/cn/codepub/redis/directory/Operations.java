@@ -15,6 +15,6 @@ package cn.codepub.redis.directory;
  * Licence: Apache v2 License
  */
 public enum Operations {
-    //FILE_LENGTH=>not compress,FILE_DATA=>compress
-    FILE_LENGTH, FILE_DATA
+    //FILE_LENGTH=>not compress,FILE_DATA=>compress,FILE_RAW_DATA=>file data as stored in redis, not uncompressed when read
+    FILE_LENGTH, FILE_DATA, FILE_RAW_DATA
 }
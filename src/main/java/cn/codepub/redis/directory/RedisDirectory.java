@@ -1,30 +1,40 @@
 package cn.codepub.redis.directory;
 
+import cn.codepub.redis.directory.cache.BlockCache;
+import cn.codepub.redis.directory.io.AsyncBlockWriter;
+import cn.codepub.redis.directory.io.GroupCommit;
+import cn.codepub.redis.directory.io.FencingToken;
 import cn.codepub.redis.directory.io.InputOutputStream;
 import cn.codepub.redis.directory.io.RedisInputStream;
 import cn.codepub.redis.directory.io.RedisOutputStream;
+import cn.codepub.redis.directory.jfr.IoEventKind;
+import cn.codepub.redis.directory.jfr.IoEvents;
+import cn.codepub.redis.directory.jfr.IoTrace;
+import cn.codepub.redis.directory.metrics.DirectoryMetrics;
+import cn.codepub.redis.directory.metrics.MeteredInputOutputStream;
 import cn.codepub.redis.directory.util.Constants;
-import com.google.common.primitives.Longs;
 import lombok.Getter;
 import lombok.extern.log4j.Log4j2;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.store.BaseDirectory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockFactory;
 import org.apache.lucene.util.Accountable;
 import org.apache.lucene.util.Accountables;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
-import static cn.codepub.redis.directory.Operations.FILE_DATA;
-import static cn.codepub.redis.directory.Operations.FILE_LENGTH;
-import static cn.codepub.redis.directory.util.FileBlocksUtils.getBlockName;
-import static cn.codepub.redis.directory.util.FileBlocksUtils.getBlockSize;
-
 
 /**
  * <p>
@@ -44,19 +54,110 @@ import static cn.codepub.redis.directory.util.FileBlocksUtils.getBlockSize;
 public class RedisDirectory extends BaseDirectory implements Accountable {
     @Getter
     private InputOutputStream inputOutputStream;
+    //inputs opened and not yet closed, their clones and slices share the blocks with them
+    private final Set<RedisInputStream> openInputs = ConcurrentHashMap.newKeySet();
+    //content id -> the open inputs fetching its blocks from redis as they read. The blocks of a file deleted meanwhile are
+    //deleted once the last of them is closed, like a deleted file kept open on a posix file system
+    private final Map<String, Integer> readersOnDemand = new HashMap<>();
+    //content id -> the metadata of a deleted file whose blocks wait for the inputs above, guarded by readersOnDemand
+    private final Map<String, FileMetadata> deferredDeletes = new HashMap<>();
+    //outputs created and not yet closed
+    private final Set<RedisOutputStream> openOutputs = ConcurrentHashMap.newKeySet();
+    //bytes of the whole files loaded on the heap by open inputs, bounded by BUFFER_SIZE_IN_MEM
+    @Getter
+    private final AtomicLong loadedBytes = new AtomicLong();
     @Getter
-    //key is index file name
-    private static volatile Map<String, RedisFile> filesMap = new ConcurrentHashMap<>();
+    private final BlockCache blockCache = BlockCache.newBlockCache(Constants.BLOCK_CACHE_TYPE, Constants.BLOCK_CACHE_SIZE);
+    //null unless the streamed blocks are sent by writer threads
     @Getter
-    private static final AtomicLong sizeInBytes = new AtomicLong();
+    private AsyncBlockWriter blockWriter;
+    //folds the durability barriers of concurrent syncs into one, null unless SYNC_DURABILITY asks for a barrier
+    private GroupCommit groupCommit;
+    //local copy of the file metadata, null unless MANIFEST_CACHE is on
+    private DirectoryManifest manifest;
+    //published over JMX, null unless METRICS is on
+    @Getter
+    private DirectoryMetrics metrics;
+    //the token of the write lock held through this directory, null unless a lease lock is held
+    private volatile FencingToken fencingToken;
 
-    private RedisDirectory() throws IOException {
-        super(new RedisLockFactory());
+    public RedisDirectory(InputOutputStream inputOutputStream) throws IOException {
+        this(inputOutputStream, newLockFactory());
     }
 
-    public RedisDirectory(InputOutputStream inputOutputStream) throws IOException {
-        this();
+    public RedisDirectory(InputOutputStream inputOutputStream, LockFactory lockFactory) {
+        super(lockFactory);
         this.inputOutputStream = inputOutputStream;
+        //everything below talks to redis through the timed stream
+        if (Constants.METRICS) {
+            this.metrics = new DirectoryMetrics(Constants.DIRECTORY_METADATA, blockCache, inputOutputStream);
+            this.inputOutputStream = new MeteredInputOutputStream(inputOutputStream, metrics);
+            this.metrics.register();
+        }
+        if (Constants.MANIFEST_CACHE) {
+            cacheManifest();
+        }
+        //large flushes and merges stream their outputs even if STREAM_OUTPUT is off
+        boolean streams = Constants.STREAM_OUTPUT || Constants.STREAM_OUTPUT_MIN_SIZE < Long.MAX_VALUE;
+        if (streams && Constants.WRITE_BEHIND_THREADS > 0) {
+            this.blockWriter = new AsyncBlockWriter(this.inputOutputStream, Constants.WRITE_BEHIND_THREADS, Constants
+                    .WRITE_BEHIND_MAX_BYTES);
+        }
+        if (StringUtils.equalsAnyIgnoreCase(Constants.SYNC_DURABILITY, "replicas", "aof")) {
+            checkSyncTimeout();
+        }
+        if (StringUtils.equalsIgnoreCase(Constants.SYNC_DURABILITY, "replicas")) {
+            this.groupCommit = new GroupCommit(() -> this.inputOutputStream.awaitDurable(Constants.SYNC_REPLICAS, false,
+                    Constants.SYNC_TIMEOUT_MILLIS));
+        } else if (StringUtils.equalsIgnoreCase(Constants.SYNC_DURABILITY, "aof")) {
+            this.groupCommit = new GroupCommit(() -> this.inputOutputStream.awaitDurable(Constants.SYNC_REPLICAS, true,
+                    Constants.SYNC_TIMEOUT_MILLIS));
+        }
+    }
+
+    /**
+     * Answer the metadata lookups from a local copy of the metadata hash, MANIFEST_CACHE
+     */
+    void cacheManifest() {
+        this.manifest = new DirectoryManifest(this.inputOutputStream, Constants.DIRECTORY_METADATA);
+    }
+
+    /**
+     * WAIT and WAITAOF block the connection until they time out, 0 blocks it for good. A connection whose read times out first
+     * would be left with the reply still coming
+     */
+    private static void checkSyncTimeout() {
+        if (Constants.SYNC_TIMEOUT_MILLIS <= 0 || (Constants.TIME_OUT > 0 && Constants.SYNC_TIMEOUT_MILLIS >= Constants
+                .TIME_OUT)) {
+            throw new IllegalArgumentException("SYNC_TIMEOUT_MILLIS must be more than 0 and less than TIME_OUT " + Constants
+                    .TIME_OUT + ", but is " + Constants.SYNC_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Fence the metadata changes of this directory with the token of its write lock, see {@link RedisLeaseLockFactory}
+     */
+    synchronized void setFencingToken(FencingToken fencingToken) {
+        this.fencingToken = fencingToken;
+    }
+
+    /**
+     * Stop fencing once the write lock is released, unless a later lock fences the directory already
+     */
+    synchronized void clearFencingToken(FencingToken fencingToken) {
+        if (this.fencingToken == fencingToken) {
+            this.fencingToken = null;
+        }
+    }
+
+    /**
+     * @return the lease lock in redis if LOCK_TYPE is redis, or else the file lock under LOCK_FILE_PATH
+     */
+    private static LockFactory newLockFactory() throws IOException {
+        if (StringUtils.equalsIgnoreCase(Constants.LOCK_TYPE, "redis")) {
+            return new RedisLeaseLockFactory();
+        }
+        return new RedisLockFactory();
     }
 
     /**
@@ -66,14 +167,20 @@ public class RedisDirectory extends BaseDirectory implements Accountable {
     public final String[] listAll() {
         ensureOpen();
         //directory->fileNames->fileLength，由fileLength%BLOCK_SIZE==0?fileLength/BLOCK_SIZE:fileLength/BLOCK_SIZE+1得到fileBlockSizes
+        if (manifest != null) {
+            return manifest.listAll();
+        }
         return inputOutputStream.getAllFileNames(Constants.DIRECTORY_METADATA);
     }
 
     /**
-     * Returns true iff the named file exists in this directory.
+     * @return the metadata of the named file, null if it does not exist in this directory
      */
-    private boolean fileNameExists(String fileName) {
-        return inputOutputStream.hexists(Constants.DIR_METADATA_BYTES, fileName.getBytes());
+    private FileMetadata getFileMetadata(String fileName) {
+        if (manifest != null) {
+            return manifest.get(fileName);
+        }
+        return inputOutputStream.getFileMetadata(Constants.DIRECTORY_METADATA, fileName);
     }
 
     /**
@@ -85,9 +192,9 @@ public class RedisDirectory extends BaseDirectory implements Accountable {
     public final long fileLength(String name) throws IOException {
         ensureOpen();
         long current = 0;
-        byte[] b = inputOutputStream.hget(Constants.DIR_METADATA_BYTES, name.getBytes(), FILE_LENGTH);
-        if (b != null) {
-            current = Longs.fromByteArray(b);
+        FileMetadata metadata = getFileMetadata(name);
+        if (metadata != null) {
+            current = metadata.getLength();
         }
         return current;
     }
@@ -95,75 +202,326 @@ public class RedisDirectory extends BaseDirectory implements Accountable {
     @Override
     public void deleteFile(String name) throws IOException {
         ensureOpen();
-        boolean b = fileNameExists(name);
-        if (b) {
-            byte[] hget = inputOutputStream.hget(Constants.DIR_METADATA_BYTES, name.getBytes(), FILE_LENGTH);
-            long length = Longs.fromByteArray(hget);
-            long blockSize = getBlockSize(length);
-            inputOutputStream.deleteFile(Constants.DIRECTORY_METADATA, Constants.FILE_METADATA, name, blockSize);
+        FileMetadata metadata = getFileMetadata(name);
+        if (metadata != null) {
+            try (IoTrace trace = IoEvents.begin(IoEventKind.DELETE, name, metadata, inputOutputStream, null)) {
+                inputOutputStream.deleteFileMetadata(Constants.DIRECTORY_METADATA, name, fencingToken);
+                if (!deferDelete(metadata)) {
+                    inputOutputStream.deleteBlocks(Constants.FILE_METADATA, metadata);
+                    trace.setBlocks(0, metadata.getBlockSize());
+                    trace.setBytes(metadata.getLength());
+                }
+            }
+            if (manifest != null) {
+                manifest.remove(name);
+            }
+            blockCache.evict(metadata);
         } else {
             log.error("Delete file {} does not exists!", name);
         }
     }
 
+    /**
+     * @return true if open inputs still fetch the blocks of the deleted file, the last of them to be closed deletes them
+     */
+    private boolean deferDelete(FileMetadata metadata) {
+        synchronized (readersOnDemand) {
+            if (!readersOnDemand.containsKey(metadata.getContentId())) {
+                return false;
+            }
+            deferredDeletes.put(metadata.getContentId(), metadata);
+            return true;
+        }
+    }
+
     /**
      * Creates a new, empty file in the directory with the given name. Returns a stream writing this file.
      */
     @Override
     public IndexOutput createOutput(String name, IOContext context) throws IOException {
         ensureOpen();
-        return new RedisOutputStream(name, getInputOutputStream());
+        RedisOutputStream output = new RedisOutputStream(name, getInputOutputStream(), blockWriter, context, fencingToken,
+                this::outputClosed);
+        openOutputs.add(output);
+        return output;
+    }
+
+    private void outputClosed(RedisOutputStream output) {
+        openOutputs.remove(output);
+        //the first lookup of the new file is answered locally instead of by a refresh of the whole hash
+        if (manifest != null && output.getPublished() != null) {
+            manifest.put(output.getIndexFileName(), output.getPublished());
+        }
     }
 
     @Override
     public void sync(Collection<String> names) throws IOException {
-        //NOOP, no operation
+        //outputs are closed before sync, so only blocks still in flight of the writer threads may be missing in redis
+        if (blockWriter != null) {
+            blockWriter.awaitAll();
+        }
+        //one barrier covers every file written so far, concurrent syncs share it
+        if (groupCommit != null) {
+            groupCommit.await();
+        }
     }
 
     @Override
     public void renameFile(String source, String dest) throws IOException {
-        List<byte[]> values = new ArrayList<>();
         //在get的时候不需要加事务
         //在删除和添加的时候使用事务
-        //Get the file length with old file name
-        byte[] hget = inputOutputStream.hget(Constants.DIR_METADATA_BYTES, source.getBytes(), FILE_LENGTH);
-        long length = Longs.fromByteArray(hget);
-        long blockSize = getBlockSize(length);
-        for (int i = 0; i < blockSize; i++) {
-            //Get the contents with old file name
-            byte[] res = inputOutputStream.hget(Constants.FILE_METADATA_BYTES, getBlockName(source, i), FILE_DATA);
-            values.add(res);
-        }
-        inputOutputStream.rename(Constants.DIRECTORY_METADATA, Constants.FILE_METADATA, source, dest, values, length);
+        //Get the file metadata with old file name, the blocks are keyed by its content id and stay where they are
+        FileMetadata metadata = getFileMetadata(source);
+        if (metadata == null) {
+            throw new FileNotFoundException(source);
+        }
+        try (IoTrace trace = IoEvents.begin(IoEventKind.RENAME, source, metadata, inputOutputStream, null)) {
+            inputOutputStream.rename(Constants.DIRECTORY_METADATA, source, dest, metadata, fencingToken);
+            trace.setTarget(dest);
+        }
+        if (manifest != null) {
+            manifest.rename(source, dest, metadata);
+        }
+        //publishing the commit point is the last step of a commit, it must be as durable as the files synced before
+        if (groupCommit != null && source.startsWith(IndexFileNames.PENDING_SEGMENTS)) {
+            groupCommit.await();
+        }
+        if (publishesCommits() && source.startsWith(IndexFileNames.PENDING_SEGMENTS)) {
+            publishCommit(dest);
+        }
         log.debug("Rename file success from {} to {}", source, dest);
     }
 
+    /**
+     * @return true if the generation of every commit is published to the subscribers, COMMIT_NOTIFICATIONS
+     */
+    boolean publishesCommits() {
+        return Constants.COMMIT_NOTIFICATIONS;
+    }
+
+    /**
+     * Tell the subscribers of the directory about the new commit point, see {@link CommitSubscriber}
+     */
+    private void publishCommit(String segmentsFileName) {
+        long generation = SegmentInfos.generationFromSegmentsFileName(segmentsFileName);
+        try {
+            inputOutputStream.publish(CommitSubscriber.CHANNEL.getBytes(), Long.toString(generation).getBytes());
+        } catch (RuntimeException e) {
+            //the commit stands, readers find it on their next refresh
+            log.error("Publish commit " + generation + " failed!", e);
+        }
+    }
+
     @Override
     public IndexInput openInput(String name, IOContext context) throws IOException {
         ensureOpen();
-        if (!fileNameExists(name)) {
+        //the file metadata doubles as the existence check, so opening an input costs at most one round trip before any data
+        FileMetadata metadata = getFileMetadata(name);
+        if (metadata == null) {
             throw new FileNotFoundException(name);
         }
+        if (readsAhead(context)) {
+            return trackOnDemand(name, new SequentialRedisFile(name, metadata, inputOutputStream, Constants.READ_AHEAD_SIZE,
+                    context), metadata);
+        }
+        if (loadsOnDemand()) {
+            return trackOnDemand(name, new LazyRedisFile(name, metadata, inputOutputStream, blockCache, context), metadata);
+        }
         //从redis中load文件到redis file对象中
         //单例Jedis有一个坑，就是在同一时刻只能被一个线程持有，在openInput方法中，Lucene会有Read操作和Merge操作，而其由不同的线程完成，所以如果在
         //loadRedisToFile中出现不同线程在瞬时同时持有Jedis对象会一直报错Socket Closed
-        return new RedisInputStream(name, loadRedisToFile(name));
+        return loadRedisToFile(name, metadata, context);
+    }
+
+    /**
+     * @return true if the inputs fetch the blocks as they read instead of loading the file on open, LOAD_ON_DEMAND
+     */
+    boolean loadsOnDemand() {
+        return Constants.LOAD_ON_DEMAND;
+    }
+
+    /**
+     * Merges and inputs read once go through the file from start to end, so they stream it with read-ahead and leave the block
+     * cache and the heap budget to the searches
+     */
+    private static boolean readsAhead(IOContext context) {
+        return Constants.READ_AHEAD_SIZE > 0 && context != null && (context.readOnce || context.context == IOContext.Context
+                .MERGE);
+    }
+
+    /**
+     * @param blocksLoaded the blocks loaded from redis to open the input
+     */
+    private RedisInputStream track(RedisInputStream input, long blocksLoaded) {
+        openInputs.add(input);
+        if (metrics != null) {
+            metrics.recordOpenInput(blocksLoaded);
+        }
+        return input;
+    }
+
+    /**
+     * Track an input fetching the blocks of the file from redis as it reads, a delete of the file leaves the blocks to it
+     */
+    private RedisInputStream trackOnDemand(String name, RedisFile redisFile, FileMetadata metadata) throws IOException {
+        String contentId = metadata.getContentId();
+        RedisInputStream input = new RedisInputStream(name, redisFile, closed -> {
+            openInputs.remove(closed);
+            closeOnDemand(contentId);
+        });
+        synchronized (readersOnDemand) {
+            readersOnDemand.merge(contentId, 1, Integer::sum);
+        }
+        return track(input, 0);
+    }
+
+    private void closeOnDemand(String contentId) {
+        FileMetadata deleted;
+        synchronized (readersOnDemand) {
+            int readers = readersOnDemand.get(contentId) - 1;
+            if (readers > 0) {
+                readersOnDemand.put(contentId, readers);
+                return;
+            }
+            readersOnDemand.remove(contentId);
+            deleted = deferredDeletes.remove(contentId);
+        }
+        if (deleted != null) {
+            deleteDeferred(deleted);
+        }
+    }
+
+    private void deleteDeferred(FileMetadata metadata) {
+        try {
+            inputOutputStream.deleteBlocks(Constants.FILE_METADATA, metadata);
+        } catch (RuntimeException e) {
+            //the file is gone already, only its blocks are left in redis
+            log.error("Delete blocks of deleted file " + metadata.getContentId() + " failed!", e);
+        }
+        //an input may have cached blocks after the delete
+        blockCache.evict(metadata);
+    }
+
+    private RedisInputStream loadRedisToFile(String fileName, FileMetadata metadata, IOContext context) throws IOException {
+        long lenght = metadata.getLength();
+        String contentId = metadata.getContentId();
+        int blockSize = (int) metadata.getBlockSize();
+        //a larger file would only flush the other files and its own first blocks out of the cache
+        if (blockCache.isEnabled() && lenght <= blockCache.getMaxFileSize()) {
+            //inputs of the same file share the cached blocks instead of holding a copy each. Every input pins them, so it
+            //reads on once they are evicted or the file is deleted, like an input holding its own copy
+            int blocksLoaded = 0;
+            ByteBuffer[] blocks = blockCache.getAll(contentId, blockSize);
+            if (blocks == null) {
+                try (IoTrace trace = IoEvents.begin(IoEventKind.LOAD_FILE, fileName, metadata, inputOutputStream, context)) {
+                    List<byte[]> loaded = inputOutputStream.loadFileOnce(Constants.FILE_METADATA, metadata,
+                            blockCache.getLoadOperations());
+                    trace.setBlocks(0, blockSize);
+                    trace.setBytes(loaded);
+                    blocks = blockCache.putAll(contentId, loaded);
+                }
+                blocksLoaded = blockSize;
+            }
+            return track(new RedisInputStream(fileName, new LazyRedisFile(fileName, metadata, inputOutputStream, blockCache,
+                    context, blocks), openInputs::remove), blocksLoaded);
+        }
+        //over the heap budget the blocks are read on demand instead, so a load spike slows down rather than runs out of memory
+        if (!reserveHeap(lenght)) {
+            log.debug("Heap budget of {} bytes is used up, read {} on demand", Constants.BUFFER_SIZE_IN_MEM, fileName);
+            return trackOnDemand(fileName, new LazyRedisFile(fileName, metadata, inputOutputStream, blockCache, context),
+                    metadata);
+        }
+        try {
+            RedisFile redisFile = new RedisFile(fileName, lenght, metadata.getBufferSize());
+            List<byte[]> bytes;
+            try (IoTrace trace = IoEvents.begin(IoEventKind.LOAD_FILE, fileName, metadata, inputOutputStream, context)) {
+                bytes = inputOutputStream.loadFileOnce(Constants.FILE_METADATA, metadata);
+                trace.setBlocks(0, bytes.size());
+                trace.setBytes(bytes);
+            }
+            redisFile.setBuffers(bytes);
+            return track(new RedisInputStream(fileName, redisFile, input -> {
+                openInputs.remove(input);
+                loadedBytes.getAndAdd(-lenght);
+            }), bytes.size());
+        } catch (RuntimeException | IOException e) {
+            loadedBytes.getAndAdd(-lenght);
+            throw e;
+        }
+    }
+
+    /**
+     * @param bytes the length of the file to load
+     * @return true if the file fits into the heap budget, its bytes are counted until its input is closed
+     */
+    private boolean reserveHeap(long bytes) {
+        //zero or negative leaves the heap unbounded
+        if (Constants.BUFFER_SIZE_IN_MEM <= 0) {
+            loadedBytes.getAndAdd(bytes);
+            return true;
+        }
+        while (true) {
+            long loaded = loadedBytes.get();
+            if (loaded + bytes > Constants.BUFFER_SIZE_IN_MEM) {
+                return false;
+            }
+            if (loadedBytes.compareAndSet(loaded, loaded + bytes)) {
+                return true;
+            }
+        }
     }
 
-    private RedisFile loadRedisToFile(String fileName) {
-        byte[] hget = inputOutputStream.hget(Constants.DIR_METADATA_BYTES, fileName.getBytes(), FILE_LENGTH);
-        long lenght = Longs.fromByteArray(hget);
-        RedisFile redisFile = new RedisFile(fileName, lenght);
-        long blockSize = getBlockSize(lenght);
-        List<byte[]> bytes = inputOutputStream.loadFileOnce(Constants.FILE_METADATA, fileName, blockSize);
-        redisFile.setBuffers(bytes);
-        return redisFile;
+    /**
+     * Move the blocks of every file still kept in the shared file data hash into a key of its own, so deleting it is a single
+     * UNLINK. The write lock is held meanwhile, no input of the directory may be open since the old blocks are deleted
+     *
+     * @return the number of files migrated
+     * @throws IOException if the write lock is held by somebody else
+     */
+    public int migrateToOwnKeys() throws IOException {
+        ensureOpen();
+        int count = 0;
+        try (Lock lock = obtainLock(IndexWriter.WRITE_LOCK_NAME)) {
+            for (String name : listAll()) {
+                //stop before the next file if the lease of the lock was lost meanwhile
+                lock.ensureValid();
+                FileMetadata metadata = getFileMetadata(name);
+                if (metadata == null || metadata.isOwnKey()) {
+                    continue;
+                }
+                List<byte[]> blocks = inputOutputStream.loadFileOnce(Constants.FILE_METADATA, metadata);
+                //same content id in other keys, the cached blocks stay valid
+                FileMetadata migrated = new FileMetadata(metadata.getLength(), metadata.getContentId(), true, Constants
+                        .KEY_STRIPES, metadata.getCodec(), metadata.getBufferSize());
+                //the metadata points to the new key once all blocks are there, the old blocks are deleted after
+                inputOutputStream.saveFile(Constants.DIRECTORY_METADATA, Constants.FILE_METADATA, name, blocks, migrated,
+                        fencingToken);
+                inputOutputStream.deleteBlocks(Constants.FILE_METADATA, metadata);
+                count++;
+            }
+        }
+        log.info("Migrate {} files to keys of their own", count);
+        return count;
     }
 
     @Override
     public void close() throws IOException {
         isOpen = false;
+        if (blockWriter != null) {
+            blockWriter.close();
+        }
+        //inputs still open cannot read on without the connection
+        List<FileMetadata> deleted;
+        synchronized (readersOnDemand) {
+            deleted = new ArrayList<>(deferredDeletes.values());
+            deferredDeletes.clear();
+        }
+        deleted.forEach(this::deleteDeferred);
+        blockCache.clear();
         inputOutputStream.close();
+        if (metrics != null) {
+            metrics.close();
+        }
     }
 
     /**
@@ -172,7 +530,14 @@ public class RedisDirectory extends BaseDirectory implements Accountable {
     @Override
     public long ramBytesUsed() {
         ensureOpen();
-        return sizeInBytes.get();
+        long bytes = blockCache.ramBytesUsed() + (blockWriter == null ? 0 : blockWriter.getBytesInFlight());
+        for (RedisInputStream input : openInputs) {
+            bytes += input.ramBytesUsed();
+        }
+        for (RedisOutputStream output : openOutputs) {
+            bytes += output.ramBytesUsed();
+        }
+        return bytes;
     }
 
 
@@ -184,6 +549,27 @@ public class RedisDirectory extends BaseDirectory implements Accountable {
      */
     @Override
     public Collection<Accountable> getChildResources() {
-        return Collections.emptyList();
+        List<Accountable> resources = new ArrayList<>();
+        resources.add(namedAccountable("inputs", openInputs));
+        resources.add(namedAccountable("outputs", openOutputs));
+        resources.add(Accountables.namedAccountable("block cache", blockCache));
+        if (blockWriter != null) {
+            resources.add(Accountables.namedAccountable("write behind", blockWriter.getBytesInFlight()));
+        }
+        return Collections.unmodifiableList(resources);
+    }
+
+    /**
+     * @return one resource per input or output named after its file
+     */
+    private static Accountable namedAccountable(String description, Collection<? extends Accountable> streams) {
+        List<Accountable> resources = new ArrayList<>();
+        long bytes = 0;
+        for (Accountable stream : streams) {
+            long used = stream.ramBytesUsed();
+            resources.add(Accountables.namedAccountable(stream.toString(), used));
+            bytes += used;
+        }
+        return Accountables.namedAccountable(description, resources, bytes);
     }
 }
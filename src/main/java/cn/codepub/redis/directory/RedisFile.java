@@ -1,11 +1,15 @@
 package cn.codepub.redis.directory;
 
+import cn.codepub.redis.directory.util.Constants;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.ToString;
 import org.apache.lucene.util.Accountable;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -29,7 +33,6 @@ import java.util.List;
 @ToString
 public class RedisFile implements Accountable {
     @Getter
-    @Setter
     private List<byte[]> buffers = new ArrayList<>();
     @Getter
     @Setter
@@ -39,17 +42,25 @@ public class RedisFile implements Accountable {
     private long fileLength;
     private volatile boolean isDirty;
     protected long sizeInBytes;
+    //the size of every block but the last one
+    @Getter
+    private int bufferSize = Constants.BUFFER_SIZE;
 
     public RedisFile(String fileName, long fileLength) {
+        this(fileName, fileLength, Constants.BUFFER_SIZE);
+    }
+
+    public RedisFile(String fileName, long fileLength, int bufferSize) {
         this.fileName = fileName;
         this.fileLength = fileLength;
+        this.bufferSize = bufferSize;
     }
 
     /**
      * Return the memory usage of this object in bytes. Negative values are illegal.
      */
     @Override
-    public long ramBytesUsed() {
+    public synchronized long ramBytesUsed() {
         return sizeInBytes;
     }
 
@@ -70,19 +81,48 @@ public class RedisFile implements Accountable {
             buffers.add(buffer);
             sizeInBytes += size;
         }
-        RedisDirectory.getSizeInBytes().getAndAdd(size);
         return buffer;
     }
 
+    /**
+     * @param buffers the blocks loaded from redis, they are counted by {@link #ramBytesUsed()}
+     */
+    public synchronized void setBuffers(List<byte[]> buffers) {
+        long size = 0;
+        for (byte[] buffer : buffers) {
+            size += buffer == null ? 0 : buffer.length;
+        }
+        this.buffers = buffers;
+        this.sizeInBytes = size;
+    }
+
     private byte[] newBuffer(int size) {
         return new byte[size];
     }
 
-    public final synchronized byte[] getBuffer(int index) {
+    public synchronized byte[] getBuffer(int index) {
         return buffers.get(index);
     }
 
-    public final synchronized int numBuffers() {
+    /**
+     * @param index         the block number
+     * @param workingBuffer buffer of the caller the block may be decoded into, only needed if {@link #needsWorkingBuffer()}
+     * @return a buffer over the block, its position and limit belong to the caller
+     * @throws FileNotFoundException if the block is gone from redis, the file was deleted
+     */
+    public ByteBuffer getBlock(int index, byte[] workingBuffer) throws IOException {
+        byte[] buffer = getBuffer(index);
+        if (buffer == null) {
+            throw new FileNotFoundException("Block " + index + " of " + fileName + " does not exist");
+        }
+        return ByteBuffer.wrap(buffer);
+    }
+
+    public boolean needsWorkingBuffer() {
+        return false;
+    }
+
+    public synchronized int numBuffers() {
         return buffers.size();
     }
 
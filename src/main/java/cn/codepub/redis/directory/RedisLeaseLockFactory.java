@@ -0,0 +1,179 @@
+package cn.codepub.redis.directory;
+
+import cn.codepub.redis.directory.io.FencingToken;
+import cn.codepub.redis.directory.io.InputOutputStream;
+import cn.codepub.redis.directory.util.Constants;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockFactory;
+import org.apache.lucene.store.LockObtainFailedException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/05 10:30.
+ * </p>
+ * <p>
+ * Description: Lock factory which keeps the locks in redis next to the index, so writers on different hosts exclude each
+ * other. A lock is a key set by SET NX with a time to live, the lease. The holder renews the lease in the background every
+ * third of it; if the holder dies the key expires and another writer can take over. Every obtained lock gets a fencing token
+ * greater than all tokens before it. The write lock fences its directory: the scripts changing the directory metadata refuse
+ * a token below the counter, so a stale holder can not publish, rename or delete files even before it notices.
+ * </p>
+ * <p>
+ * ensureValid is answered from the local lease state without a round trip: the lease counts from the moment its last renewal
+ * was sent, so it ends here before it can end in redis. A renewal which finds the key taken over marks the lock lost at once.
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@Log4j2
+public class RedisLeaseLockFactory extends LockFactory {
+    //KEYS[1] the metadata hash, declared only so the script runs on the shard of the hash, KEYS[2] the lock, KEYS[3] the
+    //fencing counter, ARGV[1] the owner, ARGV[2] the lease in milliseconds
+    private static final byte[] ACQUIRE_SCRIPT = ("if redis.call('SET', KEYS[2], ARGV[1], 'NX', 'PX', ARGV[2]) then " +
+            "return redis.call('INCR', KEYS[3]) end return 0").getBytes();
+    private static final byte[] RENEW_SCRIPT = ("if redis.call('GET', KEYS[2]) == ARGV[1] then " +
+            "return redis.call('PEXPIRE', KEYS[2], ARGV[2]) end return 0").getBytes();
+    private static final byte[] RELEASE_SCRIPT = ("if redis.call('GET', KEYS[2]) == ARGV[1] then " +
+            "return redis.call('DEL', KEYS[2]) end return 0").getBytes();
+    //the renewals of all locks in this virtual machine, they are short and rare
+    private static final ScheduledExecutorService RENEWAL = Executors.newSingleThreadScheduledExecutor(new
+            ThreadFactoryBuilder().setDaemon(true).setNameFormat("redis-lock-renewal-%d").build());
+    private final long leaseMillis;
+
+    public RedisLeaseLockFactory() {
+        this(Constants.LOCK_LEASE_MILLIS);
+    }
+
+    /**
+     * @param leaseMillis the time to live of a lock which is not renewed
+     */
+    public RedisLeaseLockFactory(long leaseMillis) {
+        if (leaseMillis < 3) {
+            throw new IllegalArgumentException("Lease must be at least 3 milliseconds, but is " + leaseMillis);
+        }
+        this.leaseMillis = leaseMillis;
+    }
+
+    @Override
+    public Lock obtainLock(@NonNull Directory dir, String lockName) throws IOException {
+        if (!(dir instanceof RedisDirectory)) {
+            throw new IllegalArgumentException("Expect argument of type [" + RedisDirectory.class.getName() + "]!");
+        }
+        RedisDirectory directory = (RedisDirectory) dir;
+        InputOutputStream inputOutputStream = directory.getInputOutputStream();
+        //the hash tag keeps the lock and its counter on the slot of the metadata hash, the fenced scripts read the counter there
+        String lockKey = "{" + Constants.DIRECTORY_METADATA + "}:" + lockName;
+        List<byte[]> keys = Arrays.asList(Constants.DIR_METADATA_BYTES, lockKey.getBytes(), (lockKey + ":fencing").getBytes());
+        String owner = UUID.randomUUID().toString();
+        long sent = System.nanoTime();
+        Object token = inputOutputStream.eval(ACQUIRE_SCRIPT, keys, Arrays.asList(owner.getBytes(), Long.toString
+                (leaseMillis).getBytes()));
+        if (!(token instanceof Long) || (Long) token == 0) {
+            throw new LockObtainFailedException("Lock held by another program: " + lockKey);
+        }
+        RedisLeaseLock lock = new RedisLeaseLock(directory, keys, owner, (Long) token, sent);
+        long period = leaseMillis / 3;
+        lock.renewal = RENEWAL.scheduleWithFixedDelay(lock::renew, period, period, TimeUnit.MILLISECONDS);
+        if (IndexWriter.WRITE_LOCK_NAME.equals(lockName)) {
+            directory.setFencingToken(lock.fencingToken);
+        }
+        log.debug("Obtain lock {} with fencing token {}", lockKey, token);
+        return lock;
+    }
+
+    public final class RedisLeaseLock extends Lock {
+        private final RedisDirectory directory;
+        private final InputOutputStream inputOutputStream;
+        private final List<byte[]> keys;
+        private final String owner;
+        //greater than the token of every holder before
+        @Getter
+        private final FencingToken fencingToken;
+        //System.nanoTime() the lease ends at here, counted from when its last renewal was sent
+        private volatile long leaseEnd;
+        private volatile boolean lost;
+        private volatile boolean closed;
+        private volatile ScheduledFuture<?> renewal;
+
+        private RedisLeaseLock(RedisDirectory directory, List<byte[]> keys, String owner, long fencingToken, long sent) {
+            this.directory = directory;
+            this.inputOutputStream = directory.getInputOutputStream();
+            this.keys = keys;
+            this.owner = owner;
+            this.fencingToken = new FencingToken(keys.get(2), fencingToken);
+            this.leaseEnd = sent + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        }
+
+        private void renew() {
+            long sent = System.nanoTime();
+            try {
+                Object renewed = inputOutputStream.eval(RENEW_SCRIPT, keys.subList(0, 2), Arrays.asList(owner.getBytes(), Long
+                        .toString(leaseMillis).getBytes()));
+                if (Long.valueOf(1).equals(renewed)) {
+                    leaseEnd = sent + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+                } else {
+                    log.error("Lock {} was taken over, fencing token {} is stale!", new String(keys.get(1)), fencingToken
+                            .getToken());
+                    lost = true;
+                    renewal.cancel(false);
+                }
+            } catch (RuntimeException e) {
+                //the next renewal tries again, the lease runs out here if none gets through
+                log.error("Renew lock " + new String(keys.get(1)) + " failed!", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            renewal.cancel(false);
+            directory.clearFencingToken(fencingToken);
+            if (!lost) {
+                inputOutputStream.eval(RELEASE_SCRIPT, keys.subList(0, 2), Collections.singletonList(owner.getBytes()));
+            }
+        }
+
+        @Override
+        public void ensureValid() throws IOException {
+            if (closed) {
+                throw new AlreadyClosedException("Lock instance already released: " + this);
+            }
+            if (lost) {
+                throw new AlreadyClosedException("Lock taken over by another program: " + this);
+            }
+            if (System.nanoTime() - leaseEnd > 0) {
+                throw new AlreadyClosedException("Lease ran out before it was renewed: " + this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "RedisLeaseLock(key=" + new String(keys.get(1)) + ",owner=" + owner + ",fencingToken=" + fencingToken
+                    .getToken() + ")";
+        }
+    }
+}
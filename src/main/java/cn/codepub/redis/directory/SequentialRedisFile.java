@@ -0,0 +1,125 @@
+package cn.codepub.redis.directory;
+
+import cn.codepub.redis.directory.io.InputOutputStream;
+import cn.codepub.redis.directory.jfr.IoEventKind;
+import cn.codepub.redis.directory.jfr.IoEvents;
+import cn.codepub.redis.directory.jfr.IoTrace;
+import cn.codepub.redis.directory.util.Constants;
+import org.apache.lucene.store.IOContext;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/20 10:15.
+ * </p>
+ * <p>
+ * Description: A redis file read from start to end, by a merge or an input read once. A block missing is fetched together with
+ * the blocks after it, up to the read-ahead size, in one pipelined round trip. The blocks bypass the block cache, so a merge does
+ * not evict the blocks searches keep hot, and they are dropped with the input. A few windows are kept, the slices of a compound
+ * file a merge reads side by side do not drop each other's blocks
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class SequentialRedisFile extends RedisFile {
+    private static final int MAX_WINDOWS = 4;
+    private final InputOutputStream inputOutputStream;
+    private final FileMetadata metadata;
+    private final int numBuffers;
+    //the blocks fetched per round trip
+    private final int readAheadBlocks;
+    private final IOContext context;
+    //most recently used first
+    private final LinkedList<Window> windows = new LinkedList<>();
+
+    /**
+     * @param readAheadSize the bytes fetched per round trip, at least one block
+     */
+    public SequentialRedisFile(String fileName, FileMetadata metadata, InputOutputStream inputOutputStream, long readAheadSize,
+                               IOContext context) {
+        super(fileName, metadata.getLength(), metadata.getBufferSize());
+        this.inputOutputStream = inputOutputStream;
+        this.metadata = metadata;
+        this.numBuffers = (int) metadata.getBlockSize();
+        this.readAheadBlocks = (int) Math.max(1, Math.min(readAheadSize / metadata.getBufferSize(), Integer.MAX_VALUE));
+        this.context = context;
+    }
+
+    @Override
+    public ByteBuffer getBlock(int index, byte[] workingBuffer) throws IOException {
+        byte[] block = getBuffer(index);
+        if (block == null) {
+            throw new FileNotFoundException("Block " + index + " of " + getFileName() + " does not exist, the file was deleted");
+        }
+        return ByteBuffer.wrap(block);
+    }
+
+    @Override
+    public synchronized byte[] getBuffer(int index) {
+        for (Iterator<Window> iterator = windows.iterator(); iterator.hasNext(); ) {
+            Window window = iterator.next();
+            if (window.contains(index)) {
+                if (window != windows.getFirst()) {
+                    iterator.remove();
+                    windows.addFirst(window);
+                }
+                return window.get(index);
+            }
+        }
+        Window window = fetch(index, (int) Math.min((long) index + readAheadBlocks, numBuffers));
+        windows.addFirst(window);
+        sizeInBytes += window.bytes;
+        if (windows.size() > MAX_WINDOWS) {
+            sizeInBytes -= windows.removeLast().bytes;
+        }
+        return window.get(index);
+    }
+
+    private Window fetch(int from, int to) {
+        try (IoTrace trace = IoEvents.begin(IoEventKind.BLOCK_FETCH, getFileName(), metadata, inputOutputStream, context)) {
+            List<byte[]> blocks = inputOutputStream.loadBlocks(Constants.FILE_METADATA, metadata, from, to, Operations.FILE_DATA);
+            trace.setBlocks(from, to);
+            trace.setBytes(blocks);
+            return new Window(from, blocks);
+        }
+    }
+
+    @Override
+    public int numBuffers() {
+        return numBuffers;
+    }
+
+    private static final class Window {
+        private final int from;
+        private final List<byte[]> blocks;
+        private final long bytes;
+
+        private Window(int from, List<byte[]> blocks) {
+            this.from = from;
+            this.blocks = blocks;
+            long size = 0;
+            for (byte[] block : blocks) {
+                size += block == null ? 0 : block.length;
+            }
+            this.bytes = size;
+        }
+
+        private boolean contains(int index) {
+            return index >= from && index < from + blocks.size();
+        }
+
+        private byte[] get(int index) {
+            return blocks.get(index - from);
+        }
+    }
+}
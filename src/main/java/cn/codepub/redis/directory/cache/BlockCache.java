@@ -0,0 +1,286 @@
+package cn.codepub.redis.directory.cache;
+
+import cn.codepub.redis.directory.FileMetadata;
+import cn.codepub.redis.directory.Operations;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Accountables;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/06 10:12.
+ * </p>
+ * <p>
+ * Description: Directory wide LRU cache of index file blocks keyed by (file name, block number) and bounded by bytes. Lucene
+ * never changes a file after it is written, so all the inputs of one file can share the same block instances. This one keeps
+ * the blocks on the java heap, see {@link OffHeapBlockCache} for the direct memory tier and {@link CompressedBlockCache} for the
+ * compressed tier
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@Log4j2
+public class BlockCache implements Accountable {
+    //the segments of the cache, each one evicts on its own on a share of the budget
+    private static final int CONCURRENCY_LEVEL = 4;
+    @Getter
+    private final long maxSizeInBytes;
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    //null when the cache is disabled
+    private final Cache<BlockKey, ByteBuffer> cache;
+
+    /**
+     * @param type           heap, offheap or compressed
+     * @param maxSizeInBytes the byte budget of the cached blocks, zero or negative disables the cache
+     * @return the block cache of the given type
+     */
+    public static BlockCache newBlockCache(String type, long maxSizeInBytes) {
+        if (StringUtils.equalsIgnoreCase(type, "offheap")) {
+            return new OffHeapBlockCache(maxSizeInBytes);
+        }
+        if (StringUtils.equalsIgnoreCase(type, "compressed")) {
+            return new CompressedBlockCache(maxSizeInBytes);
+        }
+        if (StringUtils.isNotBlank(type) && !StringUtils.equalsIgnoreCase(type, "heap")) {
+            log.error("Unknown block cache type {}, use heap instead!", type);
+        }
+        return new BlockCache(maxSizeInBytes);
+    }
+
+    /**
+     * @param maxSizeInBytes the byte budget of the cached blocks, zero or negative disables the cache
+     */
+    public BlockCache(long maxSizeInBytes) {
+        this.maxSizeInBytes = maxSizeInBytes;
+        if (maxSizeInBytes <= 0) {
+            this.cache = null;
+            return;
+        }
+        RemovalListener<BlockKey, ByteBuffer> listener = notification -> sizeInBytes.getAndAdd(-notification.getValue()
+                .capacity());
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeInBytes)
+                .concurrencyLevel(CONCURRENCY_LEVEL)
+                .<BlockKey, ByteBuffer>weigher((key, block) -> block.capacity())
+                .removalListener(listener)
+                .recordStats()
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * @return the largest file worth caching whole. Every segment evicts on a share of the budget, a file larger than a share
+     * would flush its own first blocks out while it is loaded
+     */
+    public long getMaxFileSize() {
+        return cache == null ? 0 : maxSizeInBytes / CONCURRENCY_LEVEL;
+    }
+
+    /**
+     * @return how the blocks must be loaded from redis before they are handed to this cache
+     */
+    public Operations getLoadOperations() {
+        return Operations.FILE_DATA;
+    }
+
+    /**
+     * @return true if readers must pass a working buffer to {@link #get}
+     */
+    public boolean needsWorkingBuffer() {
+        return false;
+    }
+
+    /**
+     * Get the block from cache, or load and cache it if absent
+     *
+     * @param metadata      the metadata of the index file, the blocks are keyed by its content id
+     * @param blockIndex    the block number
+     * @param loader        fetch the block from redis with {@link #getLoadOperations()}
+     * @param workingBuffer buffer of the reader the block may be decoded into, only needed if {@link #needsWorkingBuffer()}
+     * @return a buffer over the block owned by the caller, null if the block does not exist
+     */
+    public ByteBuffer get(FileMetadata metadata, int blockIndex, Supplier<byte[]> loader, byte[] workingBuffer) {
+        if (cache == null) {
+            byte[] block = loader.get();
+            return block == null ? null : decode(metadata, ByteBuffer.wrap(block), workingBuffer);
+        }
+        BlockKey key = new BlockKey(metadata.getContentId(), blockIndex);
+        ByteBuffer block = cache.getIfPresent(key);
+        if (block == null) {
+            byte[] loaded = loader.get();
+            if (loaded == null) {
+                return null;
+            }
+            block = put(key, loaded);
+        }
+        return decode(metadata, block, workingBuffer);
+    }
+
+    /**
+     * Get the block from cache, or the block the caller pinned if it was evicted meanwhile
+     *
+     * @param pinned the block as returned by {@link #getAll} or {@link #putAll}
+     * @return a buffer over the block owned by the caller
+     */
+    public ByteBuffer get(FileMetadata metadata, int blockIndex, ByteBuffer pinned, byte[] workingBuffer) {
+        ByteBuffer block = cache == null ? null : cache.getIfPresent(new BlockKey(metadata.getContentId(), blockIndex));
+        //evicted or deleted, the pinned block is not put back, it would push out blocks other inputs use
+        return decode(metadata, block == null ? pinned : block, workingBuffer);
+    }
+
+    /**
+     * @param metadata      the metadata of the index file, its codec tells how the block was stored
+     * @param cached        the block kept in the cache
+     * @param workingBuffer buffer of the reader
+     * @return the readable block, its position and limit belong to the reader
+     */
+    protected ByteBuffer decode(FileMetadata metadata, ByteBuffer cached, byte[] workingBuffer) {
+        //every reader gets its own position and limit over the shared block
+        return cached.duplicate();
+    }
+
+    /**
+     * @param contentId the content id of the index file
+     * @param blockSize the index file data block size
+     * @return all blocks of the file if they are cached, else null. An input holding them reads on once they are evicted
+     */
+    public ByteBuffer[] getAll(String contentId, int blockSize) {
+        if (cache == null) {
+            return null;
+        }
+        ByteBuffer[] blocks = new ByteBuffer[blockSize];
+        //not a read, the hits and misses of the stats count the blocks the inputs read
+        for (int i = 0; i < blockSize; i++) {
+            blocks[i] = cache.asMap().get(new BlockKey(contentId, i));
+            if (blocks[i] == null) {
+                return null;
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * @param contentId the content id of the index file
+     * @param blocks    all blocks of the file, loaded with {@link #getLoadOperations()}
+     * @return the blocks as cached, null for a block missing in redis, or null if the cache is disabled
+     */
+    public ByteBuffer[] putAll(String contentId, List<byte[]> blocks) {
+        if (cache == null) {
+            return null;
+        }
+        ByteBuffer[] cached = new ByteBuffer[blocks.size()];
+        for (int i = 0; i < blocks.size(); i++) {
+            if (blocks.get(i) != null) {
+                cached[i] = put(new BlockKey(contentId, i), blocks.get(i));
+            }
+        }
+        return cached;
+    }
+
+    private ByteBuffer put(BlockKey key, byte[] block) {
+        ByteBuffer cached = toCachedBlock(block);
+        //count before insert, the removal listener of a replaced or evicted block subtracts it again
+        sizeInBytes.getAndAdd(cached.capacity());
+        cache.put(key, cached);
+        return cached;
+    }
+
+    /**
+     * @param block the block fetched from redis
+     * @return the representation kept in the cache
+     */
+    protected ByteBuffer toCachedBlock(byte[] block) {
+        return ByteBuffer.wrap(block);
+    }
+
+    /**
+     * Drop the cached blocks of a deleted file at once instead of letting them age out. A rename keeps the content id and so the
+     * cached blocks
+     *
+     * @param metadata the metadata of the index file, one lookup per block of it
+     */
+    public void evict(FileMetadata metadata) {
+        if (cache == null) {
+            return;
+        }
+        for (int i = 0; i < metadata.getBlockSize(); i++) {
+            cache.invalidate(new BlockKey(metadata.getContentId(), i));
+        }
+    }
+
+    public void clear() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    public CacheStats stats() {
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+    }
+
+    /**
+     * Return the memory usage of this object in bytes. Negative values are illegal.
+     */
+    @Override
+    public long ramBytesUsed() {
+        return sizeInBytes.get();
+    }
+
+    /**
+     * Returns nested resources of this class.
+     * The result should be a point-in-time snapshot (to avoid race conditions).
+     *
+     * @see org.apache.lucene.util.Accountables
+     */
+    @Override
+    public Collection<Accountable> getChildResources() {
+        if (cache == null) {
+            return Collections.emptyList();
+        }
+        //the cached bytes of every file
+        Map<String, Long> files = new TreeMap<>();
+        cache.asMap().forEach((key, block) -> files.merge(key.contentId, (long) block.capacity(), Long::sum));
+        List<Accountable> resources = new ArrayList<>(files.size());
+        files.forEach((contentId, bytes) -> resources.add(Accountables.namedAccountable(contentId, bytes)));
+        return Collections.unmodifiableList(resources);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(maxSizeInBytes=" + maxSizeInBytes + ")";
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    @ToString
+    private static final class BlockKey {
+        private final String contentId;
+        private final int blockIndex;
+    }
+}
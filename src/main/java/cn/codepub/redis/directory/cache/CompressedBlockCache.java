@@ -0,0 +1,44 @@
+package cn.codepub.redis.directory.cache;
+
+import cn.codepub.redis.directory.FileMetadata;
+import cn.codepub.redis.directory.Operations;
+import cn.codepub.redis.directory.codec.BlockCodecs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/10 11:05.
+ * </p>
+ * <p>
+ * Description: Block cache which keeps the blocks compressed the way they are stored in redis, so the same budget holds
+ * several times more of the index. A block is uncompressed into the working buffer of an input when the input moves onto
+ * it, blocks stored with the none codec are read in place
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class CompressedBlockCache extends BlockCache {
+    public CompressedBlockCache(long maxSizeInBytes) {
+        super(maxSizeInBytes);
+    }
+
+    @Override
+    public Operations getLoadOperations() {
+        return Operations.FILE_RAW_DATA;
+    }
+
+    @Override
+    public boolean needsWorkingBuffer() {
+        return true;
+    }
+
+    @Override
+    protected ByteBuffer decode(FileMetadata metadata, ByteBuffer cached, byte[] workingBuffer) {
+        return BlockCodecs.decode(metadata, cached, workingBuffer);
+    }
+}
@@ -0,0 +1,34 @@
+package cn.codepub.redis.directory.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/08 15:40.
+ * </p>
+ * <p>
+ * Description: Block cache which copies the blocks into direct memory outside the java heap, so a large cache does not add to
+ * the GC work. The inputs read the direct buffers in place. The capacity is the byte budget of the cache, the JVM must be
+ * started with a -XX:MaxDirectMemorySize larger than it; memory of an evicted block is released by its cleaner once no open
+ * input points to it any more
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class OffHeapBlockCache extends BlockCache {
+    public OffHeapBlockCache(long maxSizeInBytes) {
+        super(maxSizeInBytes);
+    }
+
+    @Override
+    protected ByteBuffer toCachedBlock(byte[] block) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(block.length);
+        buffer.put(block);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,56 @@
+package cn.codepub.redis.directory.codec;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/27 10:12.
+ * </p>
+ * <p>
+ * Description: Compresses the blocks of index files. The built in codecs are none, snappy, lz4 and zstd, more codecs are
+ * found by java.util.ServiceLoader in META-INF/services/cn.codepub.redis.directory.codec.BlockCodec. Every stored block starts
+ * with the id of the codec which compressed it
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public interface BlockCodec {
+    /**
+     * @return the id stored before every block compressed by this codec, ids 0 to 15 are kept for the built in codecs,
+     * a codec on the classpath with such an id or a taken id or name is skipped
+     */
+    byte getId();
+
+    /**
+     * @return the name of the codec in config file
+     */
+    String getName();
+
+    /**
+     * @param block the uncompressed block
+     * @return the compressed block
+     */
+    byte[] compress(byte[] block);
+
+    /**
+     * @param src    the compressed data
+     * @param offset start of the compressed data
+     * @param length length of the compressed data
+     * @return the uncompressed block
+     */
+    byte[] decompress(byte[] src, int offset, int length);
+
+    /**
+     * Uncompress into a buffer owned by the caller
+     *
+     * @param src    the compressed data
+     * @param offset start of the compressed data
+     * @param length length of the compressed data
+     * @param output the buffer to fill from 0, must be large enough for the uncompressed block and
+     *               {@link BlockCodecs#OUTPUT_SLACK} bytes, see {@link BlockCodecs#newWorkingBuffer}
+     * @return the uncompressed length
+     */
+    int decompress(byte[] src, int offset, int length, byte[] output);
+}
@@ -0,0 +1,186 @@
+package cn.codepub.redis.directory.codec;
+
+import cn.codepub.redis.directory.FileMetadata;
+import cn.codepub.redis.directory.Operations;
+import cn.codepub.redis.directory.util.CompressUtils;
+import cn.codepub.redis.directory.util.Constants;
+import lombok.extern.log4j.Log4j2;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/27 11:05.
+ * </p>
+ * <p>
+ * Description: The registered codecs, and the encoding of a stored block: one byte of codec id and the data compressed
+ * by it. A block which does not shrink below MIN_COMPRESS_RATIO of its length is stored with the none codec, so reading it
+ * costs no decompression. Blocks of files written before the codecs have no id, they follow COMPRESS_FILE
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@Log4j2
+public class BlockCodecs {
+    //the codec of files written before the codecs, their blocks have no codec id
+    public static final byte LEGACY = -1;
+    //the bytes a codec may write behind the uncompressed block, lz4 of lucene needs 7
+    public static final int OUTPUT_SLACK = 7;
+    //ids below it are kept for the built in codecs, see BlockCodec.getId()
+    private static final int BUILT_IN_IDS = 16;
+    private static final BlockCodec[] BY_ID = new BlockCodec[Byte.MAX_VALUE + 1];
+    private static final Map<String, BlockCodec> BY_NAME = new ConcurrentHashMap<>();
+    private static final BlockCodec NONE = new NoneCodec();
+
+    static {
+        register(NONE, true);
+        register(new SnappyCodec(), true);
+        register(new Lz4Codec(), true);
+        register(new ZstdCodec(), true);
+        for (BlockCodec codec : ServiceLoader.load(BlockCodec.class)) {
+            register(codec, false);
+        }
+    }
+
+    private BlockCodecs() {
+    }
+
+    private static void register(BlockCodec codec, boolean builtIn) {
+        byte id = codec.getId();
+        String name = codec.getName().toLowerCase();
+        if (id < 0 || (!builtIn && id < BUILT_IN_IDS)) {
+            log.error("Codec id {} of {} is kept for the built in codecs, skip it!", id, name);
+            return;
+        }
+        //the blocks stored so far would be read by another codec, or the config would pick another one
+        if (BY_ID[id] != null || BY_NAME.containsKey(name)) {
+            log.error("Codec id {} or name {} is taken, skip it!", id, name);
+            return;
+        }
+        BY_ID[id] = codec;
+        BY_NAME.put(name, codec);
+    }
+
+    /**
+     * @param name the name of the codec in config file
+     * @return the codec
+     * @throws IllegalArgumentException if no codec has the name
+     */
+    public static BlockCodec forName(String name) {
+        BlockCodec codec = BY_NAME.get(name.trim().toLowerCase());
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown codec " + name + ", known codecs are " + BY_NAME.keySet());
+        }
+        return codec;
+    }
+
+    /**
+     * @param id the id stored before a block
+     * @return the codec
+     * @throws IllegalStateException if no codec has the id
+     */
+    public static BlockCodec forId(byte id) {
+        BlockCodec codec = id < 0 ? null : BY_ID[id];
+        if (codec == null) {
+            throw new IllegalStateException("Unknown codec id " + id + ", is the codec on the classpath?");
+        }
+        return codec;
+    }
+
+    /**
+     * @param blockSize the largest uncompressed block the buffer is decoded into
+     * @return a buffer any codec uncompresses a block into in place
+     */
+    public static byte[] newWorkingBuffer(int blockSize) {
+        return new byte[blockSize + OUTPUT_SLACK];
+    }
+
+    /**
+     * @param metadata the metadata of the index file, its codec compresses the block
+     * @param block    the uncompressed block
+     * @return the block as stored in redis, without codec id if the file is not compressed
+     */
+    public static byte[] encode(FileMetadata metadata, byte[] block) {
+        if (metadata.getCodec() == LEGACY) {
+            return CompressUtils.compressFilter(block);
+        }
+        if (metadata.getCodec() == NONE.getId()) {
+            //the codec of the file tells the blocks are stored as they are, no copy for the codec id
+            return block;
+        }
+        BlockCodec codec = forId(metadata.getCodec());
+        byte[] compressed = codec.compress(block);
+        //not worth the decompression when reading
+        if (compressed.length > block.length * Constants.MIN_COMPRESS_RATIO) {
+            codec = NONE;
+            compressed = block;
+        }
+        byte[] stored = new byte[compressed.length + 1];
+        stored[0] = codec.getId();
+        System.arraycopy(compressed, 0, stored, 1, compressed.length);
+        return stored;
+    }
+
+    /**
+     * @param metadata   the metadata of the index file, its codec compresses the block
+     * @param block      the block
+     * @param operations FILE_DATA to compress the block, FILE_RAW_DATA if it is the block as stored already
+     * @return the block as stored in redis
+     */
+    public static byte[] encode(FileMetadata metadata, byte[] block, Operations operations) {
+        return operations == Operations.FILE_DATA ? encode(metadata, block) : block;
+    }
+
+    /**
+     * @param metadata   the metadata of the index file
+     * @param stored     the block as stored in redis, may be null
+     * @param operations FILE_DATA to uncompress the block, FILE_RAW_DATA to return it as stored
+     * @return the block
+     */
+    public static byte[] decode(FileMetadata metadata, byte[] stored, Operations operations) {
+        if (stored == null || operations != Operations.FILE_DATA) {
+            return stored;
+        }
+        if (metadata.getCodec() == LEGACY) {
+            return CompressUtils.uncompressFilter(stored);
+        }
+        if (metadata.getCodec() == NONE.getId()) {
+            return stored;
+        }
+        return forId(stored[0]).decompress(stored, 1, stored.length - 1);
+    }
+
+    /**
+     * @param metadata      the metadata of the index file
+     * @param stored        the block as stored in redis, on the java heap
+     * @param workingBuffer buffer of the reader a compressed block is uncompressed into, see {@link #newWorkingBuffer}
+     * @return the readable block, its position and limit belong to the reader
+     */
+    public static ByteBuffer decode(FileMetadata metadata, ByteBuffer stored, byte[] workingBuffer) {
+        byte[] src = stored.array();
+        int offset = stored.arrayOffset() + stored.position();
+        int length = stored.remaining();
+        if (metadata.getCodec() == LEGACY) {
+            if (!Constants.COMPRESS_FILE) {
+                return stored.duplicate();
+            }
+            return ByteBuffer.wrap(workingBuffer, 0, CompressUtils.uncompress(src, offset, length, workingBuffer));
+        }
+        if (metadata.getCodec() == NONE.getId()) {
+            return stored.duplicate();
+        }
+        BlockCodec codec = forId(src[offset]);
+        if (codec == NONE) {
+            //read the stored block in place
+            return ByteBuffer.wrap(src, offset + 1, length - 1).slice();
+        }
+        return ByteBuffer.wrap(workingBuffer, 0, codec.decompress(src, offset + 1, length - 1, workingBuffer));
+    }
+}
@@ -0,0 +1,65 @@
+package cn.codepub.redis.directory.codec;
+
+import cn.codepub.redis.directory.util.Constants;
+import cn.codepub.redis.directory.util.FileBlocksUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/27 11:30.
+ * </p>
+ * <p>
+ * Description: Picks the codec of a new index file by its extension, CODEC_POLICY in config file lists extension:codec
+ * pairs like fdt:none,dvd:zstd, files of other extensions use CODEC. Without CODEC the codec follows COMPRESS_FILE
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class CodecPolicy {
+    private static volatile CodecPolicy defaultPolicy;
+    private final BlockCodec defaultCodec;
+    //extension without the dot -> codec
+    private final Map<String, BlockCodec> codecs = new HashMap<>();
+
+    /**
+     * @param defaultCodec the codec name for files not in the policy
+     * @param policy       comma separated extension:codec pairs, may be empty
+     */
+    public CodecPolicy(String defaultCodec, String policy) {
+        this.defaultCodec = BlockCodecs.forName(defaultCodec);
+        for (String pair : StringUtils.split(StringUtils.defaultString(policy), ',')) {
+            String[] extensionCodec = StringUtils.split(pair, ':');
+            if (extensionCodec.length != 2) {
+                throw new IllegalArgumentException("Codec policy " + pair + " is not extension:codec");
+            }
+            codecs.put(extensionCodec[0].trim(), BlockCodecs.forName(extensionCodec[1]));
+        }
+    }
+
+    /**
+     * @return the policy of config file
+     */
+    public static CodecPolicy getDefault() {
+        if (defaultPolicy == null) {
+            String codec = StringUtils.defaultIfBlank(Constants.CODEC, Constants.COMPRESS_FILE ? "snappy" : "none");
+            defaultPolicy = new CodecPolicy(codec, Constants.CODEC_POLICY);
+        }
+        return defaultPolicy;
+    }
+
+    /**
+     * @param fileName the index file name
+     * @return the codec of its blocks
+     */
+    public BlockCodec getCodec(String fileName) {
+        String extension = FileBlocksUtils.getExtension(fileName);
+        return extension == null ? defaultCodec : codecs.getOrDefault(extension, defaultCodec);
+    }
+}
@@ -0,0 +1,91 @@
+package cn.codepub.redis.directory.codec;
+
+import lombok.extern.log4j.Log4j2;
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Compressor;
+import org.apache.lucene.codecs.compressing.Decompressor;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/27 10:35.
+ * </p>
+ * <p>
+ * Description: LZ4 of lucene core, the one its stored fields use, so no other library is needed. The block length is
+ * written as a vInt before the compressed data
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@Log4j2
+public class Lz4Codec implements BlockCodec {
+    public static final byte ID = 2;
+    //the compressor keeps a hash table, so every thread gets its own
+    private static final ThreadLocal<Compressor> COMPRESSOR = ThreadLocal.withInitial(() -> CompressionMode.FAST
+            .newCompressor());
+    private static final Decompressor DECOMPRESSOR = CompressionMode.FAST.newDecompressor();
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "lz4";
+    }
+
+    @Override
+    public byte[] compress(byte[] block) {
+        //vInt length, and lz4 grows incompressible data by at most 1 byte every 255
+        byte[] output = new byte[5 + block.length + block.length / 255 + 16];
+        ByteArrayDataOutput out = new ByteArrayDataOutput(output);
+        try {
+            out.writeVInt(block.length);
+            COMPRESSOR.get().compress(block, 0, block.length, out);
+        } catch (IOException e) {
+            log.error("Compress error!", e);
+            throw new UncheckedIOException(e);
+        }
+        return Arrays.copyOf(output, out.getPosition());
+    }
+
+    @Override
+    public byte[] decompress(byte[] src, int offset, int length) {
+        BytesRef bytes = decompress(src, offset, length, new BytesRef());
+        return Arrays.copyOfRange(bytes.bytes, bytes.offset, bytes.offset + bytes.length);
+    }
+
+    @Override
+    public int decompress(byte[] src, int offset, int length, byte[] output) {
+        BytesRef bytes = decompress(src, offset, length, new BytesRef(output));
+        //lucene needs 7 bytes of room behind the block, it decompressed into a larger array if the output was not sized by
+        //BlockCodecs.newWorkingBuffer
+        if (bytes.bytes != output) {
+            System.arraycopy(bytes.bytes, bytes.offset, output, 0, bytes.length);
+        }
+        return bytes.length;
+    }
+
+    private BytesRef decompress(byte[] src, int offset, int length, BytesRef bytes) {
+        ByteArrayDataInput in = new ByteArrayDataInput(src, offset, length);
+        try {
+            int originalLength = in.readVInt();
+            DECOMPRESSOR.clone().decompress(in, originalLength, 0, originalLength, bytes);
+        } catch (IOException e) {
+            log.error("Uncompress error!", e);
+            throw new UncheckedIOException(e);
+        }
+        return bytes;
+    }
+}
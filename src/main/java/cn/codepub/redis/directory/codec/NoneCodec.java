@@ -0,0 +1,47 @@
+package cn.codepub.redis.directory.codec;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/27 10:20.
+ * </p>
+ * <p>
+ * Description: Stores the blocks as they are, for files which are compressed by lucene already
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class NoneCodec implements BlockCodec {
+    public static final byte ID = 0;
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "none";
+    }
+
+    @Override
+    public byte[] compress(byte[] block) {
+        return block;
+    }
+
+    @Override
+    public byte[] decompress(byte[] src, int offset, int length) {
+        return Arrays.copyOfRange(src, offset, offset + length);
+    }
+
+    @Override
+    public int decompress(byte[] src, int offset, int length, byte[] output) {
+        System.arraycopy(src, offset, output, 0, length);
+        return length;
+    }
+}
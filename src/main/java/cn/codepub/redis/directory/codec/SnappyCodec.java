@@ -0,0 +1,68 @@
+package cn.codepub.redis.directory.codec;
+
+import lombok.extern.log4j.Log4j2;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/27 10:26.
+ * </p>
+ * <p>
+ * Description: Snappy, the codec of COMPRESS_FILE
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@Log4j2
+public class SnappyCodec implements BlockCodec {
+    public static final byte ID = 1;
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "snappy";
+    }
+
+    @Override
+    public byte[] compress(byte[] block) {
+        try {
+            return Snappy.compress(block);
+        } catch (IOException e) {
+            log.error("Compress error!", e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public byte[] decompress(byte[] src, int offset, int length) {
+        try {
+            byte[] output = new byte[Snappy.uncompressedLength(src, offset, length)];
+            Snappy.uncompress(src, offset, length, output, 0);
+            return output;
+        } catch (IOException e) {
+            log.error("Uncompress error!", e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public int decompress(byte[] src, int offset, int length, byte[] output) {
+        try {
+            return Snappy.uncompress(src, offset, length, output, 0);
+        } catch (IOException e) {
+            log.error("Uncompress error!", e);
+            throw new UncheckedIOException(e);
+        }
+    }
+}
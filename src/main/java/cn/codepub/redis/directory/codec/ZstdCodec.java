@@ -0,0 +1,67 @@
+package cn.codepub.redis.directory.codec;
+
+import com.github.luben.zstd.Zstd;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/27 10:48.
+ * </p>
+ * <p>
+ * Description: Zstandard, compresses better than snappy and lz4 at a higher cpu cost, for files which are read rarely
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@Log4j2
+public class ZstdCodec implements BlockCodec {
+    public static final byte ID = 3;
+    private static final int LEVEL = 3;
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "zstd";
+    }
+
+    @Override
+    public byte[] compress(byte[] block) {
+        return Zstd.compress(block, LEVEL);
+    }
+
+    @Override
+    public byte[] decompress(byte[] src, int offset, int length) {
+        //negative if the frame does not record its size or is corrupt, the blocks are compressed with the size
+        long size = Zstd.getFrameContentSize(src, offset, length);
+        if (size < 0 || size > Integer.MAX_VALUE || Zstd.isError(size)) {
+            IOException e = new IOException("Unknown uncompressed size of zstd frame, error " + size);
+            log.error("Uncompress error!", e);
+            throw new UncheckedIOException(e);
+        }
+        byte[] output = new byte[(int) size];
+        decompress(src, offset, length, output);
+        return output;
+    }
+
+    @Override
+    public int decompress(byte[] src, int offset, int length, byte[] output) {
+        long size = Zstd.decompressByteArray(output, 0, output.length, src, offset, length);
+        if (Zstd.isError(size)) {
+            IOException e = new IOException(Zstd.getErrorName(size));
+            log.error("Uncompress error!", e);
+            throw new UncheckedIOException(e);
+        }
+        return (int) size;
+    }
+}
@@ -0,0 +1,142 @@
+package cn.codepub.redis.directory.io;
+
+import cn.codepub.redis.directory.FileMetadata;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/15 16:32.
+ * </p>
+ * <p>
+ * Description: Write behind stage between the outputs and redis. Outputs hand over their full blocks and go on encoding,
+ * dedicated writer threads send the blocks to redis. The bytes handed over but not yet saved are bounded, an output blocks
+ * when the bound is reached
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@Log4j2
+public class AsyncBlockWriter implements Closeable {
+    private final InputOutputStream inputOutputStream;
+    private final ExecutorService executor;
+    @Getter
+    private final int maxBytesInFlight;
+    //one permit per byte in flight
+    private final Semaphore bytesInFlight;
+    //blocks handed over and not yet saved, guarded by this
+    private int pending;
+
+    /**
+     * @param inputOutputStream the redis client used by the writer threads
+     * @param threads           the number of writer threads
+     * @param maxBytesInFlight  the bound of bytes handed over but not yet saved
+     */
+    public AsyncBlockWriter(InputOutputStream inputOutputStream, int threads, int maxBytesInFlight) {
+        this.inputOutputStream = inputOutputStream;
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.bytesInFlight = new Semaphore(maxBytesInFlight);
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat
+                ("redis-block-writer-%d").build());
+    }
+
+    /**
+     * Hand a block over to the writer threads, blocks while the bytes in flight are over the bound
+     *
+     * @param fileDataKey the key using for hash file data
+     * @param metadata    the layout of the index file
+     * @param blockIndex  the block number
+     * @param value       the uncompressed block value, the caller must not reuse it
+     * @return completes once the block is saved in redis
+     * @throws InterruptedIOException if interrupted while waiting for room
+     */
+    public Future<?> saveBlock(String fileDataKey, FileMetadata metadata, int blockIndex, byte[] value) throws
+            InterruptedIOException {
+        //a block larger than the bound takes all of it, or else it would never get in
+        int permits = Math.min(value.length, maxBytesInFlight);
+        try {
+            bytesInFlight.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to save block " + blockIndex + " of " + metadata
+                    .getContentId());
+        }
+        synchronized (this) {
+            pending++;
+        }
+        try {
+            return executor.submit(() -> {
+                try {
+                    inputOutputStream.saveBlock(fileDataKey, metadata, blockIndex, value);
+                } finally {
+                    release(permits);
+                }
+            });
+        } catch (RuntimeException e) {
+            release(permits);
+            throw e;
+        }
+    }
+
+    private void release(int permits) {
+        bytesInFlight.release(permits);
+        synchronized (this) {
+            if (--pending == 0) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until every block handed over so far is saved
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public synchronized void awaitAll() throws InterruptedIOException {
+        while (pending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + pending + " blocks to be saved");
+            }
+        }
+    }
+
+    /**
+     * @return the bytes handed over and not yet saved
+     */
+    public long getBytesInFlight() {
+        return maxBytesInFlight - bytesInFlight.availablePermits();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            awaitAll();
+        } finally {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.error("Block writer threads did not terminate!");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package cn.codepub.redis.directory.io;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/06 09:40.
+ * </p>
+ * <p>
+ * Description: The fencing token of a writer and the key of the counter it was drawn from. The scripts changing the directory
+ * metadata get both and refuse a token below the counter, so a writer whose lock was taken over can not publish, rename or
+ * delete files anymore, whatever its own lease says
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@Getter
+@AllArgsConstructor
+public class FencingToken {
+    //the start of the error a script replies with to a stale token
+    public static final String FENCED = "FENCED";
+    //must hash to the slot of the metadata hash, the scripts read it next to the hash
+    private final byte[] counterKey;
+    private final long token;
+
+    @Override
+    public String toString() {
+        return "FencingToken(counterKey=" + new String(counterKey) + ",token=" + token + ")";
+    }
+}
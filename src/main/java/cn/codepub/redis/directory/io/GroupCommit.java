@@ -0,0 +1,82 @@
+package cn.codepub.redis.directory.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/10 15:05.
+ * </p>
+ * <p>
+ * Description: Folds concurrent sync calls into shared barriers. A caller is covered by a barrier which started after it
+ * arrived; while one barrier is running the callers arriving meanwhile queue up, and when it ends one of them runs a single
+ * barrier for all of them. Under load a commit costs about one barrier, however many files and threads sync at once
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class GroupCommit {
+    private final Barrier barrier;
+    //tickets handed out so far, guarded by this
+    private long requested;
+    //every ticket up to it is covered by a completed barrier, guarded by this
+    private long completed;
+    private boolean running;
+
+    public GroupCommit(Barrier barrier) {
+        this.barrier = barrier;
+    }
+
+    /**
+     * Wait until a barrier started after this call completed
+     *
+     * @throws IOException if the barrier run by this caller failed
+     */
+    public void await() throws IOException {
+        long ticket;
+        synchronized (this) {
+            ticket = ++requested;
+        }
+        while (true) {
+            long target;
+            synchronized (this) {
+                while (running && completed < ticket) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for sync");
+                    }
+                }
+                if (completed >= ticket) {
+                    return;
+                }
+                //the barrier covers every caller which arrived before it starts
+                running = true;
+                target = requested;
+            }
+            boolean done = false;
+            try {
+                barrier.await();
+                done = true;
+            } finally {
+                synchronized (this) {
+                    running = false;
+                    if (done) {
+                        completed = Math.max(completed, target);
+                    }
+                    //on failure a waiting caller runs the barrier again for itself
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    public interface Barrier {
+        void await() throws IOException;
+    }
+}
@@ -1,13 +1,22 @@
 package cn.codepub.redis.directory.io;
 
+import cn.codepub.redis.directory.FileMetadata;
 import cn.codepub.redis.directory.Operations;
+import cn.codepub.redis.directory.codec.BlockCodecs;
+import cn.codepub.redis.directory.util.FileBlocksUtils;
 import com.google.common.collect.Lists;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.store.AlreadyClosedException;
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.Pool;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
@@ -27,6 +36,28 @@ import java.util.Set;
  * Licence: Apache v2 License
  */
 public interface InputOutputStream {
+    //UNLINK frees the memory of the key in a background thread, Jedis has no command for it yet
+    byte[] UNLINK_SCRIPT = "return redis.call('UNLINK', KEYS[1])".getBytes();
+    //the field of the metadata hash counting its changes, every change bumps it after it is applied, so a client caching the
+    //hash knows it is current by comparing the version alone
+    String MANIFEST_VERSION_FIELD = "#version";
+    byte[] MANIFEST_VERSION_BYTES = MANIFEST_VERSION_FIELD.getBytes();
+    //prefix of the scripts changing the metadata hash, KEYS[2] the fencing counter and the last ARGV the fencing token are only
+    //passed by a fenced writer, whose token must not be below the counter
+    String FENCE_CHECK = "if #KEYS > 1 and tonumber(redis.call('GET', KEYS[2]) or '0') > tonumber(ARGV[#ARGV]) then " +
+            "return redis.error_reply('" + FencingToken.FENCED + " stale fencing token ' .. ARGV[#ARGV]) end ";
+    //KEYS[1] the metadata hash, ARGV[1] the file name, ARGV[2] the metadata, ARGV[3] the version field
+    byte[] SAVE_METADATA_SCRIPT = (FENCE_CHECK + "redis.call('HSET', KEYS[1], ARGV[1], ARGV[2]) " +
+            "return redis.call('HINCRBY', KEYS[1], ARGV[3], 1)").getBytes();
+    //KEYS[1] the metadata hash, ARGV[1] the old field, ARGV[2] the new field, ARGV[3] the metadata, ARGV[4] the version field
+    byte[] RENAME_SCRIPT = (FENCE_CHECK + "redis.call('HSET', KEYS[1], ARGV[2], ARGV[3]) " +
+            "local n = redis.call('HDEL', KEYS[1], ARGV[1]) redis.call('HINCRBY', KEYS[1], ARGV[4], 1) return n").getBytes();
+    //KEYS[1] the channel, declared only so the script runs where the subscribers of the channel are, ARGV[1] the message
+    byte[] PUBLISH_SCRIPT = "return redis.call('PUBLISH', KEYS[1], ARGV[1])".getBytes();
+    //KEYS[1] the metadata hash, ARGV[1] the file name, ARGV[2] the version field
+    byte[] DELETE_METADATA_SCRIPT = (FENCE_CHECK + "local n = redis.call('HDEL', KEYS[1], ARGV[1]) " +
+            "if n > 0 then redis.call('HINCRBY', KEYS[1], ARGV[2], 1) end return n").getBytes();
+
     /**
      * @param key   first field
      * @param field second field
@@ -38,43 +69,157 @@ public interface InputOutputStream {
 
     void close() throws IOException;
 
+    /**
+     * Wait until the writes every master received so far are acknowledged by replicas, and with aof fsynced to the append only
+     * files too, see {@link SyncBarrier}
+     *
+     * @param replicas      the number of replicas of every master which must acknowledge the writes
+     * @param aof           also wait for the append only files of the masters and the replicas to be fsynced, needs redis 7.2
+     * @param timeoutMillis how long to wait for the acknowledgements
+     * @throws IOException if the writes are not acknowledged in time
+     */
+    void awaitDurable(int replicas, boolean aof, long timeoutMillis) throws IOException;
+
     Long hdel(final byte[] key, final byte[]... fields);
 
     Long hset(final byte[] key, final byte[] field, final byte[] value, Operations operations);
 
     Set<byte[]> hkeys(final byte[] key);
 
+    /**
+     * Run a lua script on the node owning its keys, all keys must hash to the same slot
+     *
+     * @param script the lua script
+     * @param keys   the keys of the script, at least one
+     * @param args   the arguments of the script
+     * @return the reply of the script
+     */
+    Object eval(final byte[] script, final List<byte[]> keys, final List<byte[]> args);
+
+    /**
+     * Subscribe the listener to the channel, blocks until the listener unsubscribes or the connection fails. The subscription
+     * holds a connection of its own the whole time
+     *
+     * @param channel  the channel
+     * @param listener gets the messages, its unsubscribe() ends the subscription
+     */
+    void subscribe(final byte[] channel, final BinaryJedisPubSub listener);
+
+    /**
+     * @return the connection pools of the backend, for their borrow waits in the metrics, empty if it has none
+     */
+    default List<Pool<?>> getPools() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @param channel the channel
+     * @param message the message
+     * @return the number of subscribers which got the message
+     */
+    default Long publish(byte[] channel, byte[] message) {
+        return (Long) eval(PUBLISH_SCRIPT, Collections.singletonList(channel), Collections.singletonList(message));
+    }
+
     default String[] getAllFileNames(String directoryMedata) {
         Objects.requireNonNull(directoryMedata);
         Set<byte[]> hkeys = hkeys(directoryMedata.getBytes());
         Objects.requireNonNull(hkeys);
         ArrayList<String> names = Lists.newArrayList();
-        hkeys.forEach(key -> names.add(new String(key, StandardCharsets.UTF_8)));
+        hkeys.stream().filter(key -> !Arrays.equals(key, MANIFEST_VERSION_BYTES)).forEach(key -> names.add(new String(key,
+                StandardCharsets.UTF_8)));
         return names.toArray(ArrayUtils.EMPTY_STRING_ARRAY);
     }
 
     /**
-     * Use transactions to delete index file
+     * @param fileLengthKey the key using for hash file length
+     * @param fileName      the hash field
+     * @return the metadata of the index file, null if it does not exist
+     */
+    default FileMetadata getFileMetadata(String fileLengthKey, String fileName) {
+        return FileMetadata.fromBytes(fileName, hget(fileLengthKey.getBytes(), fileName.getBytes(), Operations.FILE_LENGTH));
+    }
+
+    /**
+     * Delete index file, the file is invisible once its metadata is deleted and then its blocks are deleted
      *
      * @param fileLengthKey the key using for hash file length
      * @param fileDataKey   the key using for hash file data
      * @param field         the hash field
-     * @param blockSize     the index file data block size
+     * @param metadata      the metadata of the hash field, its blocks are keyed by its content id
+     * @param fencingToken  the token of the writer, null if it is not fenced
      */
-    void deleteFile(String fileLengthKey, String fileDataKey, String field, long blockSize);
+    default void deleteFile(String fileLengthKey, String fileDataKey, String field, FileMetadata metadata, FencingToken
+            fencingToken) {
+        deleteFileMetadata(fileLengthKey, field, fencingToken);
+        deleteBlocks(fileDataKey, metadata);
+    }
 
     /**
-     * Use transactions to add index file and then delete the old one
+     * Delete the metadata of index file and bump the manifest version, the file is invisible from now on but its blocks stay
+     *
+     * @param fileLengthKey the key using for hash file length
+     * @param field         the hash field
+     * @param fencingToken  the token of the writer, null if it is not fenced
+     */
+    default void deleteFileMetadata(String fileLengthKey, String field, FencingToken fencingToken) {
+        evalFenced(DELETE_METADATA_SCRIPT, fileLengthKey, fencingToken, field.getBytes(), MANIFEST_VERSION_BYTES);
+    }
+
+    /**
+     * Delete the blocks of index file, one UNLINK per hash if they live in hashes of their own, else one hdel per block
+     *
+     * @param fileDataKey the shared key using for hash file data
+     * @param metadata    the metadata of the index file
+     */
+    void deleteBlocks(String fileDataKey, FileMetadata metadata);
+
+    /**
+     * Move the metadata to the new hash field and delete the old one and bump the manifest version in one script, the blocks
+     * keyed by the content id are not touched
      *
      * @param fileLengthKey the key using for hash file length
-     * @param fileDataKey   the key using for hash file data
      * @param oldField      the old hash field
      * @param newField      the new hash field
-     * @param values        the data values of the old hash field
-     * @param fileLength    the data length of the old hash field
+     * @param metadata      the metadata of the old hash field
+     * @param fencingToken  the token of the writer, null if it is not fenced
      */
-    void rename(String fileLengthKey, String fileDataKey, String oldField, String newField, List<byte[]> values, long
-            fileLength);
+    default void rename(String fileLengthKey, String oldField, String newField, FileMetadata metadata, FencingToken
+            fencingToken) {
+        Object removed = evalFenced(RENAME_SCRIPT, fileLengthKey, fencingToken, oldField.getBytes(), newField.getBytes(),
+                metadata.toBytes(), MANIFEST_VERSION_BYTES);
+        checkTransactionResult(Collections.singletonList(removed));
+    }
+
+    /**
+     * Run a script changing the metadata hash, with the fencing counter and token appended to its keys and arguments if the
+     * writer is fenced
+     *
+     * @param script        the script, starting with {@link #FENCE_CHECK}
+     * @param fileLengthKey the key using for hash file length
+     * @param fencingToken  the token of the writer, null if it is not fenced
+     * @param args          the arguments of the script before the token
+     * @return the reply of the script
+     * @throws AlreadyClosedException if another writer took the lock over
+     */
+    default Object evalFenced(byte[] script, String fileLengthKey, FencingToken fencingToken, byte[]... args) {
+        List<byte[]> keys = new ArrayList<>(2);
+        keys.add(fileLengthKey.getBytes());
+        List<byte[]> argv = new ArrayList<>(Arrays.asList(args));
+        if (fencingToken != null) {
+            keys.add(fencingToken.getCounterKey());
+            argv.add(Long.toString(fencingToken.getToken()).getBytes());
+        }
+        try {
+            return eval(script, keys, argv);
+        } catch (JedisDataException e) {
+            if (StringUtils.startsWith(e.getMessage(), FencingToken.FENCED)) {
+                //the same as a lock found invalid by ensureValid
+                throw new AlreadyClosedException("Lock taken over by another program: " + fencingToken, e);
+            }
+            throw e;
+        }
+    }
 
     default void checkTransactionResult(List<Object> exec) {
         for (Object o : exec) {
@@ -85,7 +230,111 @@ public interface InputOutputStream {
         }
     }
 
-    void saveFile(String fileLengthKey, String fileDataKey, String fileName, List<byte[]> values, long fileLength);
+    /**
+     * Save all blocks of the index file and then its metadata and bump the manifest version, so the file is not visible before
+     * its blocks
+     *
+     * @param fileLengthKey the key using for hash file length
+     * @param fileDataKey   the shared key using for hash file data
+     * @param fileName      the index file name
+     * @param values        the uncompressed blocks
+     * @param metadata      the metadata of the index file, block i is saved into {@link FileMetadata#getFileDataKey(String,
+     *                      int)} keyed by the content id
+     * @param fencingToken  the token of the writer, null if it is not fenced
+     */
+    default void saveFile(String fileLengthKey, String fileDataKey, String fileName, List<byte[]> values, FileMetadata
+            metadata, FencingToken fencingToken) {
+        saveFile(fileLengthKey, fileDataKey, fileName, values, metadata, fencingToken, Operations.FILE_DATA);
+    }
+
+    /**
+     * @param operations FILE_DATA to compress the blocks, FILE_RAW_DATA if they are the blocks as stored already
+     */
+    void saveFile(String fileLengthKey, String fileDataKey, String fileName, List<byte[]> values, FileMetadata metadata,
+                  FencingToken fencingToken, Operations operations);
 
-    List<byte[]> loadFileOnce(String fileDataKey, String fileName, long blockSize);
+    /**
+     * Save a single block of the index file, used when the file is streamed to redis while it is written
+     *
+     * @param fileDataKey the shared key using for hash file data
+     * @param metadata    the layout and codec of the index file, its length is not known yet
+     * @param blockIndex  the block number
+     * @param value       the uncompressed block value, the caller reuses it once this method returns
+     */
+    default void saveBlock(String fileDataKey, FileMetadata metadata, int blockIndex, byte[] value) {
+        saveBlock(fileDataKey, metadata, blockIndex, value, Operations.FILE_DATA);
+    }
+
+    /**
+     * @param operations FILE_DATA to compress the block, FILE_RAW_DATA if it is the block as stored already
+     */
+    default void saveBlock(String fileDataKey, FileMetadata metadata, int blockIndex, byte[] value, Operations operations) {
+        hset(metadata.getFileDataKey(fileDataKey, blockIndex).getBytes(), FileBlocksUtils.getBlockName(metadata.getContentId
+                (), blockIndex), BlockCodecs.encode(metadata, value, operations), Operations.FILE_RAW_DATA);
+    }
+
+    /**
+     * Publish the index file, it becomes visible to listAll and openInput once its metadata is saved
+     *
+     * @param fileLengthKey the key using for hash file length
+     * @param fileName      the index file name
+     * @param metadata      the metadata of the index file
+     * @param fencingToken  the token of the writer, null if it is not fenced
+     */
+    default void saveFileMetadata(String fileLengthKey, String fileName, FileMetadata metadata, FencingToken fencingToken) {
+        evalFenced(SAVE_METADATA_SCRIPT, fileLengthKey, fencingToken, fileName.getBytes(), metadata.toBytes(),
+                MANIFEST_VERSION_BYTES);
+    }
+
+    default List<byte[]> loadFileOnce(String fileDataKey, FileMetadata metadata) {
+        return loadFileOnce(fileDataKey, metadata, Operations.FILE_DATA);
+    }
+
+    /**
+     * @param fileDataKey the shared key using for hash file data
+     * @param metadata    the metadata of the index file
+     * @param operations  FILE_DATA to uncompress the blocks, FILE_RAW_DATA to return them as stored
+     * @return all blocks of the index file
+     */
+    List<byte[]> loadFileOnce(String fileDataKey, FileMetadata metadata, Operations operations);
+
+    /**
+     * Load a range of blocks of the index file, used to read a file sequentially with read-ahead. The backends pipeline it, the
+     * default sends one command per block
+     *
+     * @param fileDataKey the shared key using for hash file data
+     * @param metadata    the metadata of the index file
+     * @param from        the first block number
+     * @param to          the block number after the last one
+     * @param operations  FILE_DATA to uncompress the blocks, FILE_RAW_DATA to return them as stored
+     * @return the blocks from from to to
+     */
+    default List<byte[]> loadBlocks(String fileDataKey, FileMetadata metadata, int from, int to, Operations operations) {
+        List<byte[]> blocks = new ArrayList<>(Math.max(to - from, 0));
+        for (int i = from; i < to; i++) {
+            blocks.add(loadBlock(fileDataKey, metadata, i, operations));
+        }
+        return blocks;
+    }
+
+    /**
+     * Load a single block of the index file, used when the file is read on demand
+     *
+     * @param fileDataKey the shared key using for hash file data
+     * @param metadata    the metadata of the index file
+     * @param blockIndex  the block number
+     * @return the uncompressed block value
+     */
+    default byte[] loadBlock(String fileDataKey, FileMetadata metadata, int blockIndex) {
+        return loadBlock(fileDataKey, metadata, blockIndex, Operations.FILE_DATA);
+    }
+
+    /**
+     * @param operations FILE_DATA to uncompress the block, FILE_RAW_DATA to return it as stored
+     */
+    default byte[] loadBlock(String fileDataKey, FileMetadata metadata, int blockIndex, Operations operations) {
+        byte[] stored = hget(metadata.getFileDataKey(fileDataKey, blockIndex).getBytes(), FileBlocksUtils.getBlockName(metadata
+                .getContentId(), blockIndex), Operations.FILE_RAW_DATA);
+        return BlockCodecs.decode(metadata, stored, operations);
+    }
 }
@@ -1,25 +1,59 @@
 package cn.codepub.redis.directory.io;
 
+import cn.codepub.redis.directory.FileMetadata;
 import cn.codepub.redis.directory.Operations;
+import cn.codepub.redis.directory.jfr.IoEvents;
+import cn.codepub.redis.directory.jfr.IoTrace;
 import cn.codepub.redis.directory.util.CompressUtils;
-import com.google.common.primitives.Longs;
+import cn.codepub.redis.directory.util.Constants;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisClusterException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.Pool;
+import redis.clients.util.SafeEncoder;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
 
+import static cn.codepub.redis.directory.codec.BlockCodecs.decode;
+import static cn.codepub.redis.directory.codec.BlockCodecs.encode;
 import static cn.codepub.redis.directory.util.CompressUtils.compressFilter;
 import static cn.codepub.redis.directory.util.FileBlocksUtils.getBlockName;
-import static cn.codepub.redis.directory.util.FileBlocksUtils.getBlockSize;
 
 /**
  * <p>
  * Created by wangxu on 2016/12/26 15:18.
  * </p>
  * <p>
- * Description: Using for Jedis Cluster
+ * Description: Using for Jedis Cluster. The block commands of a file are grouped by the node owning their slot, each group is
+ * sent as one pipeline and the groups run in parallel. Commands redirected by MOVED or ASK are sent again through the
+ * cluster client, which follows the redirection
  * </p>
  *
  * @author Wang Xu
@@ -28,69 +62,211 @@ import static cn.codepub.redis.directory.util.FileBlocksUtils.getBlockSize;
  * WebSite: http://codepub.cn <br></br>
  * Licence: Apache v2 License
  */
+@Log4j2
 public class JedisClusterStream implements InputOutputStream {
     private JedisCluster jedisCluster;
+    //the pipelines of the nodes other than the first one of a request run here
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("redis-cluster-pipeline-%d").build());
+    //slot -> pool of the master owning it, null if unknown, renewed on MOVED
+    private volatile JedisPool[] slotOwners = new JedisPool[JedisCluster.HASHSLOTS];
+    //true until the slot owners are fetched, a request retries the fetch until it succeeds
+    private volatile boolean slotOwnersStale = true;
+
+    public JedisClusterStream(JedisCluster jedisCluster) {
+        this.jedisCluster = jedisCluster;
+        renewSlotOwners();
+    }
 
     @Override
     public Set<byte[]> hkeys(byte[] key) {
         return jedisCluster.hkeys(key);
     }
 
-    /**
-     * Use transactions to delete index file
-     *
-     * @param fileLengthKey
-     * @param fileDataKey
-     * @param field
-     * @param blockSize
-     */
     @Override
-    public void deleteFile(String fileLengthKey, String fileDataKey, String field, long blockSize) {
-        //delete file length
-        jedisCluster.hdel(fileLengthKey.getBytes(), field.getBytes());
-        //delete file content
-        for (int i = 0; i < blockSize; i++) {
-            byte[] blockName = getBlockName(field, i);
-            jedisCluster.hdel(fileDataKey.getBytes(), blockName);
+    public void deleteBlocks(String fileDataKey, FileMetadata metadata) {
+        if (metadata.isOwnKey()) {
+            List<byte[]> keys = metadata.getFileDataKeys(fileDataKey).stream().map(String::getBytes).collect(Collectors.toList());
+            pipelined(keys, (pipeline, i) -> pipeline.eval(UNLINK_SCRIPT, 1, keys.get(i)), i -> jedisCluster.eval(UNLINK_SCRIPT, 1,
+                    keys.get(i)));
+            return;
         }
+        //delete file content
+        List<byte[]> keys = Collections.nCopies((int) metadata.getBlockSize(), fileDataKey.getBytes());
+        pipelined(keys, (pipeline, i) -> pipeline.hdel(keys.get(i), getBlockName(metadata.getContentId(), i)), i ->
+                jedisCluster.hdel(keys.get(i), getBlockName(metadata.getContentId(), i)));
     }
 
     @Override
-    public void rename(String fileLengthKey, String fileDataKey, String oldField, String newField, List<byte[]> values, long
-            fileLength) {
-        //add new file length
-        jedisCluster.hset(fileLengthKey.getBytes(), newField.getBytes(), Longs.toByteArray(fileLength));
-        //add new file content
-        Long blockSize = getBlockSize(fileLength);
-        for (int i = 0; i < blockSize; i++) {
-            jedisCluster.hset(fileDataKey.getBytes(), getBlockName(newField, i), compressFilter(values.get(i)));
-        }
+    public void saveFile(String fileLengthKey, String fileDataKey, String fileName, List<byte[]> values, FileMetadata
+            metadata, FencingToken fencingToken, Operations operations) {
+        List<byte[]> keys = getBlockKeys(fileDataKey, metadata);
+        pipelined(keys, (pipeline, i) -> pipeline.hset(keys.get(i), getBlockName(metadata.getContentId(), i), encode(metadata,
+                values.get(i), operations)), i -> jedisCluster.hset(keys.get(i), getBlockName(metadata.getContentId(), i),
+                encode(metadata, values.get(i), operations)));
+        //file length at last, so the file is not visible before all its blocks
+        saveFileMetadata(fileLengthKey, fileName, metadata, fencingToken);
         values.clear();
-        deleteFile(fileLengthKey, fileDataKey, oldField, blockSize);
     }
 
     @Override
-    public void saveFile(String fileLengthKey, String fileDataKey, String fileName, List<byte[]> values, long fileLength) {
-        jedisCluster.hset(fileLengthKey.getBytes(), fileName.getBytes(), Longs.toByteArray(fileLength));
-        Long blockSize = getBlockSize(fileLength);
-        for (int i = 0; i < blockSize; i++) {
-            jedisCluster.hset(fileDataKey.getBytes(), getBlockName(fileName, i), compressFilter(values.get(i)));
-        }
-        values.clear();
+    public List<byte[]> loadFileOnce(String fileDataKey, FileMetadata metadata, Operations operations) {
+        return loadBlocks(fileDataKey, metadata, 0, (int) metadata.getBlockSize(), operations);
     }
 
     @Override
-    public List<byte[]> loadFileOnce(String fileDataKey, String fileName, long blockSize) {
-        List<byte[]> res = new ArrayList<>();
-        for (int i = 0; i < blockSize; i++) {
-            byte[] hget = jedisCluster.hget(fileDataKey.getBytes(), getBlockName(fileName, i));
-            res.add(hget);
+    public List<byte[]> loadBlocks(String fileDataKey, FileMetadata metadata, int from, int to, Operations operations) {
+        List<byte[]> keys = getBlockKeys(fileDataKey, metadata, from, to);
+        List<byte[]> blocks = pipelined(keys, (pipeline, i) -> pipeline.hget(keys.get(i), getBlockName(metadata.getContentId(),
+                from + i)), i -> jedisCluster.hget(keys.get(i), getBlockName(metadata.getContentId(), from + i)));
+        return blocks.stream().map(block -> decode(metadata, block, operations)).collect(Collectors.toList());
+    }
+
+    private List<byte[]> getBlockKeys(String fileDataKey, FileMetadata metadata) {
+        return getBlockKeys(fileDataKey, metadata, 0, (int) metadata.getBlockSize());
+    }
+
+    /**
+     * @return the keys of the blocks from from to to, key i is the one of block from + i
+     */
+    private List<byte[]> getBlockKeys(String fileDataKey, FileMetadata metadata, int from, int to) {
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            keys.add(metadata.getFileDataKey(fileDataKey, i).getBytes());
         }
-        return res;
+        return keys;
     }
 
-    public JedisClusterStream(JedisCluster jedisCluster) {
-        this.jedisCluster = jedisCluster;
+    /**
+     * Send one command per key. The commands are grouped by the node owning the slot of their key, every group is sent as
+     * pipelines of SYNC_COUNT commands and the groups run in parallel. A command redirected by MOVED or ASK, sent to a node
+     * which failed or whose slot owner is unknown is sent again through the cluster client
+     *
+     * @param keys    the key of every command
+     * @param command queue the command of the given index on the pipeline of its node
+     * @param single  send the command of the given index through the cluster client
+     * @return the reply of every command
+     */
+    private <T> List<T> pipelined(List<byte[]> keys, BiFunction<Pipeline, Integer, Response<T>> command, IntFunction<T>
+            single) {
+        Object[] replies = new Object[keys.size()];
+        List<Integer> resend = Collections.synchronizedList(new ArrayList<>());
+        Map<JedisPool, List<Integer>> groups = new HashMap<>();
+        JedisPool[] owners = getSlotOwners();
+        for (int i = 0; i < keys.size(); i++) {
+            JedisPool owner = owners[JedisClusterCRC16.getSlot(keys.get(i))];
+            if (owner == null) {
+                resend.add(i);
+            } else {
+                groups.computeIfAbsent(owner, k -> new ArrayList<>()).add(i);
+            }
+        }
+        boolean moved = false;
+        List<Future<Boolean>> others = new ArrayList<>();
+        Map.Entry<JedisPool, List<Integer>> first = null;
+        for (Map.Entry<JedisPool, List<Integer>> group : groups.entrySet()) {
+            if (first == null) {
+                first = group;
+            } else {
+                others.add(executor.submit(() -> pipelineGroup(group.getKey(), group.getValue(), command, replies, resend)));
+            }
+        }
+        //the calling thread takes one node itself instead of waiting idle
+        if (first != null) {
+            moved = pipelineGroup(first.getKey(), first.getValue(), command, replies, resend);
+        }
+        for (Future<Boolean> other : others) {
+            try {
+                moved |= other.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JedisClusterException("Interrupted while waiting for the pipelines of the cluster nodes", e);
+            } catch (ExecutionException e) {
+                throw new JedisClusterException(e.getCause());
+            }
+        }
+        if (moved) {
+            slotOwnersStale = true;
+            renewSlotOwners();
+        }
+        for (int i : resend) {
+            replies[i] = single.apply(i);
+        }
+        @SuppressWarnings("unchecked")
+        List<T> result = (List<T>) Arrays.asList(replies);
+        return result;
+    }
+
+    /**
+     * @return true if a command was redirected by MOVED, so the slot owners are out of date
+     */
+    private <T> boolean pipelineGroup(JedisPool owner, List<Integer> indexes, BiFunction<Pipeline, Integer, Response<T>>
+            command, Object[] replies, List<Integer> resend) {
+        List<Response<T>> responses = new ArrayList<>(indexes.size());
+        try (Jedis jedis = owner.getResource()) {
+            Pipeline pipelined = jedis.pipelined();
+            for (int i = 0; i < indexes.size(); i++) {
+                responses.add(command.apply(pipelined, indexes.get(i)));
+                //如果不分批次sync容易read time out和Java heap space
+                if (i % Constants.SYNC_COUNT == 0) {
+                    sync(pipelined);
+                    pipelined = jedis.pipelined();
+                }
+            }
+            sync(pipelined);
+        } catch (JedisConnectionException e) {
+            //the node may have failed over, the cluster client finds its replacement
+            log.error("Pipeline to cluster node failed, send {} commands through the cluster client!", indexes.size(), e);
+            resend.addAll(indexes);
+            return true;
+        }
+        boolean moved = false;
+        for (int i = 0; i < responses.size(); i++) {
+            try {
+                replies[indexes.get(i)] = responses.get(i).get();
+            } catch (JedisRedirectionException e) {
+                moved |= e instanceof JedisMovedDataException;
+                resend.add(indexes.get(i));
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * @return the slot owners, fetched again first if the last fetch failed
+     */
+    private JedisPool[] getSlotOwners() {
+        if (slotOwnersStale) {
+            renewSlotOwners();
+        }
+        return slotOwners;
+    }
+
+    /**
+     * Ask the first reachable node which master owns every slot, unless another thread did meanwhile. The slot owners stay
+     * stale if no node answers
+     */
+    private synchronized void renewSlotOwners() {
+        if (!slotOwnersStale) {
+            return;
+        }
+        Map<String, JedisPool> nodes = jedisCluster.getClusterNodes();
+        for (JedisPool pool : nodes.values()) {
+            try (Jedis jedis = pool.getResource()) {
+                JedisPool[] owners = new JedisPool[JedisCluster.HASHSLOTS];
+                for (Object slots : jedis.clusterSlots()) {
+                    List<?> range = (List<?>) slots;
+                    List<?> master = (List<?>) range.get(2);
+                    JedisPool owner = nodes.get(SafeEncoder.encode((byte[]) master.get(0)) + ":" + master.get(1));
+                    Arrays.fill(owners, ((Long) range.get(0)).intValue(), ((Long) range.get(1)).intValue() + 1, owner);
+                }
+                slotOwners = owners;
+                slotOwnersStale = false;
+                return;
+            } catch (JedisException e) {
+                log.error("Get cluster slots failed!", e);
+            }
+        }
     }
 
     @Override
@@ -107,8 +283,52 @@ public class JedisClusterStream implements InputOutputStream {
         return hget;
     }
 
+    @Override
+    public void awaitDurable(int replicas, boolean aof, long timeoutMillis) throws IOException {
+        JedisPool[] owners = getSlotOwners();
+        if (slotOwnersStale) {
+            //no barrier at all would pass for durable
+            throw new IOException("The masters of the cluster are unknown, can not wait for durability!");
+        }
+        //one barrier key per master, found by trying hash tags until every master owns the slot of one
+        Map<JedisPool, byte[]> barrierKeys = new IdentityHashMap<>();
+        Set<JedisPool> masters = Collections.newSetFromMap(new IdentityHashMap<>());
+        Arrays.stream(owners).filter(Objects::nonNull).forEach(masters::add);
+        for (int i = 0; barrierKeys.size() < masters.size(); i++) {
+            byte[] key = (SyncBarrier.BARRIER_KEY + ":{" + i + "}").getBytes();
+            JedisPool owner = owners[JedisClusterCRC16.getSlot(key)];
+            if (owner != null) {
+                barrierKeys.putIfAbsent(owner, key);
+            }
+        }
+        List<GroupCommit.Barrier> barriers = new ArrayList<>();
+        barrierKeys.forEach((owner, key) -> barriers.add(() -> {
+            try (Jedis jedis = owner.getResource()) {
+                SyncBarrier.await(jedis, key, replicas, aof, timeoutMillis);
+            }
+        }));
+        SyncBarrier.awaitAll(executor, barriers);
+    }
+
+    @Override
+    public Object eval(byte[] script, List<byte[]> keys, List<byte[]> args) {
+        return jedisCluster.eval(script, keys, args);
+    }
+
+    @Override
+    public void subscribe(byte[] channel, BinaryJedisPubSub listener) {
+        //messages are broadcast to every node, the subscription may sit on any of them
+        jedisCluster.subscribe(listener, channel);
+    }
+
+    @Override
+    public List<Pool<?>> getPools() {
+        return new ArrayList<>(jedisCluster.getClusterNodes().values());
+    }
+
     @Override
     public void close() throws IOException {
+        executor.shutdown();
         if (jedisCluster != null) {
             jedisCluster.close();
         }
@@ -126,4 +346,16 @@ public class JedisClusterStream implements InputOutputStream {
         }
         return jedisCluster.hset(key, field, value);
     }
+
+    /**
+     * Send the queued commands and read their replies, recorded as a flight recorder event of the operation begun last
+     */
+    private static void sync(Pipeline pipelined) {
+        IoTrace trace = IoEvents.beginSync();
+        try {
+            pipelined.sync();
+        } finally {
+            trace.close();
+        }
+    }
 }
@@ -1,24 +1,37 @@
 package cn.codepub.redis.directory.io;
 
+import cn.codepub.redis.directory.FileMetadata;
 import cn.codepub.redis.directory.Operations;
+import cn.codepub.redis.directory.jfr.IoEvents;
+import cn.codepub.redis.directory.jfr.IoTrace;
 import cn.codepub.redis.directory.util.Constants;
-import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.BinaryJedisPubSub;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Response;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.Pool;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
+import static cn.codepub.redis.directory.codec.BlockCodecs.decode;
+import static cn.codepub.redis.directory.codec.BlockCodecs.encode;
 import static cn.codepub.redis.directory.util.CompressUtils.compressFilter;
 import static cn.codepub.redis.directory.util.CompressUtils.uncompressFilter;
 import static cn.codepub.redis.directory.util.FileBlocksUtils.getBlockName;
-import static cn.codepub.redis.directory.util.FileBlocksUtils.getBlockSize;
 
 
 /**
@@ -26,7 +39,8 @@ import static cn.codepub.redis.directory.util.FileBlocksUtils.getBlockSize;
  * Created by wangxu on 2016/12/26 15:12.
  * </p>
  * <p>
- * Description: Using for Jedis Pool
+ * Description: Using for Jedis Pool. Files of at least PARALLEL_FETCH_MIN_SIZE are fetched through several pooled
+ * connections at once, each one pipelines a range of the blocks
  * </p>
  *
  * @author Wang Xu
@@ -38,9 +52,27 @@ import static cn.codepub.redis.directory.util.FileBlocksUtils.getBlockSize;
 @Log4j2
 public class JedisPoolStream implements InputOutputStream {
     private JedisPool jedisPool;
+    //the number of pooled connections a large file is fetched through, 1 fetches every file through one connection
+    private final int fetchThreads;
+    //files shorter than this are fetched through one connection
+    private final long fetchMinSize;
+    private final ExecutorService fetchExecutor;
 
     public JedisPoolStream(JedisPool jedisPool) {
+        this(jedisPool, Constants.PARALLEL_FETCH_THREADS, Constants.PARALLEL_FETCH_MIN_SIZE);
+    }
+
+    /**
+     * @param jedisPool    the pool must hold fetchThreads connections for every file fetched at the same time
+     * @param fetchThreads the number of pooled connections a large file is fetched through
+     * @param fetchMinSize files shorter than this are fetched through one connection
+     */
+    public JedisPoolStream(JedisPool jedisPool, int fetchThreads, long fetchMinSize) {
         this.jedisPool = jedisPool;
+        this.fetchThreads = fetchThreads;
+        this.fetchMinSize = fetchMinSize;
+        this.fetchExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat
+                ("redis-pool-fetch-%d").build());
     }
 
     @Override
@@ -72,8 +104,36 @@ public class JedisPoolStream implements InputOutputStream {
         return hget;
     }
 
+    @Override
+    public void awaitDurable(int replicas, boolean aof, long timeoutMillis) throws IOException {
+        try (Jedis jedis = jedisPool.getResource()) {
+            SyncBarrier.await(jedis, SyncBarrier.BARRIER_KEY.getBytes(), replicas, aof, timeoutMillis);
+        }
+    }
+
+    @Override
+    public Object eval(byte[] script, List<byte[]> keys, List<byte[]> args) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            return jedis.eval(script, keys, args);
+        }
+    }
+
+    @Override
+    public void subscribe(byte[] channel, BinaryJedisPubSub listener) {
+        //the connection is out of the pool until the subscription ends
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.subscribe(listener, channel);
+        }
+    }
+
+    @Override
+    public List<Pool<?>> getPools() {
+        return Collections.singletonList(jedisPool);
+    }
+
     @Override
     public void close() {
+        fetchExecutor.shutdown();
         if (jedisPool != null) {
             jedisPool.close();
         }
@@ -123,105 +183,132 @@ public class JedisPoolStream implements InputOutputStream {
     }
 
     /**
-     * Use transactions to delete index file
+     * Pipeline the delete of the blocks of index file, one UNLINK per hash if they live in hashes of their own, else one hdel per
+     * block
      *
-     * @param fileLengthKey
-     * @param fileDataKey
-     * @param field
-     * @param blockSize
+     * @param fileDataKey the shared key using for hash file data
+     * @param metadata    the metadata of the index file
      */
     @Override
-    public void deleteFile(String fileLengthKey, String fileDataKey, String field, long blockSize) {
+    public void deleteBlocks(String fileDataKey, FileMetadata metadata) {
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
             Pipeline pipelined = jedis.pipelined();
-            //delete file length
-            pipelined.hdel(fileLengthKey.getBytes(), field.getBytes());
-            //delete file content
-            for (int i = 0; i < blockSize; i++) {
-                byte[] blockName = getBlockName(field, i);
-                pipelined.hdel(fileDataKey.getBytes(), blockName);
+            if (metadata.isOwnKey()) {
+                metadata.getFileDataKeys(fileDataKey).forEach(key -> pipelined.eval(UNLINK_SCRIPT, 1, key.getBytes()));
+            } else {
+                //delete file content
+                for (int i = 0; i < metadata.getBlockSize(); i++) {
+                    byte[] blockName = getBlockName(metadata.getContentId(), i);
+                    pipelined.hdel(fileDataKey.getBytes(), blockName);
+                }
             }
-            pipelined.sync();
+            sync(pipelined);
         } finally {
             jedis.close();
         }
     }
 
     @Override
-    public void rename(String fileLengthKey, String fileDataKey, String oldField, String newField, List<byte[]> values, long
-            fileLength) {
-        long blockSize = 0;
+    public void saveFile(String fileLengthKey, String fileDataKey, String fileName, List<byte[]> values, FileMetadata
+            metadata, FencingToken fencingToken, Operations operations) {
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
             Pipeline pipelined = jedis.pipelined();
-            //add new file length
-            pipelined.hset(fileLengthKey.getBytes(), newField.getBytes(), Longs.toByteArray(fileLength));
-            //add new file content
-            blockSize = getBlockSize(fileLength);
+            long blockSize = metadata.getBlockSize();
             for (int i = 0; i < blockSize; i++) {
-                pipelined.hset(fileDataKey.getBytes(), getBlockName(newField, i), compressFilter(values.get(i)));
+                pipelined.hset(metadata.getFileDataKey(fileDataKey, i).getBytes(), getBlockName(metadata.getContentId(), i),
+                        encode(metadata, values.get(i), operations));
+                if (i % Constants.SYNC_COUNT == 0) {
+                    sync(pipelined);
+                    pipelined = jedis.pipelined();
+                }
             }
-            values.clear();
-            pipelined.sync();
+            sync(pipelined);
         } finally {
             jedis.close();
-            deleteFile(fileLengthKey, fileDataKey, oldField, blockSize);
         }
+        //file length at last, so the file is not visible before all its blocks
+        saveFileMetadata(fileLengthKey, fileName, metadata, fencingToken);
+        values.clear();
     }
 
     @Override
-    public void saveFile(String fileLengthKey, String fileDataKey, String fileName, List<byte[]> values, long fileLength) {
-        Jedis jedis = null;
-        try {
-            jedis = jedisPool.getResource();
-            Pipeline pipelined = jedis.pipelined();
-            pipelined.hset(fileLengthKey.getBytes(), fileName.getBytes(), Longs.toByteArray(fileLength));
-            Long blockSize = getBlockSize(fileLength);
-            for (int i = 0; i < blockSize; i++) {
-                pipelined.hset(fileDataKey.getBytes(), getBlockName(fileName, i), compressFilter(values.get(i)));
-                if (i % Constants.SYNC_COUNT == 0) {
-                    pipelined.sync();
-                    pipelined = jedis.pipelined();
-                }
+    public List<byte[]> loadFileOnce(String fileDataKey, FileMetadata metadata, Operations operations) {
+        int blockSize = (int) metadata.getBlockSize();
+        if (fetchThreads <= 1 || metadata.getLength() < fetchMinSize || blockSize < 2) {
+            return loadBlocks(fileDataKey, metadata, 0, blockSize, operations);
+        }
+        //one range of blocks per pooled connection, the calling thread takes the first range itself
+        int ranges = Math.min(fetchThreads, blockSize);
+        int rangeSize = (blockSize + ranges - 1) / ranges;
+        List<Future<List<byte[]>>> others = new ArrayList<>();
+        for (int from = rangeSize; from < blockSize; from += rangeSize) {
+            int start = from;
+            int end = Math.min(from + rangeSize, blockSize);
+            others.add(fetchExecutor.submit(() -> loadBlocks(fileDataKey, metadata, start, end, operations)));
+        }
+        List<byte[]> res = new ArrayList<>(blockSize);
+        res.addAll(loadBlocks(fileDataKey, metadata, 0, rangeSize, operations));
+        for (Future<List<byte[]>> other : others) {
+            try {
+                res.addAll(other.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JedisException("Interrupted while fetching blocks of " + metadata.getContentId(), e);
+            } catch (ExecutionException e) {
+                throw new JedisException("Fetch blocks of " + metadata.getContentId() + " failed!", e.getCause());
             }
-            values.clear();
-            pipelined.sync();
-        } finally {
-            jedis.close();
         }
+        return res;
     }
 
+    /**
+     * @return the blocks from from to to, pipelined through one pooled connection
+     */
     @Override
-    public List<byte[]> loadFileOnce(String fileDataKey, String fileName, long blockSize) {
+    public List<byte[]> loadBlocks(String fileDataKey, FileMetadata metadata, int from, int to, Operations operations) {
         Jedis jedis = jedisPool.getResource();
         Pipeline pipelined = jedis.pipelined();
         List<byte[]> res = new ArrayList<>();
         List<Response<byte[]>> temps = new ArrayList<>();
-        int temp = 0;
-        while (temp < blockSize) {
-            Response<byte[]> data = pipelined.hget(fileDataKey.getBytes(), getBlockName(fileName, temp));
+        int temp = from;
+        while (temp < to) {
+            Response<byte[]> data = pipelined.hget(metadata.getFileDataKey(fileDataKey, temp).getBytes(), getBlockName(metadata
+                    .getContentId(), temp));
             temps.add(data);
             if (temp % Constants.SYNC_COUNT == 0) {
-                pipelined.sync();
-                res.addAll(temps.stream().map(response -> uncompressFilter(response.get())).collect(Collectors.toList()));
+                sync(pipelined);
+                res.addAll(temps.stream().map(response -> decode(metadata, response.get(), operations)).collect(Collectors.toList()));
                 pipelined = jedis.pipelined();
                 temps.clear();
             }
             temp++;
         }
         try {
-            pipelined.sync();
+            sync(pipelined);
         } catch (JedisConnectionException e) {
-            log.error("pipelined = {}, blockSize = {}!", pipelined.toString(), blockSize);
+            log.error("pipelined = {}, blocks = [{}, {})!", pipelined.toString(), from, to);
             log.error("", e);
         } finally {
             jedis.close();
         }
-        res.addAll(temps.stream().map(response -> uncompressFilter(response.get())).collect(Collectors.toList()));
+        res.addAll(temps.stream().map(response -> decode(metadata, response.get(), operations)).collect(Collectors.toList()));
         temps.clear();
         return res;
     }
+
+    /**
+     * Send the queued commands and read their replies, recorded as a flight recorder event of the operation begun last
+     */
+    private static void sync(Pipeline pipelined) {
+        IoTrace trace = IoEvents.beginSync();
+        try {
+            pipelined.sync();
+        } finally {
+            trace.close();
+        }
+    }
 }
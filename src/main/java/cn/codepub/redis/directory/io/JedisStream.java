@@ -1,9 +1,12 @@
 package cn.codepub.redis.directory.io;
 
+import cn.codepub.redis.directory.FileMetadata;
 import cn.codepub.redis.directory.Operations;
+import cn.codepub.redis.directory.jfr.IoEvents;
+import cn.codepub.redis.directory.jfr.IoTrace;
 import cn.codepub.redis.directory.util.Constants;
-import com.google.common.primitives.Longs;
 import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.BinaryJedisPubSub;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Response;
@@ -15,10 +18,11 @@ import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import static cn.codepub.redis.directory.codec.BlockCodecs.decode;
+import static cn.codepub.redis.directory.codec.BlockCodecs.encode;
 import static cn.codepub.redis.directory.util.CompressUtils.compressFilter;
 import static cn.codepub.redis.directory.util.CompressUtils.uncompressFilter;
 import static cn.codepub.redis.directory.util.FileBlocksUtils.getBlockName;
-import static cn.codepub.redis.directory.util.FileBlocksUtils.getBlockSize;
 
 
 /**
@@ -84,6 +88,36 @@ public class JedisStream implements InputOutputStream {
         return hget;
     }
 
+    @Override
+    public void awaitDurable(int replicas, boolean aof, long timeoutMillis) throws IOException {
+        Jedis jedis = openJedis();
+        try {
+            SyncBarrier.await(jedis, SyncBarrier.BARRIER_KEY.getBytes(), replicas, aof, timeoutMillis);
+        } finally {
+            jedis.close();
+        }
+    }
+
+    @Override
+    public Object eval(byte[] script, List<byte[]> keys, List<byte[]> args) {
+        Jedis jedis = openJedis();
+        try {
+            return jedis.eval(script, keys, args);
+        } finally {
+            jedis.close();
+        }
+    }
+
+    @Override
+    public void subscribe(byte[] channel, BinaryJedisPubSub listener) {
+        Jedis jedis = openJedis();
+        try {
+            jedis.subscribe(listener, channel);
+        } finally {
+            jedis.close();
+        }
+    }
+
     @Override
     public void close() throws IOException {
         //Noop
@@ -117,84 +151,89 @@ public class JedisStream implements InputOutputStream {
     }
 
     @Override
-    public void deleteFile(String fileLengthKey, String fileDataKey, String field, long blockSize) {
+    public void deleteBlocks(String fileDataKey, FileMetadata metadata) {
         Jedis jedis = openJedis();
         Pipeline pipelined = jedis.pipelined();
-        //delete file length
-        pipelined.hdel(fileLengthKey.getBytes(), field.getBytes());
-        //delete file content
-        for (int i = 0; i < blockSize; i++) {
-            byte[] blockName = getBlockName(field, i);
-            pipelined.hdel(fileDataKey.getBytes(), blockName);
-        }
-        pipelined.sync();
-        jedis.close();
-    }
-
-    @Override
-    public void rename(String fileLengthKey, String fileDataKey, String oldField, String newField, List<byte[]> values, long
-            fileLength) {
-        Jedis jedis = openJedis();
-        Pipeline pipelined = jedis.pipelined();
-        //add new file length
-        pipelined.hset(fileLengthKey.getBytes(), newField.getBytes(), Longs.toByteArray(fileLength));
-        //add new file content
-        Long blockSize = getBlockSize(fileLength);
-        for (int i = 0; i < blockSize; i++) {
-            pipelined.hset(fileDataKey.getBytes(), getBlockName(newField, i), compressFilter(values.get(i)));
+        if (metadata.isOwnKey()) {
+            metadata.getFileDataKeys(fileDataKey).forEach(key -> pipelined.eval(UNLINK_SCRIPT, 1, key.getBytes()));
+        } else {
+            //delete file content
+            for (int i = 0; i < metadata.getBlockSize(); i++) {
+                byte[] blockName = getBlockName(metadata.getContentId(), i);
+                pipelined.hdel(fileDataKey.getBytes(), blockName);
+            }
         }
-        pipelined.sync();
+        sync(pipelined);
         jedis.close();
-        values.clear();
-        deleteFile(fileLengthKey, fileDataKey, oldField, blockSize);
     }
 
     @Override
-    public void saveFile(String fileLengthKey, String fileDataKey, String fileName, List<byte[]> values, long fileLength) {
+    public void saveFile(String fileLengthKey, String fileDataKey, String fileName, List<byte[]> values, FileMetadata
+            metadata, FencingToken fencingToken, Operations operations) {
         Jedis jedis = openJedis();
         Pipeline pipelined = jedis.pipelined();
-        pipelined.hset(fileLengthKey.getBytes(), fileName.getBytes(), Longs.toByteArray(fileLength));
-        Long blockSize = getBlockSize(fileLength);
+        long blockSize = metadata.getBlockSize();
         for (int i = 0; i < blockSize; i++) {
-            pipelined.hset(fileDataKey.getBytes(), getBlockName(fileName, i), compressFilter(values.get(i)));
+            pipelined.hset(metadata.getFileDataKey(fileDataKey, i).getBytes(), getBlockName(metadata.getContentId(), i),
+                    encode(metadata, values.get(i), operations));
             if (i % Constants.SYNC_COUNT == 0) {
-                pipelined.sync();
+                sync(pipelined);
                 pipelined = jedis.pipelined();
             }
         }
-        pipelined.sync();
+        sync(pipelined);
         jedis.close();
+        //file length at last, so the file is not visible before all its blocks
+        saveFileMetadata(fileLengthKey, fileName, metadata, fencingToken);
         values.clear();
     }
 
     @Override
-    public List<byte[]> loadFileOnce(String fileDataKey, String fileName, long blockSize) {
+    public List<byte[]> loadFileOnce(String fileDataKey, FileMetadata metadata, Operations operations) {
+        return loadBlocks(fileDataKey, metadata, 0, (int) metadata.getBlockSize(), operations);
+    }
+
+    @Override
+    public List<byte[]> loadBlocks(String fileDataKey, FileMetadata metadata, int from, int to, Operations operations) {
         Jedis jedis = openJedis();
         Pipeline pipelined = jedis.pipelined();
         List<byte[]> res = new ArrayList<>();
         List<Response<byte[]>> temps = new ArrayList<>();
-        int temp = 0;
-        while (temp < blockSize) {
-            Response<byte[]> data = pipelined.hget(fileDataKey.getBytes(), getBlockName(fileName, temp));
+        int temp = from;
+        while (temp < to) {
+            Response<byte[]> data = pipelined.hget(metadata.getFileDataKey(fileDataKey, temp).getBytes(), getBlockName(metadata
+                    .getContentId(), temp));
             temps.add(data);
             if (temp % Constants.SYNC_COUNT == 0) {
-                pipelined.sync();
-                res.addAll(temps.stream().map(response -> uncompressFilter(response.get())).collect(Collectors.toList()));
+                sync(pipelined);
+                res.addAll(temps.stream().map(response -> decode(metadata, response.get(), operations)).collect(Collectors.toList()));
                 temps.clear();
                 pipelined = jedis.pipelined();
             }
             temp++;
         }
         try {
-            pipelined.sync();
+            sync(pipelined);
         } catch (JedisConnectionException e) {
-            log.error("pipelined = {}, blockSize = {}!", pipelined.toString(), blockSize);
+            log.error("pipelined = {}, blocks = [{}, {})!", pipelined.toString(), from, to);
             log.error("", e);
         } finally {
             jedis.close();
         }
-        res.addAll(temps.stream().map(response -> uncompressFilter(response.get())).collect(Collectors.toList()));
+        res.addAll(temps.stream().map(response -> decode(metadata, response.get(), operations)).collect(Collectors.toList()));
         temps.clear();
         return res;
     }
+
+    /**
+     * Send the queued commands and read their replies, recorded as a flight recorder event of the operation begun last
+     */
+    private static void sync(Pipeline pipelined) {
+        IoTrace trace = IoEvents.beginSync();
+        try {
+            pipelined.sync();
+        } finally {
+            trace.close();
+        }
+    }
 }
@@ -1,12 +1,17 @@
 package cn.codepub.redis.directory.io;
 
 import cn.codepub.redis.directory.RedisFile;
-import cn.codepub.redis.directory.util.Constants;
+import cn.codepub.redis.directory.codec.BlockCodecs;
 import lombok.extern.log4j.Log4j2;
 import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.Accountable;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.function.Consumer;
 
 /**
  * <p>
@@ -23,36 +28,53 @@ import java.io.IOException;
  * Licence: Apache v2 License
  */
 @Log4j2
-public class RedisInputStream extends IndexInput implements Cloneable {
+public class RedisInputStream extends IndexInput implements Cloneable, Accountable {
     private RedisFile redisFile;
     private final long length;//the total length of the index file
-    private byte[] currentBuffer;
+    //the block size the index file was written with
+    private final int bufferSize;
+    //heap or direct buffer over the current block, private to this input
+    private ByteBuffer currentBuffer;
+    //the block is decoded into it when the redis file keeps blocks compressed, allocated on first use
+    private byte[] workingBuffer;
     private int currentBufferIndex;
     private int bufferPosition;
     private int bufferLength;
+    //told when the input opened by the directory is closed, null for clones and slices
+    private Consumer<RedisInputStream> closeListener;
 
     public RedisInputStream(String name, RedisFile redisFile) throws IOException {
         this(name, redisFile, redisFile.getFileLength());
     }
 
+    public RedisInputStream(String name, RedisFile redisFile, Consumer<RedisInputStream> closeListener) throws IOException {
+        this(name, redisFile);
+        this.closeListener = closeListener;
+    }
+
     private RedisInputStream(String name, RedisFile redisFile, long length) throws IOException {
         super("RedisInputStream(name=" + name + ")");
         this.redisFile = redisFile;
         this.length = length;
-        if (this.length / Constants.BUFFER_SIZE >= Integer.MAX_VALUE) {
+        this.bufferSize = redisFile.getBufferSize();
+        if (this.length / bufferSize >= Integer.MAX_VALUE) {
             throw new IOException("RedisInputStream too large length=" + length + ": " + name);
         }
-        setCurrentBuffer();
+        //the first buffer is bound when the first byte is read, so opening an input does not touch any block
     }
 
     /**
      * Get an unprocessed buffer with data to fill the currentBuffer
      */
-    private void setCurrentBuffer() {
+    private void setCurrentBuffer() throws IOException {
         if (currentBufferIndex < redisFile.numBuffers()) {
-            currentBuffer = redisFile.getBuffer(currentBufferIndex);
-            long bufferStart = (long) Constants.BUFFER_SIZE * (long) currentBufferIndex;
-            bufferLength = (int) Math.min(Constants.BUFFER_SIZE, length - bufferStart);
+            if (workingBuffer == null && redisFile.needsWorkingBuffer()) {
+                //a file shorter than its block size needs no more
+                workingBuffer = BlockCodecs.newWorkingBuffer((int) Math.min(bufferSize, redisFile.getFileLength()));
+            }
+            currentBuffer = redisFile.getBlock(currentBufferIndex, workingBuffer);
+            long bufferStart = (long) bufferSize * (long) currentBufferIndex;
+            bufferLength = (int) Math.min(bufferSize, length - bufferStart);
         } else {
             currentBuffer = null;
         }
@@ -60,31 +82,37 @@ public class RedisInputStream extends IndexInput implements Cloneable {
 
     @Override
     public byte readByte() throws IOException {
-        if (bufferPosition == bufferLength) {
+        if (bufferPosition >= bufferLength) {
             nextBuffer();
         }
-        return currentBuffer[bufferPosition++];
+        return currentBuffer.get(bufferPosition++);
     }
 
+    /**
+     * Bind the buffer under the current position if it is not bound yet, or else move to the next buffer
+     */
     private void nextBuffer() throws IOException {
-        if (getFilePointer() >= length) {
+        if ((long) currentBufferIndex * bufferSize + bufferPosition >= length) {
             throw new EOFException("cannot read another byte at EOF: pos=" + getFilePointer() + " vs length=" + length() + ": "
                     + this);
         }
-        currentBufferIndex++;
+        if (currentBuffer != null) {
+            currentBufferIndex++;
+            bufferPosition = 0;
+        }
         setCurrentBuffer();
-        bufferPosition = 0;
     }
 
     @Override
     public void readBytes(byte[] b, int offset, int len) throws IOException {
         while (len > 0) {
-            if (bufferPosition == bufferLength) {
+            if (bufferPosition >= bufferLength) {
                 nextBuffer();
             }
             int remainInBuffer = bufferLength - bufferPosition;
             int bytesToCopy = len < remainInBuffer ? len : remainInBuffer;
-            System.arraycopy(currentBuffer, bufferPosition, b, offset, bytesToCopy);
+            currentBuffer.position(bufferPosition);
+            currentBuffer.get(b, offset, bytesToCopy);
             offset += bytesToCopy;
             len -= bytesToCopy;
             bufferPosition += bytesToCopy;
@@ -93,17 +121,19 @@ public class RedisInputStream extends IndexInput implements Cloneable {
 
     @Override
     public long getFilePointer() {
-        return (long) currentBufferIndex * Constants.BUFFER_SIZE + bufferPosition;
+        return (long) currentBufferIndex * bufferSize + bufferPosition;
     }
 
     @Override
     public void seek(long pos) throws IOException {
-        int newBufferIndex = (int) (pos / Constants.BUFFER_SIZE);
+        int newBufferIndex = (int) (pos / bufferSize);
         if (newBufferIndex != currentBufferIndex) {
+            //the new buffer is bound by the next read, seeking around does not fetch anything
             currentBufferIndex = newBufferIndex;
-            setCurrentBuffer();
+            currentBuffer = null;
+            bufferLength = 0;
         }
-        bufferPosition = (int) (pos % Constants.BUFFER_SIZE);
+        bufferPosition = (int) (pos % bufferSize);
         if (getFilePointer() > length()) {
             throw new EOFException("seek beyond EOF: pos=" + getFilePointer() + " vs length=" + length() + ": " + this);
         }
@@ -111,15 +141,56 @@ public class RedisInputStream extends IndexInput implements Cloneable {
 
     @Override
     public void close() {
-        // NOOP
+        //clones and slices become invalid together with the input they come from, only that one is tracked
+        if (closeListener != null) {
+            closeListener.accept(this);
+            closeListener = null;
+        }
         redisFile = null;
     }
 
+    @Override
+    public RedisInputStream clone() {
+        RedisInputStream clone = (RedisInputStream) super.clone();
+        clone.closeListener = null;
+        if (workingBuffer != null) {
+            //the working buffer is refilled by this input, so the clone decodes the block again into its own one
+            clone.workingBuffer = null;
+            clone.currentBuffer = null;
+            clone.bufferLength = 0;
+        } else if (currentBuffer != null) {
+            //the clone moves the position of its buffer on its own
+            clone.currentBuffer = currentBuffer.duplicate();
+        }
+        return clone;
+    }
+
     @Override
     public long length() {
         return this.length;
     }
 
+    /**
+     * Return the memory usage of this object in bytes. Negative values are illegal.
+     */
+    @Override
+    public long ramBytesUsed() {
+        RedisFile file = redisFile;
+        byte[] buffer = workingBuffer;
+        return (file == null ? 0 : file.ramBytesUsed()) + (buffer == null ? 0 : buffer.length);
+    }
+
+    /**
+     * Returns nested resources of this class.
+     * The result should be a point-in-time snapshot (to avoid race conditions).
+     *
+     * @see org.apache.lucene.util.Accountables
+     */
+    @Override
+    public Collection<Accountable> getChildResources() {
+        return Collections.emptyList();
+    }
+
     @Override
     public IndexInput slice(String sliceDescription, final long offset, final long sliceLength) throws IOException {
         if (offset < 0 || sliceLength < 0 || offset + sliceLength > this.length) {
@@ -1,14 +1,31 @@
 package cn.codepub.redis.directory.io;
 
-import cn.codepub.redis.directory.RedisDirectory;
+import cn.codepub.redis.directory.FileMetadata;
 import cn.codepub.redis.directory.RedisFile;
+import cn.codepub.redis.directory.codec.CodecPolicy;
+import cn.codepub.redis.directory.jfr.IoEventKind;
+import cn.codepub.redis.directory.jfr.IoEvents;
+import cn.codepub.redis.directory.jfr.IoTrace;
+import cn.codepub.redis.directory.util.BufferSizePolicy;
 import cn.codepub.redis.directory.util.Constants;
+import com.google.common.util.concurrent.Uninterruptibles;
 import lombok.extern.log4j.Log4j2;
 import org.apache.lucene.store.BufferedChecksum;
+import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.Accountable;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 
@@ -27,11 +44,31 @@ import java.util.zip.Checksum;
  * Licence: Apache v2 License
  */
 @Log4j2
-public class RedisOutputStream extends IndexOutput {
+public class RedisOutputStream extends IndexOutput implements Accountable {
     private InputOutputStream inputOutputStream;
     private RedisFile redisFile;
     private String indexFileName;
+    //the blocks are keyed by the content id, so a rename only rewrites the metadata. The length is set at close
+    private final FileMetadata layout;
+    //the block size picked for the file by its extension
+    private final int bufferSize;
     private final Checksum crc;
+    //send every full block to redis at once, instead of holding the whole file until close
+    private final boolean streaming;
+    //writer threads the full blocks are handed to when streaming, null to send them from the writing thread
+    private final AsyncBlockWriter blockWriter;
+    //blocks of this file handed to the writer threads and not known to be saved yet
+    private final List<Future<?>> pendingBlocks = new ArrayList<>();
+    //a streamed block failed, the file is never published and its blocks are deleted at close
+    private boolean failed;
+    //told when the output is closed, may be null
+    private Consumer<RedisOutputStream> closeListener;
+    //the metadata saved at close, null until the file is published
+    private FileMetadata published;
+    //the context the output was created with, recorded with the save
+    private IOContext context = IOContext.DEFAULT;
+    //the token of the writer which created the output, null if it is not fenced
+    private FencingToken fencingToken;
     private byte[] currentBuffer;
     private int currentBufferIndex;
     private int bufferPosition;//记录当前buffer写到哪里了
@@ -39,16 +76,58 @@ public class RedisOutputStream extends IndexOutput {
     private int bufferLength;//记录当前buffer的长度
 
     public RedisOutputStream(String indexFileName, InputOutputStream inputOutputStream) {
-        this(indexFileName, inputOutputStream, true);
+        this(indexFileName, inputOutputStream, null);
     }
 
-    private RedisOutputStream(String indexFileName, InputOutputStream inputOutputStream, boolean checksum) {
+    public RedisOutputStream(String indexFileName, InputOutputStream inputOutputStream, AsyncBlockWriter blockWriter) {
+        this(indexFileName, inputOutputStream, true, Constants.STREAM_OUTPUT, blockWriter);
+    }
+
+    public RedisOutputStream(String indexFileName, InputOutputStream inputOutputStream, AsyncBlockWriter blockWriter,
+                             Consumer<RedisOutputStream> closeListener) {
+        this(indexFileName, inputOutputStream, blockWriter);
+        this.closeListener = closeListener;
+    }
+
+    public RedisOutputStream(String indexFileName, InputOutputStream inputOutputStream, AsyncBlockWriter blockWriter,
+                             IOContext context, FencingToken fencingToken, Consumer<RedisOutputStream> closeListener) {
+        this(indexFileName, inputOutputStream, true, streams(context), blockWriter);
+        this.closeListener = closeListener;
+        this.context = context;
+        this.fencingToken = fencingToken;
+    }
+
+    /**
+     * @return true if the blocks are sent while writing, a large flush or merge does so instead of holding its files on the heap
+     * until close, a small flush saves each file in one go
+     */
+    private static boolean streams(IOContext context) {
+        if (Constants.STREAM_OUTPUT || context == null) {
+            return Constants.STREAM_OUTPUT;
+        }
+        long expectedSize = 0;
+        if (context.flushInfo != null) {
+            expectedSize = context.flushInfo.estimatedSegmentSize;
+        } else if (context.mergeInfo != null) {
+            expectedSize = context.mergeInfo.estimatedMergeBytes;
+        }
+        return expectedSize >= Constants.STREAM_OUTPUT_MIN_SIZE;
+    }
+
+    private RedisOutputStream(String indexFileName, InputOutputStream inputOutputStream, boolean checksum, boolean streaming,
+                              AsyncBlockWriter blockWriter) {
         super(indexFileName);
         this.currentBufferIndex = -1;
         this.currentBuffer = null;
         this.indexFileName = indexFileName;
+        //the codec and block size are picked by the file extension, the blocks say by themselves if the codec was worth it
+        this.bufferSize = BufferSizePolicy.getDefault().getBufferSize(indexFileName);
+        this.layout = new FileMetadata(0, FileMetadata.newContentId(indexFileName), Constants.KEY_PER_FILE, Constants
+                .KEY_STRIPES, CodecPolicy.getDefault().getCodec(indexFileName).getId(), bufferSize);
         this.redisFile = new RedisFile();
         this.inputOutputStream = inputOutputStream;
+        this.streaming = streaming;
+        this.blockWriter = blockWriter;
         if (checksum) {
             crc = new BufferedChecksum(new CRC32());
         } else {
@@ -63,20 +142,143 @@ public class RedisOutputStream extends IndexOutput {
      */
     @Override
     public void close() throws IOException {
-        flushBuffers();
+        //when streaming only the last block and the metadata are left to save
+        try (IoTrace trace = IoEvents.begin(IoEventKind.SAVE_FILE, indexFileName, layout, inputOutputStream, context)) {
+            if (streaming) {
+                finishStreaming();
+            } else {
+                flushBuffers();
+            }
+            trace.setBlocks(0, currentBufferIndex + 1);
+            trace.setBytes(getFilePointer());
+        } finally {
+            if (closeListener != null) {
+                closeListener.accept(this);
+                closeListener = null;
+            }
+        }
+    }
+
+    /**
+     * send the last block and then publish the file metadata, so readers never see the file before all its blocks
+     */
+    private void finishStreaming() throws IOException {
+        //the blocks sent so far, they are under the fresh content id only
+        long streamedLength = (long) (currentBufferIndex + 1) * bufferSize;
+        if (failed) {
+            discardBlocks(streamedLength);
+            throw new IOException("Save block of " + indexFileName + " failed, the file is not published!");
+        }
+        setFileLength();
+        try {
+            if (currentBuffer != null) {
+                //the last block only keeps the written bytes
+                sendBlock(currentBufferIndex, Arrays.copyOf(currentBuffer, bufferPosition));
+            }
+            //only the blocks of this file are waited for, not everything in flight
+            for (Future<?> pendingBlock : pendingBlocks) {
+                awaitBlock(pendingBlock);
+            }
+            pendingBlocks.clear();
+            FileMetadata metadata = layout.withLength(redisFile.getFileLength());
+            inputOutputStream.saveFileMetadata(Constants.DIRECTORY_METADATA, indexFileName, metadata, fencingToken);
+            published = metadata;
+        } catch (IOException | RuntimeException e) {
+            discardBlocks(streamedLength);
+            throw e;
+        }
+        currentBuffer = null;
+        redisFile = null;
+    }
+
+    private void sendBlock(int blockIndex, byte[] block) throws IOException {
+        try {
+            if (blockWriter == null) {
+                inputOutputStream.saveBlock(Constants.FILE_METADATA, layout, blockIndex, block);
+                return;
+            }
+            //report a failed block while still writing, and keep the list down to the blocks in flight
+            for (Iterator<Future<?>> iterator = pendingBlocks.iterator(); iterator.hasNext(); ) {
+                Future<?> pendingBlock = iterator.next();
+                if (pendingBlock.isDone()) {
+                    awaitBlock(pendingBlock);
+                    iterator.remove();
+                }
+            }
+            pendingBlocks.add(blockWriter.saveBlock(Constants.FILE_METADATA, layout, blockIndex, block));
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Delete the blocks saved for a file which is not published, no metadata refers to them so nothing else ever would. The
+     * blocks still in flight are waited for first, else they would land after the delete
+     *
+     * @param length the bytes of the blocks which may have been saved
+     */
+    private void discardBlocks(long length) {
+        for (Future<?> pendingBlock : pendingBlocks) {
+            try {
+                Uninterruptibles.getUninterruptibly(pendingBlock);
+            } catch (ExecutionException e) {
+                //reported already, or the one being reported
+            }
+        }
+        pendingBlocks.clear();
+        try {
+            inputOutputStream.deleteBlocks(Constants.FILE_METADATA, layout.withLength(length));
+        } catch (RuntimeException e) {
+            log.error("Delete the blocks of unpublished file " + indexFileName + " failed!", e);
+        }
+    }
+
+    private void awaitBlock(Future<?> pendingBlock) throws IOException {
+        try {
+            pendingBlock.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while saving " + indexFileName);
+        } catch (ExecutionException e) {
+            throw new IOException("Save block of " + indexFileName + " failed!", e.getCause());
+        }
     }
 
     private void flushBuffers() {
         //先flush刷新索引文件长度
         setFileLength();
         List<byte[]> buffers = redisFile.getBuffers();
-        inputOutputStream.saveFile(Constants.DIRECTORY_METADATA, Constants.FILE_METADATA, indexFileName, buffers, redisFile
-                .getFileLength());
-        RedisDirectory.getFilesMap().remove(indexFileName);
-        RedisDirectory.getSizeInBytes().getAndAdd(-redisFile.ramBytesUsed());
+        if (!buffers.isEmpty()) {
+            //the last block only keeps the written bytes, large blocks would else store a lot of padding
+            int last = buffers.size() - 1;
+            buffers.set(last, Arrays.copyOf(buffers.get(last), (int) (redisFile.getFileLength() - (long) last * bufferSize)));
+        }
+        long length = redisFile.getFileLength();
+        FileMetadata metadata = layout.withLength(length);
+        try {
+            inputOutputStream.saveFile(Constants.DIRECTORY_METADATA, Constants.FILE_METADATA, indexFileName, buffers, metadata,
+                    fencingToken);
+            published = metadata;
+        } catch (RuntimeException e) {
+            //the metadata is saved last, the blocks saved before the failure belong to nobody
+            discardBlocks(length);
+            throw e;
+        }
         redisFile = null;
     }
 
+    public String getIndexFileName() {
+        return indexFileName;
+    }
+
+    /**
+     * @return the metadata the file was published with, null if it is not closed or the save failed
+     */
+    public FileMetadata getPublished() {
+        return published;
+    }
+
     /**
      * update file length
      */
@@ -99,14 +301,34 @@ public class RedisOutputStream extends IndexOutput {
         currentBuffer[bufferPosition++] = b;
     }
 
-    private void switchCurrentBuffer() {
+    private void switchCurrentBuffer() throws IOException {
+        if (streaming) {
+            switchStreamingBuffer();
+            return;
+        }
         if (currentBufferIndex == redisFile.numBuffers()) {
-            currentBuffer = redisFile.addBuffer(Constants.BUFFER_SIZE);
+            currentBuffer = redisFile.addBuffer(bufferSize);
         } else {
             currentBuffer = redisFile.getBuffer(currentBufferIndex);
         }
         bufferPosition = 0;
-        bufferStart = (long) Constants.BUFFER_SIZE * (long) currentBufferIndex;
+        bufferStart = (long) bufferSize * (long) currentBufferIndex;
+        bufferLength = currentBuffer.length;
+    }
+
+    /**
+     * the previous block is full, send it and go on with a buffer for the new one
+     */
+    private void switchStreamingBuffer() throws IOException {
+        if (currentBuffer != null) {
+            sendBlock(currentBufferIndex - 1, currentBuffer);
+        }
+        //a block handed to the writer threads belongs to them, only a block sent by this thread can be refilled
+        if (currentBuffer == null || blockWriter != null) {
+            currentBuffer = new byte[bufferSize];
+        }
+        bufferPosition = 0;
+        bufferStart = (long) bufferSize * (long) currentBufferIndex;
         bufferLength = currentBuffer.length;
     }
 
@@ -146,6 +368,31 @@ public class RedisOutputStream extends IndexOutput {
         }
     }
 
+    /**
+     * Return the memory usage of this object in bytes. Negative values are illegal.
+     */
+    @Override
+    public long ramBytesUsed() {
+        RedisFile file = redisFile;
+        if (file == null) {
+            return 0;
+        }
+        //a streaming output only holds the block it is writing
+        byte[] buffer = currentBuffer;
+        return streaming ? (buffer == null ? 0 : buffer.length) : file.ramBytesUsed();
+    }
+
+    /**
+     * Returns nested resources of this class.
+     * The result should be a point-in-time snapshot (to avoid race conditions).
+     *
+     * @see org.apache.lucene.util.Accountables
+     */
+    @Override
+    public Collection<Accountable> getChildResources() {
+        return Collections.emptyList();
+    }
+
     @Override
     public String toString() {
         try {
@@ -1,33 +1,50 @@
 package cn.codepub.redis.directory.io;
 
+import cn.codepub.redis.directory.FileMetadata;
 import cn.codepub.redis.directory.Operations;
+import cn.codepub.redis.directory.jfr.IoEvents;
+import cn.codepub.redis.directory.jfr.IoTrace;
 import cn.codepub.redis.directory.util.CompressUtils;
 import cn.codepub.redis.directory.util.Constants;
-import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Response;
 import redis.clients.jedis.ShardedJedis;
-import redis.clients.jedis.ShardedJedisPipeline;
 import redis.clients.jedis.ShardedJedisPool;
-import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.Pool;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 
+import static cn.codepub.redis.directory.codec.BlockCodecs.decode;
+import static cn.codepub.redis.directory.codec.BlockCodecs.encode;
 import static cn.codepub.redis.directory.util.CompressUtils.compressFilter;
-import static cn.codepub.redis.directory.util.CompressUtils.uncompressFilter;
 import static cn.codepub.redis.directory.util.FileBlocksUtils.getBlockName;
-import static cn.codepub.redis.directory.util.FileBlocksUtils.getBlockSize;
 
 /**
  * <p>
  * Created by wangxu on 2016/12/30 16:15.
  * </p>
  * <p>
- * Description: Using for Sharded Jedis
+ * Description: Using for Sharded Jedis. Blocks spread over the shards when a file keeps them in keys of its own, the block
+ * commands are grouped by shard and the shards are pipelined in parallel. The file lengths stay in one key, so on one shard
  * </p>
  *
  * @author Wang Xu
@@ -39,6 +56,9 @@ import static cn.codepub.redis.directory.util.FileBlocksUtils.getBlockSize;
 @Log4j2
 public class ShardedJedisPoolStream implements InputOutputStream {
     private ShardedJedisPool shardedJedisPool;
+    //the pipelines of the shards other than the first one of a request run here
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("redis-shard-pipeline-%d").build());
 
     private ShardedJedis getShardedJedis() {
         return shardedJedisPool.getResource();
@@ -67,8 +87,51 @@ public class ShardedJedisPoolStream implements InputOutputStream {
         return hget;
     }
 
+    @Override
+    public void awaitDurable(int replicas, boolean aof, long timeoutMillis) throws IOException {
+        ShardedJedis shardedJedis = getShardedJedis();
+        try {
+            //the connection of a shard writes any key given to it, the shard key only matters to the sharded client
+            List<GroupCommit.Barrier> barriers = new ArrayList<>();
+            for (Jedis shard : shardedJedis.getAllShards()) {
+                barriers.add(() -> SyncBarrier.await(shard, SyncBarrier.BARRIER_KEY.getBytes(), replicas, aof, timeoutMillis));
+            }
+            SyncBarrier.awaitAll(executor, barriers);
+        } finally {
+            shardedJedis.close();
+        }
+    }
+
+    @Override
+    public Object eval(byte[] script, List<byte[]> keys, List<byte[]> args) {
+        ShardedJedis shardedJedis = getShardedJedis();
+        try {
+            //the keys of a script share one shard only if they share the shard key, the first key picks it
+            return shardedJedis.getShard(keys.get(0)).eval(script, keys, args);
+        } finally {
+            shardedJedis.close();
+        }
+    }
+
+    @Override
+    public void subscribe(byte[] channel, BinaryJedisPubSub listener) {
+        ShardedJedis shardedJedis = getShardedJedis();
+        try {
+            //publish runs on the shard of the channel too, see PUBLISH_SCRIPT
+            shardedJedis.getShard(channel).subscribe(listener, channel);
+        } finally {
+            shardedJedis.close();
+        }
+    }
+
+    @Override
+    public List<Pool<?>> getPools() {
+        return Collections.singletonList(shardedJedisPool);
+    }
+
     @Override
     public void close() throws IOException {
+        executor.shutdown();
         if (shardedJedisPool != null) {
             shardedJedisPool.close();
         }
@@ -101,103 +164,171 @@ public class ShardedJedisPoolStream implements InputOutputStream {
     }
 
     /**
-     * Use transactions to delete index file
+     * Pipeline the delete of the blocks of index file on the shards owning them, one UNLINK per hash if they live in hashes of
+     * their own, else one hdel per block
      *
-     * @param fileLengthKey the key using for hash file length
-     * @param fileDataKey   the key using for hash file data
-     * @param field         the hash field
-     * @param blockSize     the index file data block size
+     * @param fileDataKey the shared key using for hash file data
+     * @param metadata    the metadata of the index file
      */
     @Override
-    public void deleteFile(String fileLengthKey, String fileDataKey, String field, long blockSize) {
+    public void deleteBlocks(String fileDataKey, FileMetadata metadata) {
         ShardedJedis shardedJedis = getShardedJedis();
-        ShardedJedisPipeline pipelined = shardedJedis.pipelined();
-        //delete file length
-        pipelined.hdel(fileLengthKey.getBytes(), field.getBytes());
-        //delete file content
-        for (int i = 0; i < blockSize; i++) {
-            byte[] blockName = getBlockName(field, i);
-            pipelined.hdel(fileDataKey.getBytes(), blockName);
-        }
-        pipelined.sync();
-        shardedJedis.close();
+        try {
+            if (metadata.isOwnKey()) {
+                //the sharded pipeline has no scripts, each hash is unlinked in the pipeline of its shard
+                List<byte[]> keys = metadata.getFileDataKeys(fileDataKey).stream().map(String::getBytes).collect(Collectors
+                        .toList());
+                pipelined(shardedJedis, keys, (pipeline, i) -> pipeline.eval(UNLINK_SCRIPT, 1, keys.get(i)));
+                return;
+            }
+            //delete file content
+            List<byte[]> keys = Collections.nCopies((int) metadata.getBlockSize(), fileDataKey.getBytes());
+            pipelined(shardedJedis, keys, (pipeline, i) -> pipeline.hdel(keys.get(i), getBlockName(metadata.getContentId(), i)));
+        } finally {
+            shardedJedis.close();
+        }
     }
 
-    /**
-     * Use transactions to add index file and then delete the old one
-     *
-     * @param fileLengthKey the key using for hash file length
-     * @param fileDataKey   the key using for hash file data
-     * @param oldField      the old hash field
-     * @param newField      the new hash field
-     * @param values        the data values of the old hash field
-     * @param fileLength    the data length of the old hash field
-     */
     @Override
-    public void rename(String fileLengthKey, String fileDataKey, String oldField, String newField, List<byte[]> values, long
-            fileLength) {
+    public void saveFile(String fileLengthKey, String fileDataKey, String fileName, List<byte[]> values, FileMetadata
+            metadata, FencingToken fencingToken, Operations operations) {
         ShardedJedis shardedJedis = getShardedJedis();
-        ShardedJedisPipeline pipelined = shardedJedis.pipelined();
-        //add new file length
-        pipelined.hset(fileLengthKey.getBytes(), newField.getBytes(), Longs.toByteArray(fileLength));
-        //add new file content
-        Long blockSize = getBlockSize(fileLength);
-        for (int i = 0; i < blockSize; i++) {
-            pipelined.hset(fileDataKey.getBytes(), getBlockName(newField, i), compressFilter(values.get(i)));
-        }
-        pipelined.sync();
-        shardedJedis.close();
+        try {
+            List<byte[]> keys = getBlockKeys(fileDataKey, metadata);
+            pipelined(shardedJedis, keys, (pipeline, i) -> pipeline.hset(keys.get(i), getBlockName(metadata.getContentId(), i),
+                    encode(metadata, values.get(i), operations)));
+        } finally {
+            //saveFileMetadata borrows a connection itself, holding this one meanwhile could drain the pool
+            shardedJedis.close();
+        }
+        //file length at last, so the file is not visible before all its blocks. The key of the file lengths always hashes to
+        //the same shard
+        saveFileMetadata(fileLengthKey, fileName, metadata, fencingToken);
         values.clear();
-        deleteFile(fileLengthKey, fileDataKey, oldField, blockSize);
     }
 
     @Override
-    public void saveFile(String fileLengthKey, String fileDataKey, String fileName, List<byte[]> values, long fileLength) {
+    public List<byte[]> loadFileOnce(String fileDataKey, FileMetadata metadata, Operations operations) {
+        return loadBlocks(fileDataKey, metadata, 0, (int) metadata.getBlockSize(), operations);
+    }
+
+    @Override
+    public List<byte[]> loadBlocks(String fileDataKey, FileMetadata metadata, int from, int to, Operations operations) {
         ShardedJedis shardedJedis = getShardedJedis();
-        ShardedJedisPipeline pipelined = shardedJedis.pipelined();
-        pipelined.hset(fileLengthKey.getBytes(), fileName.getBytes(), Longs.toByteArray(fileLength));
-        Long blockSize = getBlockSize(fileLength);
-        for (int i = 0; i < blockSize; i++) {
-            pipelined.hset(fileDataKey.getBytes(), getBlockName(fileName, i), compressFilter(values.get(i)));
-            if (i % Constants.SYNC_COUNT == 0) {
-                pipelined.sync();
-                pipelined = shardedJedis.pipelined();
+        try {
+            List<byte[]> keys = getBlockKeys(fileDataKey, metadata, from, to);
+            List<byte[]> blocks = pipelined(shardedJedis, keys, (pipeline, i) -> pipeline.hget(keys.get(i), getBlockName
+                    (metadata.getContentId(), from + i)));
+            return blocks.stream().map(block -> decode(metadata, block, operations)).collect(Collectors.toList());
+        } finally {
+            shardedJedis.close();
+        }
+    }
+
+    private List<byte[]> getBlockKeys(String fileDataKey, FileMetadata metadata) {
+        return getBlockKeys(fileDataKey, metadata, 0, (int) metadata.getBlockSize());
+    }
+
+    /**
+     * @return the keys of the blocks from from to to, key i is the one of block from + i
+     */
+    private List<byte[]> getBlockKeys(String fileDataKey, FileMetadata metadata, int from, int to) {
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            keys.add(metadata.getFileDataKey(fileDataKey, i).getBytes());
+        }
+        return keys;
+    }
+
+    /**
+     * Send one command per key. The commands are grouped by the shard of their key, every group is sent as pipelines of
+     * SYNC_COUNT commands on the connection to its shard and the groups run in parallel. It returns only once every group
+     * is done, failed or not, so the connections are not given back to the pool while a shard thread still uses them
+     *
+     * @param shardedJedis the connections to all shards, each one is used by a single thread
+     * @param keys         the key of every command
+     * @param command      queue the command of the given index on the pipeline of its shard
+     * @return the reply of every command
+     */
+    private <T> List<T> pipelined(ShardedJedis shardedJedis, List<byte[]> keys, BiFunction<Pipeline, Integer, Response<T>>
+            command) {
+        Object[] replies = new Object[keys.size()];
+        Map<Jedis, List<Integer>> groups = new IdentityHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            groups.computeIfAbsent(shardedJedis.getShard(keys.get(i)), k -> new ArrayList<>()).add(i);
+        }
+        List<Future<?>> others = new ArrayList<>();
+        Map.Entry<Jedis, List<Integer>> first = null;
+        for (Map.Entry<Jedis, List<Integer>> group : groups.entrySet()) {
+            if (first == null) {
+                first = group;
+            } else {
+                others.add(executor.submit(() -> pipelineGroup(group.getKey(), group.getValue(), command, replies)));
             }
         }
-        pipelined.sync();
-        shardedJedis.close();
-        values.clear();
+        JedisException failure;
+        try {
+            //the calling thread takes one shard itself instead of waiting idle
+            if (first != null) {
+                pipelineGroup(first.getKey(), first.getValue(), command, replies);
+            }
+        } finally {
+            failure = awaitAll(others);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        @SuppressWarnings("unchecked")
+        List<T> result = (List<T>) Arrays.asList(replies);
+        return result;
     }
 
-    @Override
-    public List<byte[]> loadFileOnce(String fileDataKey, String fileName, long blockSize) {
-        ShardedJedis shardedJedis = getShardedJedis();
-        ShardedJedisPipeline pipelined = shardedJedis.pipelined();
-        List<byte[]> res = new ArrayList<>();
-        List<Response<byte[]>> temps = new ArrayList<>();
-        int temp = 0;
-        //如果不分批次sync容易read time out和Java heap space
-        while (temp < blockSize) {
-            Response<byte[]> data = pipelined.hget(fileDataKey.getBytes(), getBlockName(fileName, temp));
-            temps.add(data);
-            if (temp % Constants.SYNC_COUNT == 0) {
-                pipelined.sync();
-                res.addAll(temps.stream().map(response -> uncompressFilter(response.get())).collect(Collectors.toList()));
-                temps.clear();
-                pipelined = shardedJedis.pipelined();
+    /**
+     * Wait for every shard thread, an interrupt is kept for the caller but does not cut the wait short
+     *
+     * @return the failure of the first shard which failed, null if none did
+     */
+    private static JedisException awaitAll(List<Future<?>> others) {
+        JedisException failure = null;
+        for (Future<?> other : others) {
+            try {
+                Uninterruptibles.getUninterruptibly(other);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = new JedisException(e.getCause());
+                }
             }
-            temp++;
         }
+        return failure;
+    }
+
+    private <T> void pipelineGroup(Jedis shard, List<Integer> indexes, BiFunction<Pipeline, Integer, Response<T>> command,
+                                   Object[] replies) {
+        List<Response<T>> responses = new ArrayList<>(indexes.size());
+        Pipeline pipelined = shard.pipelined();
+        for (int i = 0; i < indexes.size(); i++) {
+            responses.add(command.apply(pipelined, indexes.get(i)));
+            //如果不分批次sync容易read time out和Java heap space
+            if (i % Constants.SYNC_COUNT == 0) {
+                sync(pipelined);
+                pipelined = shard.pipelined();
+            }
+        }
+        sync(pipelined);
+        for (int i = 0; i < responses.size(); i++) {
+            replies[indexes.get(i)] = responses.get(i).get();
+        }
+    }
+
+    /**
+     * Send the queued commands and read their replies, recorded as a flight recorder event of the operation begun last
+     */
+    private static void sync(Pipeline pipelined) {
+        IoTrace trace = IoEvents.beginSync();
         try {
             pipelined.sync();
-        } catch (JedisConnectionException e) {
-            log.error("pipelined = {}, blockSize = {}!", pipelined.toString(), blockSize);
-            log.error("", e);
         } finally {
-            shardedJedis.close();
+            trace.close();
         }
-        res.addAll(temps.stream().map(response -> uncompressFilter(response.get())).collect(Collectors.toList()));
-        temps.clear();
-        return res;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,142 @@
+package cn.codepub.redis.directory.io;
+
+import cn.codepub.redis.directory.util.Constants;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.RedisInputStream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/10 14:20.
+ * </p>
+ * <p>
+ * Description: Durability barrier on one redis node. WAIT and WAITAOF only cover the writes of the connection they are sent
+ * on, so the barrier first writes a key of its own on that connection; the replication stream is ordered, so acknowledging
+ * that write acknowledges every write the node received before it, from any connection
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@Log4j2
+public final class SyncBarrier {
+    //the key written by the barriers of a directory
+    public static final String BARRIER_KEY = Constants.DIRECTORY_METADATA + ":sync";
+
+    private SyncBarrier() {
+    }
+
+    /**
+     * @param jedis         connection to the master node
+     * @param barrierKey    a key the node owns
+     * @param replicas      the number of replicas which must acknowledge the writes
+     * @param aof           also wait until the writes are fsynced to the append only file of the master and the replicas
+     * @param timeoutMillis how long to wait for the acknowledgements
+     * @throws IOException if fewer replicas acknowledge in time, or the append only file is not fsynced
+     */
+    public static void await(Jedis jedis, byte[] barrierKey, int replicas, boolean aof, long timeoutMillis) throws
+            IOException {
+        jedis.incr(barrierKey);
+        String node = jedis.getClient().getHost() + ":" + jedis.getClient().getPort();
+        if (aof) {
+            List<?> reply = (List<?>) sendCommand(jedis, "WAITAOF", "1", Integer.toString(replicas), Long.toString
+                    (timeoutMillis));
+            long local = (Long) reply.get(0);
+            long acknowledged = (Long) reply.get(1);
+            if (local < 1 || acknowledged < replicas) {
+                throw new IOException("Writes of " + node + " fsynced by " + local + " master and " + acknowledged + " of " +
+                        replicas + " replicas in " + timeoutMillis + "ms");
+            }
+        } else if (replicas > 0) {
+            long acknowledged = jedis.waitReplicas(replicas, timeoutMillis);
+            if (acknowledged < replicas) {
+                throw new IOException("Writes of " + node + " acknowledged by " + acknowledged + " of " + replicas + " " +
+                        "replicas in " + timeoutMillis + "ms");
+            }
+        }
+    }
+
+    /**
+     * Run the barriers of several nodes at once, the calling thread takes the first one itself
+     *
+     * @param executor runs the barriers of the other nodes
+     * @param barriers one barrier per master node
+     * @throws IOException if a barrier failed
+     */
+    static void awaitAll(ExecutorService executor, List<GroupCommit.Barrier> barriers) throws IOException {
+        List<Future<?>> others = new ArrayList<>();
+        for (int i = 1; i < barriers.size(); i++) {
+            GroupCommit.Barrier barrier = barriers.get(i);
+            others.add(executor.submit(() -> {
+                barrier.await();
+                return null;
+            }));
+        }
+        if (!barriers.isEmpty()) {
+            barriers.get(0).await();
+        }
+        for (Future<?> other : others) {
+            try {
+                other.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the barriers of the nodes");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Jedis has no WAITAOF (redis 7.2) yet and sends only the commands it knows, so this one goes out on the socket of the
+     * connection. No reply is pending on it after a command of Jedis returned, so the reply read here is the one of this
+     * command. If the command or its reply fails halfway the connection is closed, a reply coming late would be taken for the
+     * one of the next command; Jedis connects again on the next command
+     */
+    private static Object sendCommand(Jedis jedis, String... args) throws IOException {
+        StringBuilder command = new StringBuilder("*").append(args.length).append("\r\n");
+        for (String arg : args) {
+            command.append('$').append(arg.getBytes(StandardCharsets.UTF_8).length).append("\r\n").append(arg).append("\r\n");
+        }
+        try {
+            Socket socket = jedis.getClient().getSocket();
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(command.toString().getBytes(StandardCharsets.UTF_8));
+            outputStream.flush();
+            return Protocol.read(new RedisInputStream(socket.getInputStream()));
+        } catch (JedisDataException e) {
+            //an error reply, the connection is in step
+            throw new IOException(args[0] + " failed on " + jedis.getClient().getHost() + ", it needs redis 7.2 or later", e);
+        } catch (IOException | RuntimeException e) {
+            disconnect(jedis);
+            throw new IOException(args[0] + " failed on " + jedis.getClient().getHost() + ", the connection is closed", e);
+        }
+    }
+
+    private static void disconnect(Jedis jedis) {
+        try {
+            jedis.getClient().getSocket().close();
+        } catch (IOException | RuntimeException e) {
+            log.error("Close connection to " + jedis.getClient().getHost() + " failed!", e);
+        }
+    }
+}
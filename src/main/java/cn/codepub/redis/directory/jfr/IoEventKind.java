@@ -0,0 +1,28 @@
+package cn.codepub.redis.directory.jfr;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/19 09:10.
+ * </p>
+ * <p>
+ * Description: The kinds of redis I/O recorded as flight recorder events
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public enum IoEventKind {
+    //one block read on demand or into the block cache
+    BLOCK_FETCH,
+    //the replies of a pipeline read back, inside one of the others
+    PIPELINE_SYNC,
+    //a closed output saved, or its metadata published after streaming
+    SAVE_FILE,
+    //all blocks of a file loaded by openInput
+    LOAD_FILE,
+    RENAME,
+    DELETE
+}
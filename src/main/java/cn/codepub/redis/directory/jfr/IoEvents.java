@@ -0,0 +1,86 @@
+package cn.codepub.redis.directory.jfr;
+
+import cn.codepub.redis.directory.FileMetadata;
+import cn.codepub.redis.directory.io.InputOutputStream;
+import lombok.extern.log4j.Log4j2;
+import org.apache.lucene.store.IOContext;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/19 09:25.
+ * </p>
+ * <p>
+ * Description: Flight recorder events of the redis I/O, so a slow query or a stalled merge is lined up with GC and lock
+ * profiles in one recording. Every event has the file name and content id, the block range, the bytes, the backend and the
+ * IOContext of the caller; a pipeline sync takes them over from the operation it belongs to in the same thread. The events
+ * are cn.codepub.redis.directory.BlockFetch, PipelineSync, SaveFile, LoadFile, Rename and Delete, enable or disable them in
+ * the .jfc settings like any other. While none is recorded begin returns {@link IoTrace#NONE}, a flag check and no allocation.
+ * The flight recorder API came with java 11 and 8u262, on older JVMs nothing is recorded
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@Log4j2
+public final class IoEvents {
+    //null if the JVM has no flight recorder
+    private static final Tracer TRACER = loadTracer();
+
+    private IoEvents() {
+    }
+
+    private static Tracer loadTracer() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            //only loaded if there is a flight recorder, it refers to jdk.jfr
+            return (Tracer) Class.forName("cn.codepub.redis.directory.jfr.JfrTracer").getDeclaredConstructor()
+                    .newInstance();
+        } catch (ClassNotFoundException e) {
+            log.debug("No flight recorder, redis I/O events are off");
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            log.error("Flight recorder events of redis I/O are off!", e);
+        }
+        return null;
+    }
+
+    /**
+     * @param kind     what the operation does
+     * @param fileName the index file name
+     * @param metadata the metadata of the file, may be null
+     * @param backend  the stream the operation goes through
+     * @param context  the IOContext of the caller, null if lucene gives none
+     * @return the trace to close once the operation is done
+     */
+    public static IoTrace begin(IoEventKind kind, String fileName, FileMetadata metadata, InputOutputStream backend,
+                                IOContext context) {
+        return TRACER == null ? IoTrace.NONE : TRACER.begin(kind, fileName, metadata, backend, context);
+    }
+
+    /**
+     * The backends begin it around every pipeline sync, whether the backend is metered or not
+     *
+     * @return the trace of a pipeline sync, it belongs to the operation begun last in this thread
+     */
+    public static IoTrace beginSync() {
+        return TRACER == null ? IoTrace.NONE : TRACER.beginSync();
+    }
+
+    /**
+     * @return e.g. READ, READONCE, MERGE or FLUSH
+     */
+    static String describe(IOContext context) {
+        if (context == null) {
+            return "";
+        }
+        return context.readOnce ? "READONCE" : context.context.name();
+    }
+
+    interface Tracer {
+        IoTrace begin(IoEventKind kind, String fileName, FileMetadata metadata, InputOutputStream backend, IOContext context);
+
+        IoTrace beginSync();
+    }
+}
@@ -0,0 +1,49 @@
+package cn.codepub.redis.directory.jfr;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/19 09:10.
+ * </p>
+ * <p>
+ * Description: One redis operation being recorded, begun by {@link IoEvents} and committed as a flight recorder event on close,
+ * so it is used in try-with-resources. While nothing records it is {@link #NONE} and every method does nothing
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public interface IoTrace extends AutoCloseable {
+    IoTrace NONE = new IoTrace() {
+    };
+
+    /**
+     * @param from the first block number
+     * @param to   the block number after the last one
+     */
+    default void setBlocks(long from, long to) {
+    }
+
+    default void setBytes(long bytes) {
+    }
+
+    /**
+     * @param blocks the blocks moved, their lengths are summed up only if recording
+     */
+    default void setBytes(List<byte[]> blocks) {
+    }
+
+    /**
+     * @param target the new name of a renamed file
+     */
+    default void setTarget(String target) {
+    }
+
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,210 @@
+package cn.codepub.redis.directory.jfr;
+
+import cn.codepub.redis.directory.FileMetadata;
+import cn.codepub.redis.directory.io.InputOutputStream;
+import cn.codepub.redis.directory.metrics.MeteredInputOutputStream;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.apache.lucene.store.IOContext;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/19 10:05.
+ * </p>
+ * <p>
+ * Description: The flight recorder side of {@link IoEvents}, the only class referring to jdk.jfr, loaded by name so the
+ * directory still runs on a JVM without it. Whether an event is enabled is a field read on its cached type, an event is only
+ * created if it is
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+final class JfrTracer implements IoEvents.Tracer {
+    private static final String CATEGORY = "Redis Directory";
+    private static final IoEventKind[] KINDS = IoEventKind.values();
+    private final EventType[] types = new EventType[KINDS.length];
+    //the file operation a pipeline sync of this thread belongs to
+    private final ThreadLocal<Trace> current = new ThreadLocal<>();
+
+    JfrTracer() {
+        for (IoEventKind kind : KINDS) {
+            types[kind.ordinal()] = EventType.getEventType(newEvent(kind).getClass());
+        }
+    }
+
+    private static RedisIoEvent newEvent(IoEventKind kind) {
+        switch (kind) {
+            case BLOCK_FETCH:
+                return new BlockFetchEvent();
+            case PIPELINE_SYNC:
+                return new PipelineSyncEvent();
+            case SAVE_FILE:
+                return new SaveFileEvent();
+            case LOAD_FILE:
+                return new LoadFileEvent();
+            case RENAME:
+                return new RenameEvent();
+            default:
+                return new DeleteEvent();
+        }
+    }
+
+    private static String backendName(InputOutputStream backend) {
+        if (backend instanceof MeteredInputOutputStream) {
+            backend = ((MeteredInputOutputStream) backend).getDelegate();
+        }
+        return backend == null ? "" : backend.getClass().getSimpleName();
+    }
+
+    @Override
+    public IoTrace begin(IoEventKind kind, String fileName, FileMetadata metadata, InputOutputStream backend,
+                         IOContext context) {
+        if (!types[kind.ordinal()].isEnabled()) {
+            return IoTrace.NONE;
+        }
+        RedisIoEvent event = newEvent(kind);
+        event.fileName = fileName;
+        event.contentId = metadata == null ? "" : metadata.getContentId();
+        event.backend = backendName(backend);
+        event.context = IoEvents.describe(context);
+        Trace trace = new Trace(event, current.get());
+        current.set(trace);
+        event.begin();
+        return trace;
+    }
+
+    @Override
+    public IoTrace beginSync() {
+        if (!types[IoEventKind.PIPELINE_SYNC.ordinal()].isEnabled()) {
+            return IoTrace.NONE;
+        }
+        RedisIoEvent event = new PipelineSyncEvent();
+        Trace owner = current.get();
+        if (owner != null) {
+            event.fileName = owner.event.fileName;
+            event.contentId = owner.event.contentId;
+            event.backend = owner.event.backend;
+            event.context = owner.event.context;
+        }
+        event.begin();
+        //a sync belongs to its owner and never owns another
+        return new Trace(event, null);
+    }
+
+    private final class Trace implements IoTrace {
+        private final RedisIoEvent event;
+        private final Trace outer;
+
+        private Trace(RedisIoEvent event, Trace outer) {
+            this.event = event;
+            this.outer = outer;
+        }
+
+        @Override
+        public void setBlocks(long from, long to) {
+            event.fromBlock = from;
+            event.toBlock = to;
+        }
+
+        @Override
+        public void setBytes(long bytes) {
+            event.bytes = bytes;
+        }
+
+        @Override
+        public void setBytes(List<byte[]> blocks) {
+            long bytes = 0;
+            for (byte[] block : blocks) {
+                bytes += block == null ? 0 : block.length;
+            }
+            event.bytes = bytes;
+        }
+
+        @Override
+        public void setTarget(String target) {
+            if (event instanceof RenameEvent) {
+                ((RenameEvent) event).target = target;
+            }
+        }
+
+        @Override
+        public void close() {
+            event.commit();
+            if (current.get() == this) {
+                if (outer == null) {
+                    current.remove();
+                } else {
+                    current.set(outer);
+                }
+            }
+        }
+    }
+
+    @Category(CATEGORY)
+    abstract static class RedisIoEvent extends Event {
+        @Label("File Name")
+        String fileName;
+        @Label("Content Id")
+        String contentId;
+        @Label("From Block")
+        long fromBlock;
+        @Label("To Block")
+        @Description("The block after the last one")
+        long toBlock;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Backend")
+        String backend;
+        @Label("IO Context")
+        @Description("The IOContext lucene passed, READ, READONCE, MERGE, FLUSH or DEFAULT")
+        String context;
+    }
+
+    @Name("cn.codepub.redis.directory.BlockFetch")
+    @Label("Redis Block Fetch")
+    @Description("One block read from redis on demand or into the block cache")
+    static final class BlockFetchEvent extends RedisIoEvent {
+    }
+
+    @Name("cn.codepub.redis.directory.PipelineSync")
+    @Label("Redis Pipeline Sync")
+    @Description("The replies of a pipeline read back, with the file of the operation it belongs to")
+    static final class PipelineSyncEvent extends RedisIoEvent {
+    }
+
+    @Name("cn.codepub.redis.directory.SaveFile")
+    @Label("Redis Save File")
+    @Description("A closed output saved to redis, or the rest of a streamed one and its metadata")
+    static final class SaveFileEvent extends RedisIoEvent {
+    }
+
+    @Name("cn.codepub.redis.directory.LoadFile")
+    @Label("Redis Load File")
+    @Description("All blocks of a file loaded by openInput")
+    static final class LoadFileEvent extends RedisIoEvent {
+    }
+
+    @Name("cn.codepub.redis.directory.Rename")
+    @Label("Redis Rename")
+    static final class RenameEvent extends RedisIoEvent {
+        @Label("Target")
+        String target;
+    }
+
+    @Name("cn.codepub.redis.directory.Delete")
+    @Label("Redis Delete")
+    static final class DeleteEvent extends RedisIoEvent {
+    }
+}
@@ -0,0 +1,298 @@
+package cn.codepub.redis.directory.metrics;
+
+import cn.codepub.redis.directory.cache.BlockCache;
+import cn.codepub.redis.directory.io.InputOutputStream;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.util.Pool;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/18 10:45.
+ * </p>
+ * <p>
+ * Description: The metrics of one RedisDirectory: every operation on redis timed by {@link MeteredInputOutputStream}, the
+ * bytes moved, the blocks every openInput loaded, the hits of the block cache and the waits for pooled connections. Published
+ * over JMX as cn.codepub.redis.directory:type=Directory,name=directory metadata-n, with an MBean per operation below it, so a
+ * slow query is told apart from slow redis by JConsole or any JMX agent. The time spent in the codecs is counted apart from
+ * the time spent on redis
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@Log4j2
+public class DirectoryMetrics implements DirectoryMetricsMBean, Closeable {
+    public static final String DOMAIN = "cn.codepub.redis.directory";
+    //directories on the same metadata key in one process get their own names
+    private static final Map<String, AtomicInteger> INSTANCES = new ConcurrentHashMap<>();
+    @Getter
+    private final String name;
+    private final Map<String, OperationStats> operations = new ConcurrentSkipListMap<>();
+    private final BlockCache blockCache;
+    //the backend, asked for its pools
+    private final InputOutputStream inputOutputStream;
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    //blocks loaded per openInput
+    private final Histogram openInputs = new Histogram();
+    private final LongAdder openInputsLoadingFile = new LongAdder();
+    private final LongAdder compressedBlocks = new LongAdder();
+    private final LongAdder compressInputBytes = new LongAdder();
+    private final LongAdder compressOutputBytes = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressedBlocks = new LongAdder();
+    private final LongAdder decompressOutputBytes = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    /**
+     * @param directoryMetadata the directory metadata key of the directory
+     * @param blockCache        the block cache of the directory
+     * @param inputOutputStream the backend of the directory, its pools are reported
+     */
+    public DirectoryMetrics(String directoryMetadata, BlockCache blockCache, InputOutputStream inputOutputStream) {
+        //characters with a meaning in object names are replaced
+        this.name = directoryMetadata.replaceAll("[,=:\"*?\\s]", "_") + "-" + INSTANCES.computeIfAbsent(directoryMetadata, k ->
+                new AtomicInteger()).incrementAndGet();
+        this.blockCache = blockCache;
+        this.inputOutputStream = inputOutputStream;
+    }
+
+    /**
+     * @return the stats of the named operation, created on first use
+     */
+    public OperationStats operation(String operation) {
+        return operations.computeIfAbsent(operation, OperationStats::new);
+    }
+
+    public Collection<OperationStats> getOperationStats() {
+        return operations.values();
+    }
+
+    public void recordRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void recordWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * @param blocksLoaded the blocks openInput loaded from redis, 0 if the input reads cached blocks or fetches them on demand
+     */
+    public void recordOpenInput(long blocksLoaded) {
+        openInputs.record(blocksLoaded);
+        if (blocksLoaded > 0) {
+            openInputsLoadingFile.increment();
+        }
+    }
+
+    /**
+     * @param inputBytes  the length of the uncompressed block
+     * @param outputBytes the length of the block as stored
+     * @param nanos       the time spent compressing it
+     */
+    public void recordCompress(long inputBytes, long outputBytes, long nanos) {
+        compressNanos.add(nanos);
+        compressedBlocks.increment();
+        compressInputBytes.add(inputBytes);
+        compressOutputBytes.add(outputBytes);
+    }
+
+    /**
+     * @param outputBytes the length of the uncompressed block
+     * @param nanos       the time spent uncompressing it
+     */
+    public void recordDecompress(long outputBytes, long nanos) {
+        decompressNanos.add(nanos);
+        decompressedBlocks.increment();
+        decompressOutputBytes.add(outputBytes);
+    }
+
+    /**
+     * Publish this directory and the operations created so far in the platform MBean server. A failure is logged, the directory
+     * works the same without
+     */
+    public synchronized void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            String prefix = DOMAIN + ":type=Directory,name=" + name;
+            register(server, new ObjectName(prefix), this);
+            for (OperationStats stats : operations.values()) {
+                register(server, new ObjectName(prefix + ",operation=" + stats.getName()), stats);
+            }
+        } catch (JMException e) {
+            log.error("Register metrics of " + name + " failed!", e);
+        }
+    }
+
+    private void register(MBeanServer server, ObjectName objectName, Object mbean) throws JMException {
+        server.registerMBean(mbean, objectName);
+        registered.add(objectName);
+    }
+
+    /**
+     * Remove the MBeans of this directory
+     */
+    @Override
+    public synchronized void close() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : registered) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                log.debug("Unregister {} failed", objectName, e);
+            }
+        }
+        registered.clear();
+    }
+
+    @Override
+    public String[] getOperations() {
+        return operations.values().stream().map(OperationStats::toString).toArray(String[]::new);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getOpenInputs() {
+        return openInputs.getCount();
+    }
+
+    @Override
+    public long getOpenInputsLoadingFile() {
+        return openInputsLoadingFile.sum();
+    }
+
+    @Override
+    public double getMeanBlocksPerOpenInput() {
+        return openInputs.getMean();
+    }
+
+    @Override
+    public long getMaxBlocksPerOpenInput() {
+        return openInputs.getMax();
+    }
+
+    @Override
+    public long getCompressedBlocks() {
+        return compressedBlocks.sum();
+    }
+
+    @Override
+    public long getCompressInputBytes() {
+        return compressInputBytes.sum();
+    }
+
+    @Override
+    public long getCompressOutputBytes() {
+        return compressOutputBytes.sum();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long input = compressInputBytes.sum();
+        return input == 0 ? 1 : (double) compressOutputBytes.sum() / input;
+    }
+
+    @Override
+    public long getCompressMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(compressNanos.sum());
+    }
+
+    @Override
+    public long getDecompressedBlocks() {
+        return decompressedBlocks.sum();
+    }
+
+    @Override
+    public long getDecompressOutputBytes() {
+        return decompressOutputBytes.sum();
+    }
+
+    @Override
+    public long getDecompressMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(decompressNanos.sum());
+    }
+
+    @Override
+    public long getBlockCacheHits() {
+        return blockCache.stats().hitCount();
+    }
+
+    @Override
+    public long getBlockCacheMisses() {
+        return blockCache.stats().missCount();
+    }
+
+    @Override
+    public double getBlockCacheHitRate() {
+        return blockCache.stats().hitRate();
+    }
+
+    @Override
+    public long getBlockCacheEvictions() {
+        return blockCache.stats().evictionCount();
+    }
+
+    @Override
+    public long getBlockCacheBytes() {
+        return blockCache.ramBytesUsed();
+    }
+
+    private List<Pool<?>> getPools() {
+        return inputOutputStream.getPools();
+    }
+
+    @Override
+    public int getPoolActive() {
+        return getPools().stream().mapToInt(Pool::getNumActive).sum();
+    }
+
+    @Override
+    public int getPoolIdle() {
+        return getPools().stream().mapToInt(Pool::getNumIdle).sum();
+    }
+
+    @Override
+    public int getPoolWaiters() {
+        return getPools().stream().mapToInt(Pool::getNumWaiters).sum();
+    }
+
+    @Override
+    public long getPoolMeanBorrowWaitMillis() {
+        return getPools().stream().mapToLong(Pool::getMeanBorrowWaitTimeMillis).max().orElse(0);
+    }
+
+    @Override
+    public long getPoolMaxBorrowWaitMillis() {
+        return getPools().stream().mapToLong(Pool::getMaxBorrowWaitTimeMillis).max().orElse(0);
+    }
+}
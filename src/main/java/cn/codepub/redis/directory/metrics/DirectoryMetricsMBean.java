@@ -0,0 +1,102 @@
+package cn.codepub.redis.directory.metrics;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/18 10:45.
+ * </p>
+ * <p>
+ * Description: JMX view of one RedisDirectory, see {@link DirectoryMetrics}. The operations on redis have MBeans of their own
+ * below it
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public interface DirectoryMetricsMBean {
+    /**
+     * @return one line per operation on redis with its count, errors, median and 99th percentile
+     */
+    String[] getOperations();
+
+    /**
+     * @return the bytes of the blocks loaded from redis, uncompressed unless the block cache keeps them compressed
+     */
+    long getBytesRead();
+
+    /**
+     * @return the uncompressed bytes of the blocks saved to redis
+     */
+    long getBytesWritten();
+
+    long getOpenInputs();
+
+    /**
+     * @return the inputs whose whole file was loaded by openInput, the others read blocks of the cache or on demand
+     */
+    long getOpenInputsLoadingFile();
+
+    double getMeanBlocksPerOpenInput();
+
+    long getMaxBlocksPerOpenInput();
+
+    /**
+     * @return the blocks of compressed files saved, blocks not worth compressing included
+     */
+    long getCompressedBlocks();
+
+    /**
+     * @return the bytes of the blocks before they were compressed
+     */
+    long getCompressInputBytes();
+
+    /**
+     * @return the bytes of the blocks as stored, blocks not worth compressing count with their own length
+     */
+    long getCompressOutputBytes();
+
+    /**
+     * @return stored bytes per uncompressed byte, 1 if nothing is compressed
+     */
+    double getCompressionRatio();
+
+    long getCompressMillis();
+
+    /**
+     * @return the blocks of compressed files uncompressed as they were loaded, the compressed block cache uncompresses its
+     * blocks on every read and is not counted
+     */
+    long getDecompressedBlocks();
+
+    long getDecompressOutputBytes();
+
+    long getDecompressMillis();
+
+    long getBlockCacheHits();
+
+    long getBlockCacheMisses();
+
+    double getBlockCacheHitRate();
+
+    long getBlockCacheEvictions();
+
+    long getBlockCacheBytes();
+
+    /**
+     * @return the connections borrowed from the pools of the backend, 0 if it has none
+     */
+    int getPoolActive();
+
+    int getPoolIdle();
+
+    int getPoolWaiters();
+
+    /**
+     * @return the mean time a borrower waited for a connection, the largest mean of the pools
+     */
+    long getPoolMeanBorrowWaitMillis();
+
+    long getPoolMaxBorrowWaitMillis();
+}
@@ -0,0 +1,323 @@
+package cn.codepub.redis.directory.metrics;
+
+import cn.codepub.redis.directory.FileMetadata;
+import cn.codepub.redis.directory.Operations;
+import cn.codepub.redis.directory.codec.BlockCodecs;
+import cn.codepub.redis.directory.io.FencingToken;
+import cn.codepub.redis.directory.io.InputOutputStream;
+import lombok.Getter;
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.util.Pool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/18 11:20.
+ * </p>
+ * <p>
+ * Description: Wraps any backend and times every operation into the {@link DirectoryMetrics} of its directory, with the
+ * uncompressed block bytes and blocks saved and loaded. The overhead is two clock reads and a few increments per call, small
+ * beside the round trip to redis the call makes. The blocks are compressed and uncompressed here instead of in the backend,
+ * so the time spent in the codecs is counted apart from the time spent on redis. subscribe is not timed, it lasts as long as
+ * the subscription
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class MeteredInputOutputStream implements InputOutputStream {
+    @Getter
+    private final InputOutputStream delegate;
+    private final DirectoryMetrics metrics;
+    private final OperationStats hexists;
+    private final OperationStats hget;
+    private final OperationStats hdel;
+    private final OperationStats hset;
+    private final OperationStats hkeys;
+    private final OperationStats eval;
+    private final OperationStats publish;
+    private final OperationStats awaitDurable;
+    private final OperationStats getAllFileNames;
+    private final OperationStats getFileMetadata;
+    private final OperationStats saveFileMetadata;
+    private final OperationStats deleteFile;
+    private final OperationStats deleteFileMetadata;
+    private final OperationStats deleteBlocks;
+    private final OperationStats rename;
+    private final OperationStats saveFile;
+    private final OperationStats saveBlock;
+    private final OperationStats loadFileOnce;
+    private final OperationStats loadBlocks;
+    private final OperationStats loadBlock;
+
+    public MeteredInputOutputStream(InputOutputStream delegate, DirectoryMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.hexists = metrics.operation("hexists");
+        this.hget = metrics.operation("hget");
+        this.hdel = metrics.operation("hdel");
+        this.hset = metrics.operation("hset");
+        this.hkeys = metrics.operation("hkeys");
+        this.eval = metrics.operation("eval");
+        this.publish = metrics.operation("publish");
+        this.awaitDurable = metrics.operation("awaitDurable");
+        this.getAllFileNames = metrics.operation("getAllFileNames");
+        this.getFileMetadata = metrics.operation("getFileMetadata");
+        this.saveFileMetadata = metrics.operation("saveFileMetadata");
+        this.deleteFile = metrics.operation("deleteFile");
+        this.deleteFileMetadata = metrics.operation("deleteFileMetadata");
+        this.deleteBlocks = metrics.operation("deleteBlocks");
+        this.rename = metrics.operation("rename");
+        this.saveFile = metrics.operation("saveFile");
+        this.saveBlock = metrics.operation("saveBlock");
+        this.loadFileOnce = metrics.operation("loadFileOnce");
+        this.loadBlocks = metrics.operation("loadBlocks");
+        this.loadBlock = metrics.operation("loadBlock");
+    }
+
+    private static <T> T time(OperationStats stats, Supplier<T> call) {
+        long start = System.nanoTime();
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            stats.recordError();
+            throw e;
+        } finally {
+            stats.record(System.nanoTime() - start);
+        }
+    }
+
+    private static void time(OperationStats stats, Runnable call) {
+        long start = System.nanoTime();
+        try {
+            call.run();
+        } catch (RuntimeException e) {
+            stats.recordError();
+            throw e;
+        } finally {
+            stats.record(System.nanoTime() - start);
+        }
+    }
+
+    private void recordRead(OperationStats stats, List<byte[]> blocks) {
+        long bytes = 0;
+        for (byte[] block : blocks) {
+            bytes += block == null ? 0 : block.length;
+        }
+        stats.addBlocks(blocks.size());
+        stats.addBytes(bytes);
+        metrics.recordRead(bytes);
+    }
+
+    private void recordRead(OperationStats stats, byte[] block) {
+        if (block != null) {
+            stats.addBlocks(1);
+            stats.addBytes(block.length);
+            metrics.recordRead(block.length);
+        }
+    }
+
+    private void recordWritten(OperationStats stats, long blocks, long bytes) {
+        stats.addBlocks(blocks);
+        stats.addBytes(bytes);
+        metrics.recordWritten(bytes);
+    }
+
+    @Override
+    public Boolean hexists(byte[] key, byte[] field) {
+        return time(hexists, () -> delegate.hexists(key, field));
+    }
+
+    @Override
+    public byte[] hget(byte[] key, byte[] field, Operations operations) {
+        return time(hget, () -> delegate.hget(key, field, operations));
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    @Override
+    public void awaitDurable(int replicas, boolean aof, long timeoutMillis) throws IOException {
+        long start = System.nanoTime();
+        try {
+            delegate.awaitDurable(replicas, aof, timeoutMillis);
+        } catch (IOException | RuntimeException e) {
+            awaitDurable.recordError();
+            throw e;
+        } finally {
+            awaitDurable.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Long hdel(byte[] key, byte[]... fields) {
+        return time(hdel, () -> delegate.hdel(key, fields));
+    }
+
+    @Override
+    public Long hset(byte[] key, byte[] field, byte[] value, Operations operations) {
+        return time(hset, () -> delegate.hset(key, field, value, operations));
+    }
+
+    @Override
+    public Set<byte[]> hkeys(byte[] key) {
+        return time(hkeys, () -> delegate.hkeys(key));
+    }
+
+    @Override
+    public Object eval(byte[] script, List<byte[]> keys, List<byte[]> args) {
+        return time(eval, () -> delegate.eval(script, keys, args));
+    }
+
+    @Override
+    public void subscribe(byte[] channel, BinaryJedisPubSub listener) {
+        delegate.subscribe(channel, listener);
+    }
+
+    @Override
+    public Long publish(byte[] channel, byte[] message) {
+        return time(publish, () -> delegate.publish(channel, message));
+    }
+
+    @Override
+    public String[] getAllFileNames(String directoryMedata) {
+        return time(getAllFileNames, () -> delegate.getAllFileNames(directoryMedata));
+    }
+
+    @Override
+    public FileMetadata getFileMetadata(String fileLengthKey, String fileName) {
+        return time(getFileMetadata, () -> delegate.getFileMetadata(fileLengthKey, fileName));
+    }
+
+    @Override
+    public void deleteFile(String fileLengthKey, String fileDataKey, String field, FileMetadata metadata, FencingToken
+            fencingToken) {
+        time(deleteFile, () -> delegate.deleteFile(fileLengthKey, fileDataKey, field, metadata, fencingToken));
+    }
+
+    @Override
+    public void deleteFileMetadata(String fileLengthKey, String field, FencingToken fencingToken) {
+        time(deleteFileMetadata, () -> delegate.deleteFileMetadata(fileLengthKey, field, fencingToken));
+    }
+
+    @Override
+    public void deleteBlocks(String fileDataKey, FileMetadata metadata) {
+        time(deleteBlocks, () -> delegate.deleteBlocks(fileDataKey, metadata));
+    }
+
+    @Override
+    public void rename(String fileLengthKey, String oldField, String newField, FileMetadata metadata, FencingToken
+            fencingToken) {
+        time(rename, () -> delegate.rename(fileLengthKey, oldField, newField, metadata, fencingToken));
+    }
+
+    @Override
+    public void checkTransactionResult(List<Object> exec) {
+        delegate.checkTransactionResult(exec);
+    }
+
+    @Override
+    public void saveFile(String fileLengthKey, String fileDataKey, String fileName, List<byte[]> values, FileMetadata
+            metadata, FencingToken fencingToken, Operations operations) {
+        long bytes = 0;
+        List<byte[]> stored = new ArrayList<>(values.size());
+        for (byte[] value : values) {
+            bytes += value.length;
+            stored.add(operations == Operations.FILE_DATA ? encode(metadata, value) : value);
+        }
+        time(saveFile, () -> delegate.saveFile(fileLengthKey, fileDataKey, fileName, stored, metadata, fencingToken,
+                Operations.FILE_RAW_DATA));
+        recordWritten(saveFile, stored.size(), bytes);
+        //saveFile consumes the list
+        values.clear();
+    }
+
+    @Override
+    public void saveBlock(String fileDataKey, FileMetadata metadata, int blockIndex, byte[] value, Operations operations) {
+        byte[] stored = operations == Operations.FILE_DATA ? encode(metadata, value) : value;
+        time(saveBlock, () -> delegate.saveBlock(fileDataKey, metadata, blockIndex, stored, Operations.FILE_RAW_DATA));
+        recordWritten(saveBlock, 1, value.length);
+    }
+
+    @Override
+    public void saveFileMetadata(String fileLengthKey, String fileName, FileMetadata metadata, FencingToken fencingToken) {
+        time(saveFileMetadata, () -> delegate.saveFileMetadata(fileLengthKey, fileName, metadata, fencingToken));
+    }
+
+    @Override
+    public List<byte[]> loadFileOnce(String fileDataKey, FileMetadata metadata, Operations operations) {
+        List<byte[]> stored = time(loadFileOnce, () -> delegate.loadFileOnce(fileDataKey, metadata, Operations.FILE_RAW_DATA));
+        List<byte[]> blocks = decode(metadata, stored, operations);
+        recordRead(loadFileOnce, blocks);
+        return blocks;
+    }
+
+    @Override
+    public List<byte[]> loadBlocks(String fileDataKey, FileMetadata metadata, int from, int to, Operations operations) {
+        List<byte[]> stored = time(loadBlocks, () -> delegate.loadBlocks(fileDataKey, metadata, from, to, Operations
+                .FILE_RAW_DATA));
+        List<byte[]> blocks = decode(metadata, stored, operations);
+        recordRead(loadBlocks, blocks);
+        return blocks;
+    }
+
+    @Override
+    public byte[] loadBlock(String fileDataKey, FileMetadata metadata, int blockIndex, Operations operations) {
+        byte[] stored = time(loadBlock, () -> delegate.loadBlock(fileDataKey, metadata, blockIndex, Operations.FILE_RAW_DATA));
+        byte[] block = operations == Operations.FILE_DATA ? decode(metadata, stored) : stored;
+        recordRead(loadBlock, block);
+        return block;
+    }
+
+    /**
+     * @return the block as stored, the time spent in the codec is counted unless the file is not compressed
+     */
+    private byte[] encode(FileMetadata metadata, byte[] block) {
+        long start = System.nanoTime();
+        byte[] stored = BlockCodecs.encode(metadata, block);
+        //files without compression store the block itself
+        if (stored != block) {
+            metrics.recordCompress(block.length, stored.length, System.nanoTime() - start);
+        }
+        return stored;
+    }
+
+    private List<byte[]> decode(FileMetadata metadata, List<byte[]> stored, Operations operations) {
+        if (operations != Operations.FILE_DATA) {
+            return stored;
+        }
+        List<byte[]> blocks = new ArrayList<>(stored.size());
+        for (byte[] block : stored) {
+            blocks.add(decode(metadata, block));
+        }
+        return blocks;
+    }
+
+    private byte[] decode(FileMetadata metadata, byte[] stored) {
+        if (stored == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        byte[] block = BlockCodecs.decode(metadata, stored, Operations.FILE_DATA);
+        //blocks of files without compression are read as stored
+        if (block != stored) {
+            metrics.recordDecompress(block.length, System.nanoTime() - start);
+        }
+        return block;
+    }
+
+    @Override
+    public List<Pool<?>> getPools() {
+        return delegate.getPools();
+    }
+}
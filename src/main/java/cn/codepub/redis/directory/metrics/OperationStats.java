@@ -0,0 +1,107 @@
+package cn.codepub.redis.directory.metrics;
+
+import lombok.Getter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/18 09:55.
+ * </p>
+ * <p>
+ * Description: Calls, failures, latency and the bytes and blocks moved of one operation, e.g. hget or saveFile
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class OperationStats implements OperationStatsMBean {
+    @Getter
+    private final String name;
+    //nanoseconds per call, failed calls included
+    @Getter
+    private final Histogram latency = new Histogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder blocks = new LongAdder();
+
+    public OperationStats(String name) {
+        this.name = name;
+    }
+
+    public void record(long nanos) {
+        latency.record(nanos);
+    }
+
+    public void recordError() {
+        errors.increment();
+    }
+
+    public void addBytes(long bytes) {
+        this.bytes.add(bytes);
+    }
+
+    public void addBlocks(long blocks) {
+        this.blocks.add(blocks);
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public long getBlocks() {
+        return blocks.sum();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return latency.getMean() / 1000;
+    }
+
+    @Override
+    public long getP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(0.5));
+    }
+
+    @Override
+    public long getP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(0.99));
+    }
+
+    @Override
+    public long getP999Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(0.999));
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.getMax());
+    }
+
+    @Override
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(latency.getSum());
+    }
+
+    @Override
+    public String toString() {
+        return name + "(count=" + getCount() + ", errors=" + getErrors() + ", p50=" + getP50Micros() + "us, p99=" +
+                getP99Micros() + "us, bytes=" + getBytes() + ")";
+    }
+}
@@ -0,0 +1,40 @@
+package cn.codepub.redis.directory.metrics;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/18 09:55.
+ * </p>
+ * <p>
+ * Description: JMX view of one operation of a directory on redis, see {@link OperationStats}
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public interface OperationStatsMBean {
+    long getCount();
+
+    long getErrors();
+
+    /**
+     * @return the bytes of index file blocks the operation saved or loaded, as the directory handed them over
+     */
+    long getBytes();
+
+    long getBlocks();
+
+    double getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getP999Micros();
+
+    long getMaxMicros();
+
+    long getTotalMillis();
+}
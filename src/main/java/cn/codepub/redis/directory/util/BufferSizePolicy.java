@@ -0,0 +1,73 @@
+package cn.codepub.redis.directory.util;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/29 10:20.
+ * </p>
+ * <p>
+ * Description: Picks the block size of a new index file by its extension, BUFFER_SIZE_POLICY in config file lists
+ * extension:size pairs like tip:4096,segments:1024,cfs:4194304, files of other extensions use DEFAULT_BUFFER_SIZE. Small
+ * blocks waste less on small files, large blocks save round trips on large ones. The size is recorded with every file, so the
+ * policy can change at any time
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class BufferSizePolicy {
+    private static volatile BufferSizePolicy defaultPolicy;
+    private final int defaultBufferSize;
+    //extension without the dot -> block size
+    private final Map<String, Integer> bufferSizes = new HashMap<>();
+
+    /**
+     * @param defaultBufferSize the block size of files not in the policy
+     * @param policy            comma separated extension:size pairs, may be empty
+     */
+    public BufferSizePolicy(int defaultBufferSize, String policy) {
+        this.defaultBufferSize = checkBufferSize("default", defaultBufferSize);
+        for (String pair : StringUtils.split(StringUtils.defaultString(policy), ',')) {
+            String[] extensionSize = StringUtils.split(pair, ':');
+            if (extensionSize.length != 2) {
+                throw new IllegalArgumentException("Buffer size policy " + pair + " is not extension:size");
+            }
+            String extension = extensionSize[0].trim();
+            bufferSizes.put(extension, checkBufferSize(extension, NumberUtils.toInt(extensionSize[1].trim())));
+        }
+    }
+
+    private static int checkBufferSize(String extension, int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size of " + extension + " must be positive, but is " + bufferSize);
+        }
+        return bufferSize;
+    }
+
+    /**
+     * @return the policy of config file
+     */
+    public static BufferSizePolicy getDefault() {
+        if (defaultPolicy == null) {
+            defaultPolicy = new BufferSizePolicy(Constants.BUFFER_SIZE, Constants.BUFFER_SIZE_POLICY);
+        }
+        return defaultPolicy;
+    }
+
+    /**
+     * @param fileName the index file name
+     * @return the block size of its blocks
+     */
+    public int getBufferSize(String fileName) {
+        String extension = FileBlocksUtils.getExtension(fileName);
+        return extension == null ? defaultBufferSize : bufferSizes.getOrDefault(extension, defaultBufferSize);
+    }
+}
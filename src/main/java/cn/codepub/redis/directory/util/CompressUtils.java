@@ -1,9 +1,11 @@
 package cn.codepub.redis.directory.util;
 
+import cn.codepub.redis.directory.Operations;
 import lombok.extern.log4j.Log4j2;
 import org.xerial.snappy.Snappy;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 
 /**
  * <p>
@@ -42,4 +44,31 @@ public class CompressUtils {
         }
         return datas;
     }
+
+    /**
+     * @param datas      file data read from redis
+     * @param operations only FILE_DATA is uncompressed, FILE_RAW_DATA is returned as stored
+     * @return the file data
+     */
+    public static byte[] uncompressFilter(byte[] datas, Operations operations) {
+        return operations == Operations.FILE_DATA ? uncompressFilter(datas) : datas;
+    }
+
+    /**
+     * Uncompress a compressed block into a buffer owned by the caller
+     *
+     * @param datas  compressed data
+     * @param offset start of the compressed data
+     * @param length length of the compressed data
+     * @param output the buffer to fill, must be large enough for the uncompressed block
+     * @return the uncompressed length
+     */
+    public static int uncompress(byte[] datas, int offset, int length, byte[] output) {
+        try {
+            return Snappy.uncompress(datas, offset, length, output, 0);
+        } catch (IOException e) {
+            log.error("Uncompress error!", e);
+            throw new UncheckedIOException(e);
+        }
+    }
 }
@@ -31,13 +31,16 @@ public class ConfigUtils {
 
     /**
      * @param key key in config file
-     * @return value
+     * @return value, null if the config file has no such key, so a config file of an older version keeps working with the
+     * defaults of the keys added since
      */
     public static String getValue(String key) {
         boolean nullOrEmpty = Strings.isNullOrEmpty(key);
         String res = null;
         if (!nullOrEmpty && resourceBundle != null) {
-            res = resourceBundle.getString(key);
+            if (resourceBundle.containsKey(key)) {
+                res = resourceBundle.getString(key);
+            }
             log.debug("key = " + key + ", value = " + res);
         } else {
             log.error("Key or resource bundle is null or empty!");
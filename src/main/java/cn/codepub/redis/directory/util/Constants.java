@@ -23,11 +23,60 @@ public interface Constants {
     String DIRECTORY_METADATA = ConfigUtils.getValue("DEFAULT_DIRECTORY_METADATA");
     //fileMetada=>list(@index file name:block number)=>list(the value of index file block)
     String FILE_METADATA = ConfigUtils.getValue("DEFAULT_FILE_DATA");
+    //heap budget of the whole files loaded by the inputs, files over it are read on demand, 0 leaves it unbounded
     int BUFFER_SIZE_IN_MEM = NumberUtils.toInt(ConfigUtils.getValue("DEFAULT_BUFFER_SIZE_IN_MEM"));
     String LOCK_FILE_PATH = ConfigUtils.getValue("LOCK_FILE_PATH");
+    //file locks under LOCK_FILE_PATH, or redis to keep lease locks in redis
+    String LOCK_TYPE = ConfigUtils.getValue("LOCK_TYPE");
+    //the time to live of a redis lock which is not renewed, it is renewed every third of it
+    long LOCK_LEASE_MILLIS = NumberUtils.toLong(ConfigUtils.getValue("LOCK_LEASE_MILLIS"), 30000);
     byte[] DIR_METADATA_BYTES = DIRECTORY_METADATA.getBytes();
     byte[] FILE_METADATA_BYTES = FILE_METADATA.getBytes();
     int TIME_OUT = NumberUtils.toInt(ConfigUtils.getValue("TIME_OUT"));
     int SYNC_COUNT = 50;//每隔count调用一次sync
     boolean COMPRESS_FILE = BooleanUtils.toBoolean(ConfigUtils.getValue("COMPRESS_FILE"));
+    //openInput only reads the file length, blocks are fetched when the input touches them
+    boolean LOAD_ON_DEMAND = BooleanUtils.toBoolean(ConfigUtils.getValue("LOAD_ON_DEMAND"));
+    //bytes merges and inputs read once fetch per round trip bypassing the block cache, 0 opens them like the searches
+    long READ_AHEAD_SIZE = NumberUtils.toLong(ConfigUtils.getValue("READ_AHEAD_SIZE"));
+    //listAll, fileLength and openInput read a local copy of the file metadata, refreshed by a version check
+    boolean MANIFEST_CACHE = BooleanUtils.toBoolean(ConfigUtils.getValue("MANIFEST_CACHE"));
+    //the writer publishes the generation of every commit, see CommitSubscriber
+    boolean COMMIT_NOTIFICATIONS = BooleanUtils.toBoolean(ConfigUtils.getValue("COMMIT_NOTIFICATIONS"));
+    //the byte budget of the block cache shared by all inputs of a directory
+    long BLOCK_CACHE_SIZE = NumberUtils.toLong(ConfigUtils.getValue("BLOCK_CACHE_SIZE"));
+    //heap or offheap
+    String BLOCK_CACHE_TYPE = ConfigUtils.getValue("BLOCK_CACHE_TYPE");
+    //outputs send every full block to redis at once and publish the file length at close
+    boolean STREAM_OUTPUT = BooleanUtils.toBoolean(ConfigUtils.getValue("STREAM_OUTPUT"));
+    //threads sending the streamed blocks, 0 sends them from the writing thread
+    int WRITE_BEHIND_THREADS = NumberUtils.toInt(ConfigUtils.getValue("WRITE_BEHIND_THREADS"), 4);
+    //bound of the streamed bytes handed to the writer threads but not yet saved
+    int WRITE_BEHIND_MAX_BYTES = NumberUtils.toInt(ConfigUtils.getValue("WRITE_BEHIND_MAX_BYTES"), 64 << 20);
+    //flushes and merges expected to write at least this many bytes stream their outputs even if STREAM_OUTPUT is off
+    long STREAM_OUTPUT_MIN_SIZE = NumberUtils.toLong(ConfigUtils.getValue("STREAM_OUTPUT_MIN_SIZE"), Long.MAX_VALUE);
+    //new files keep their blocks in a hash of their own, deleted by a single UNLINK
+    boolean KEY_PER_FILE = BooleanUtils.toBoolean(ConfigUtils.getValue("KEY_PER_FILE"));
+    //the number of keys of its own the blocks of a new file are spread over, so they land on different cluster nodes
+    int KEY_STRIPES = NumberUtils.toInt(ConfigUtils.getValue("KEY_STRIPES"), 1);
+    //the number of pooled connections JedisPoolStream fetches a large file through
+    int PARALLEL_FETCH_THREADS = NumberUtils.toInt(ConfigUtils.getValue("PARALLEL_FETCH_THREADS"), 1);
+    //files shorter than this are fetched through one connection
+    long PARALLEL_FETCH_MIN_SIZE = NumberUtils.toLong(ConfigUtils.getValue("PARALLEL_FETCH_MIN_SIZE"), Long.MAX_VALUE);
+    //codec of new files not in CODEC_POLICY, blank follows COMPRESS_FILE
+    String CODEC = ConfigUtils.getValue("CODEC");
+    //extension:codec pairs, separated by comma
+    String CODEC_POLICY = ConfigUtils.getValue("CODEC_POLICY");
+    //a block is stored compressed only if it shrinks to this ratio of its length
+    double MIN_COMPRESS_RATIO = NumberUtils.toDouble(ConfigUtils.getValue("MIN_COMPRESS_RATIO"), 1.0);
+    //none, replicas to WAIT for SYNC_REPLICAS replicas on sync, aof to also WAITAOF for the append only files
+    String SYNC_DURABILITY = ConfigUtils.getValue("SYNC_DURABILITY");
+    //the replicas of every master which must acknowledge the writes on sync
+    int SYNC_REPLICAS = NumberUtils.toInt(ConfigUtils.getValue("SYNC_REPLICAS"), 1);
+    //how long sync waits for the acknowledgements before it fails, the connection must not time out before, see TIME_OUT
+    long SYNC_TIMEOUT_MILLIS = NumberUtils.toLong(ConfigUtils.getValue("SYNC_TIMEOUT_MILLIS"), 1000);
+    //time every operation on redis and publish the metrics of the directory over JMX, see DirectoryMetrics
+    boolean METRICS = BooleanUtils.toBoolean(ConfigUtils.getValue("METRICS"));
+    //extension:block size pairs of new files, separated by comma, other files use BUFFER_SIZE
+    String BUFFER_SIZE_POLICY = ConfigUtils.getValue("BUFFER_SIZE_POLICY");
 }
@@ -1,6 +1,7 @@
 package cn.codepub.redis.directory.util;
 
 import lombok.extern.log4j.Log4j2;
+import org.apache.lucene.index.IndexFileNames;
 
 /**
  * <p>
@@ -26,11 +27,28 @@ public class FileBlocksUtils {
         return getBlockSize(length, Constants.BUFFER_SIZE);
     }
 
-    private static Long getBlockSize(long length, long bufferSize) {
+    /**
+     * @param length     the index file length
+     * @param bufferSize the block size the index file was written with
+     * @return the number of blocks
+     */
+    public static Long getBlockSize(long length, long bufferSize) {
         if (bufferSize == 0) {
             log.error("Default buffer size is zero!");
             return 0L;
         }
         return length % bufferSize == 0 ? length / bufferSize : length / bufferSize + 1;
     }
+
+    /**
+     * @param fileName the index file name
+     * @return the extension looked up in the per extension policies of config file, segments for the commit points, null if
+     * the file has no extension
+     */
+    public static String getExtension(String fileName) {
+        if (fileName.startsWith(IndexFileNames.SEGMENTS) || fileName.startsWith(IndexFileNames.PENDING_SEGMENTS)) {
+            return IndexFileNames.SEGMENTS;
+        }
+        return IndexFileNames.getExtension(fileName);
+    }
 }
@@ -2,6 +2,7 @@ import cn.codepub.redis.directory.RedisDirectory;
 import cn.codepub.redis.directory.io.JedisPoolStream;
 import cn.codepub.redis.directory.io.JedisStream;
 import cn.codepub.redis.directory.io.ShardedJedisPoolStream;
+import cn.codepub.redis.directory.server.RespServer;
 import cn.codepub.redis.directory.util.Constants;
 import lombok.extern.log4j.Log4j2;
 import org.apache.commons.lang3.RandomStringUtils;
@@ -53,6 +54,7 @@ public class TestLucene {
         //new TestLucene().testRamDirectory();
         //new TestLucene().testMMapDirectory();
         //new TestLucene().testRedisDirectoryWithRemoteJedisPool();
+        new TestLucene().testRedisDirectoryWithRespServer();
     }
 
     public void testRamDirectory() throws IOException {
@@ -259,6 +261,45 @@ public class TestLucene {
         log.error("RedisDirectoryWithJedis search consumes {}ms!", (end - start));
     }
 
+    /**
+     * No redis needed, the stand-in keeps the index in memory, so fewer documents; -Drtt=500 -Dbandwidth=125000000 for a
+     * network of half a millisecond and a gigabit
+     */
+    public void testRedisDirectoryWithRespServer() throws IOException {
+        int documents = 100000;
+        try (RespServer respServer = new RespServer()) {
+            respServer.setRoundTripMicros(Long.getLong("rtt", 0));
+            respServer.setBandwidth(Long.getLong("bandwidth", 0));
+            long start = System.currentTimeMillis();
+            IndexWriterConfig indexWriterConfig = new IndexWriterConfig(new WhitespaceAnalyzer()).setOpenMode(IndexWriterConfig
+                    .OpenMode.CREATE);
+            JedisPool jedisPool = new JedisPool(new JedisPoolConfig(), respServer.getHost(), respServer.getPort(), Constants
+                    .TIME_OUT);
+            RedisDirectory redisDirectory = new RedisDirectory(new JedisPoolStream(jedisPool));
+            IndexWriter indexWriter = new IndexWriter(redisDirectory, indexWriterConfig);
+            for (int i = 0; i < documents; i++) {
+                indexWriter.addDocument(addDocument(i));
+            }
+            indexWriter.commit();
+            indexWriter.close();
+            long end = System.currentTimeMillis();
+            log.error("RedisDirectoryWithRespServer consumes {}s!", (end - start) / 1000);
+            start = System.currentTimeMillis();
+            IndexSearcher indexSearcher = new IndexSearcher(DirectoryReader.open(redisDirectory));
+            int total = 0;
+            for (int i = 0; i < documents; i++) {
+                TermQuery key1 = new TermQuery(new Term("key1", "key" + i));
+                TopDocs search = indexSearcher.search(key1, 10);
+                total += search.totalHits;
+            }
+            System.out.println(total);
+            end = System.currentTimeMillis();
+            log.error("RedisDirectoryWithRespServer search consumes {}ms!", (end - start));
+            indexSearcher.getIndexReader().close();
+            redisDirectory.close();
+        }
+    }
+
 
     public void testMMapDirectory() throws IOException {
         long start = System.currentTimeMillis();
@@ -0,0 +1,151 @@
+package cn.codepub.redis.directory;
+
+import cn.codepub.redis.directory.io.InputOutputStream;
+import cn.codepub.redis.directory.io.JedisPoolStream;
+import cn.codepub.redis.directory.server.RespServer;
+import cn.codepub.redis.directory.util.Constants;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.SingleInstanceLockFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/14 09:30.
+ * </p>
+ * <p>
+ * Description: The commits a writer publishes and the readers following them, against the redis stand-in
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class TestCommitSubscriber {
+    private RespServer respServer;
+    private List<JedisPool> jedisPools = new ArrayList<>();
+    private RedisDirectory writerDirectory;
+    private IndexWriter indexWriter;
+    private RedisDirectory readerDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        respServer = new RespServer();
+        writerDirectory = new RedisDirectory(newInputOutputStream(), new SingleInstanceLockFactory()) {
+            @Override
+            boolean publishesCommits() {
+                return true;
+            }
+        };
+        indexWriter = new IndexWriter(writerDirectory, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        addDocument("0");
+        indexWriter.commit();
+        readerDirectory = new RedisDirectory(newInputOutputStream(), new SingleInstanceLockFactory());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        indexWriter.close();
+        writerDirectory.close();
+        readerDirectory.close();
+        jedisPools.forEach(JedisPool::close);
+        respServer.close();
+    }
+
+    private InputOutputStream newInputOutputStream() {
+        //so the writer does not borrow a connection closed by disconnectAll
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setTestOnBorrow(true);
+        JedisPool jedisPool = new JedisPool(config, respServer.getHost(), respServer.getPort(), Constants.TIME_OUT);
+        jedisPools.add(jedisPool);
+        return new JedisPoolStream(jedisPool);
+    }
+
+    private void addDocument(String id) throws IOException {
+        Document document = new Document();
+        document.add(new StringField("id", id, Field.Store.YES));
+        indexWriter.addDocument(document);
+    }
+
+    private static long take(BlockingQueue<Long> generations) throws InterruptedException {
+        Long generation = generations.poll(10, TimeUnit.SECONDS);
+        if (generation == null) {
+            throw new AssertionError("No notification within 10s");
+        }
+        return generation;
+    }
+
+    @Test(timeout = 60000)
+    public void testNotifyOnCommit() throws Exception {
+        BlockingQueue<Long> generations = new LinkedBlockingQueue<>();
+        CommitSubscriber subscriber = new CommitSubscriber(readerDirectory, generations::add);
+        try {
+            //subscribed, commits published before may have been missed
+            assertEquals(CommitSubscriber.UNKNOWN_GENERATION, take(generations));
+            addDocument("1");
+            indexWriter.commit();
+            assertEquals(SegmentInfos.getLastCommitGeneration(writerDirectory), take(generations));
+            //a subscriber which lost its connection says it may have missed commits once it is back
+            respServer.disconnectAll();
+            assertEquals(CommitSubscriber.UNKNOWN_GENERATION, take(generations));
+            addDocument("2");
+            indexWriter.commit();
+            assertEquals(SegmentInfos.getLastCommitGeneration(writerDirectory), take(generations));
+        } finally {
+            subscriber.close();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testRefreshOnCommit() throws Exception {
+        SearcherManager searcherManager = new SearcherManager(readerDirectory, null);
+        BlockingQueue<Long> generations = new LinkedBlockingQueue<>();
+        CommitSubscriber refreshing = CommitSubscriber.refreshing(readerDirectory, searcherManager);
+        CommitSubscriber subscriber = new CommitSubscriber(readerDirectory, generations::add);
+        try {
+            assertEquals(CommitSubscriber.UNKNOWN_GENERATION, take(generations));
+            addDocument("1");
+            indexWriter.commit();
+            take(generations);
+            //nobody but the subscriber refreshes the manager
+            while (numDocs(searcherManager) < 2) {
+                Thread.sleep(10);
+            }
+        } finally {
+            subscriber.close();
+            refreshing.close();
+            searcherManager.close();
+        }
+    }
+
+    private static int numDocs(SearcherManager searcherManager) throws IOException {
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            return searcher.getIndexReader().numDocs();
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+}
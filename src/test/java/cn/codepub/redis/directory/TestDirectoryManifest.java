@@ -0,0 +1,164 @@
+package cn.codepub.redis.directory;
+
+import cn.codepub.redis.directory.codec.BlockCodecs;
+import cn.codepub.redis.directory.io.InputOutputStream;
+import cn.codepub.redis.directory.io.JedisPoolStream;
+import cn.codepub.redis.directory.server.RespServer;
+import cn.codepub.redis.directory.util.Constants;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.SingleInstanceLockFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/13 16:20.
+ * </p>
+ * <p>
+ * Description: The client side copy of the metadata hash against the redis stand-in
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class TestDirectoryManifest {
+    private RespServer respServer;
+    private JedisPool jedisPool;
+    //refreshes answered with the whole metadata hash
+    private final AtomicInteger fullFetches = new AtomicInteger();
+    //run once the whole hash is fetched and before the manifest gets it, may be null
+    private volatile Runnable onFullFetch;
+
+    @Before
+    public void setUp() throws IOException {
+        respServer = new RespServer();
+        jedisPool = new JedisPool(new JedisPoolConfig(), respServer.getHost(), respServer.getPort(), Constants.TIME_OUT);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        jedisPool.close();
+        respServer.close();
+    }
+
+    /**
+     * @return the stream of the stand-in, counting the scripts which reply with the whole metadata hash
+     */
+    private InputOutputStream newInputOutputStream() {
+        InputOutputStream target = new JedisPoolStream(jedisPool);
+        return (InputOutputStream) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{InputOutputStream
+                .class}, (proxy, method, args) -> {
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if ("eval".equals(method.getName()) && result instanceof List && new String((byte[]) args[0],
+                    StandardCharsets.UTF_8).contains("HGETALL")) {
+                fullFetches.incrementAndGet();
+                Runnable hook = onFullFetch;
+                if (hook != null) {
+                    hook.run();
+                }
+            }
+            return result;
+        });
+    }
+
+    private RedisDirectory newDirectory() {
+        RedisDirectory redisDirectory = new RedisDirectory(newInputOutputStream(), new SingleInstanceLockFactory());
+        redisDirectory.cacheManifest();
+        return redisDirectory;
+    }
+
+    @Test
+    public void testFlushWithoutRefresh() throws IOException {
+        try (RedisDirectory redisDirectory = newDirectory();
+             IndexWriter indexWriter = new IndexWriter(redisDirectory, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            for (int i = 0; i < 100; i++) {
+                Document document = new Document();
+                document.add(new TextField("content", "manifest document " + i, Field.Store.YES));
+                indexWriter.addDocument(document);
+            }
+            fullFetches.set(0);
+            //the flush reads the files it just wrote back into the compound file, they are known without a refresh
+            indexWriter.commit();
+            assertEquals(0, fullFetches.get());
+            assertTrue(redisDirectory.listAll().length > 0);
+            assertEquals(1, fullFetches.get());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testChangedWhileRefreshing() throws Exception {
+        InputOutputStream inputOutputStream = newInputOutputStream();
+        FileMetadata metadata = new FileMetadata(100, FileMetadata.newContentId("_0.cfs"), false, 1, BlockCodecs.forName
+                ("none").getId(), Constants.BUFFER_SIZE);
+        inputOutputStream.saveFileMetadata(Constants.DIRECTORY_METADATA, "_0.cfs", metadata, null);
+        inputOutputStream.saveFileMetadata(Constants.DIRECTORY_METADATA, "_1.cfs", metadata, null);
+        DirectoryManifest manifest = new DirectoryManifest(inputOutputStream, Constants.DIRECTORY_METADATA);
+        CountDownLatch fetched = new CountDownLatch(1);
+        CountDownLatch changed = new CountDownLatch(1);
+        onFullFetch = () -> {
+            fetched.countDown();
+            Uninterruptibles.awaitUninterruptibly(changed);
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String[]> listed = executor.submit(manifest::listAll);
+            fetched.await();
+            onFullFetch = null;
+            //the reply still lists _0.cfs and _1.cfs and misses _2.cfs and _3.cfs when the manifest gets it
+            inputOutputStream.deleteFileMetadata(Constants.DIRECTORY_METADATA, "_0.cfs", null);
+            manifest.remove("_0.cfs");
+            inputOutputStream.rename(Constants.DIRECTORY_METADATA, "_1.cfs", "_2.cfs", metadata, null);
+            manifest.rename("_1.cfs", "_2.cfs", metadata);
+            inputOutputStream.saveFileMetadata(Constants.DIRECTORY_METADATA, "_3.cfs", metadata, null);
+            manifest.put("_3.cfs", metadata);
+            changed.countDown();
+            String[] names = listed.get();
+            Arrays.sort(names);
+            assertArrayEquals(new String[]{"_2.cfs", "_3.cfs"}, names);
+        } finally {
+            executor.shutdown();
+        }
+        assertNull(manifest.get("_0.cfs"));
+        assertNull(manifest.get("_1.cfs"));
+        assertNotNull(manifest.get("_2.cfs"));
+        assertNotNull(manifest.get("_3.cfs"));
+        String[] names = manifest.listAll();
+        Arrays.sort(names);
+        assertArrayEquals(new String[]{"_2.cfs", "_3.cfs"}, names);
+    }
+}
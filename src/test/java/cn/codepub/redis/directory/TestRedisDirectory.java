@@ -0,0 +1,250 @@
+package cn.codepub.redis.directory;
+
+import cn.codepub.redis.directory.codec.BlockCodecs;
+import cn.codepub.redis.directory.io.InputOutputStream;
+import cn.codepub.redis.directory.io.JedisPoolStream;
+import cn.codepub.redis.directory.server.RespServer;
+import cn.codepub.redis.directory.util.CompressUtils;
+import cn.codepub.redis.directory.util.Constants;
+import cn.codepub.redis.directory.util.FileBlocksUtils;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.SingleInstanceLockFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/10 10:20.
+ * </p>
+ * <p>
+ * Description: The directory against the redis stand-in, no redis needed
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class TestRedisDirectory {
+    //more than two blocks, the last one partial
+    private static final int FILE_LENGTH = Constants.BUFFER_SIZE * 2 + 1000;
+    private RespServer respServer;
+    private List<JedisPool> jedisPools = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        respServer = new RespServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        jedisPools.forEach(JedisPool::close);
+        respServer.close();
+    }
+
+    private InputOutputStream newInputOutputStream() {
+        JedisPool jedisPool = new JedisPool(new JedisPoolConfig(), respServer.getHost(), respServer.getPort(), Constants
+                .TIME_OUT);
+        jedisPools.add(jedisPool);
+        return new JedisPoolStream(jedisPool);
+    }
+
+    private static byte[] newContent(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            //compressible, but not a single repeated byte
+            content[i] = (byte) (i % 251 / 7);
+        }
+        return content;
+    }
+
+    private static byte[] readAll(IndexInput input) throws IOException {
+        byte[] read = new byte[(int) input.length()];
+        input.readBytes(read, 0, read.length);
+        return read;
+    }
+
+    private static List<byte[]> toBlocks(byte[] content) {
+        List<byte[]> blocks = new ArrayList<>();
+        for (int offset = 0; offset < content.length; offset += Constants.BUFFER_SIZE) {
+            blocks.add(Arrays.copyOfRange(content, offset, Math.min(content.length, offset + Constants.BUFFER_SIZE)));
+        }
+        return blocks;
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        byte[] content = newContent(FILE_LENGTH);
+        try (RedisDirectory redisDirectory = new RedisDirectory(newInputOutputStream(), new SingleInstanceLockFactory())) {
+            try (IndexOutput output = redisDirectory.createOutput("_0.cfs", IOContext.DEFAULT)) {
+                output.writeBytes(content, content.length);
+            }
+            assertEquals(FILE_LENGTH, redisDirectory.fileLength("_0.cfs"));
+            try (IndexInput input = redisDirectory.openInput("_0.cfs", IOContext.DEFAULT)) {
+                assertArrayEquals(content, readAll(input));
+            }
+        }
+    }
+
+    @Test
+    public void testDeleteWhileOpen() throws IOException {
+        try (RedisDirectory redisDirectory = new RedisDirectory(newInputOutputStream(), new SingleInstanceLockFactory())) {
+            //loaded on open and pinned in the block cache
+            assertReadsAfterDelete(redisDirectory, IOContext.DEFAULT);
+            //read ahead, READ_AHEAD_SIZE
+            assertReadsAfterDelete(redisDirectory, IOContext.READONCE);
+        }
+        try (RedisDirectory redisDirectory = new RedisDirectory(newInputOutputStream(), new SingleInstanceLockFactory()) {
+            @Override
+            boolean loadsOnDemand() {
+                return true;
+            }
+        }) {
+            assertReadsAfterDelete(redisDirectory, IOContext.DEFAULT);
+        }
+    }
+
+    private void assertReadsAfterDelete(RedisDirectory redisDirectory, IOContext context) throws IOException {
+        //no BUFFER_SIZE_POLICY for it, so more than two blocks
+        byte[] content = newContent(FILE_LENGTH);
+        try (IndexOutput output = redisDirectory.createOutput("_0.doc", IOContext.DEFAULT)) {
+            output.writeBytes(content, content.length);
+        }
+        InputOutputStream inputOutputStream = redisDirectory.getInputOutputStream();
+        FileMetadata metadata = inputOutputStream.getFileMetadata(Constants.DIRECTORY_METADATA, "_0.doc");
+        IndexInput input = redisDirectory.openInput("_0.doc", context);
+        IndexInput clone = input.clone();
+        redisDirectory.deleteFile("_0.doc");
+        redisDirectory.getBlockCache().clear();
+        assertFalse(Arrays.asList(redisDirectory.listAll()).contains("_0.doc"));
+        //like a deleted file kept open on a posix file system, the input reads on
+        input.seek(FILE_LENGTH - 1);
+        assertEquals(context.toString(), content[FILE_LENGTH - 1], input.readByte());
+        assertArrayEquals(context.toString(), content, readAll(clone));
+        input.close();
+        //the last input gone, so are the blocks
+        assertNull(inputOutputStream.loadBlock(Constants.FILE_METADATA, metadata, 0));
+    }
+
+    @Test
+    public void testCodecRoundTrip() throws IOException {
+        byte[] content = newContent(FILE_LENGTH);
+        InputOutputStream inputOutputStream = newInputOutputStream();
+        try (RedisDirectory redisDirectory = new RedisDirectory(inputOutputStream, new SingleInstanceLockFactory())) {
+            for (String name : new String[]{"none", "snappy", "lz4", "zstd"}) {
+                byte codec = BlockCodecs.forName(name).getId();
+                FileMetadata metadata = new FileMetadata(FILE_LENGTH, FileMetadata.newContentId(name + ".bin"), false, 1,
+                        codec, Constants.BUFFER_SIZE);
+                List<byte[]> blocks = toBlocks(content);
+                for (byte[] block : blocks) {
+                    byte[] stored = BlockCodecs.encode(metadata, block);
+                    assertArrayEquals(name, block, BlockCodecs.decode(metadata, stored, Operations.FILE_DATA));
+                    byte[] workingBuffer = BlockCodecs.newWorkingBuffer(Constants.BUFFER_SIZE);
+                    ByteBuffer decoded = BlockCodecs.decode(metadata, ByteBuffer.wrap(stored), workingBuffer);
+                    byte[] read = new byte[decoded.remaining()];
+                    decoded.get(read);
+                    assertArrayEquals(name, block, read);
+                }
+                inputOutputStream.saveFile(Constants.DIRECTORY_METADATA, Constants.FILE_METADATA, name + ".bin", blocks,
+                        metadata, null);
+                try (IndexInput input = redisDirectory.openInput(name + ".bin", IOContext.DEFAULT)) {
+                    assertArrayEquals(name, content, readAll(input));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLegacyFormat() throws IOException {
+        byte[] content = newContent(FILE_LENGTH);
+        //files written before the content id: 8 bytes of length, blocks keyed by the file name and following COMPRESS_FILE
+        try (Jedis jedis = new Jedis(respServer.getHost(), respServer.getPort())) {
+            List<byte[]> blocks = toBlocks(content);
+            for (int i = 0; i < blocks.size(); i++) {
+                jedis.hset(Constants.FILE_METADATA.getBytes(), FileBlocksUtils.getBlockName("_0.cfs", i), CompressUtils
+                        .compressFilter(blocks.get(i)));
+            }
+            jedis.hset(Constants.DIR_METADATA_BYTES, "_0.cfs".getBytes(), ByteBuffer.allocate(Long.BYTES).putLong
+                    (FILE_LENGTH).array());
+        }
+        try (RedisDirectory redisDirectory = new RedisDirectory(newInputOutputStream(), new SingleInstanceLockFactory())) {
+            assertTrue(Arrays.asList(redisDirectory.listAll()).contains("_0.cfs"));
+            assertEquals(FILE_LENGTH, redisDirectory.fileLength("_0.cfs"));
+            try (IndexInput input = redisDirectory.openInput("_0.cfs", IOContext.DEFAULT)) {
+                assertArrayEquals(content, readAll(input));
+            }
+            //a rename keeps the blocks where they are
+            redisDirectory.renameFile("_0.cfs", "_1.cfs");
+            try (IndexInput input = redisDirectory.openInput("_1.cfs", IOContext.DEFAULT)) {
+                assertArrayEquals(content, readAll(input));
+            }
+        }
+    }
+
+    @Test
+    public void testLeaseTakeover() throws IOException {
+        InputOutputStream inputOutputStream = newInputOutputStream();
+        try (RedisDirectory stale = new RedisDirectory(inputOutputStream, new RedisLeaseLockFactory(300));
+             RedisDirectory taker = new RedisDirectory(newInputOutputStream(), new RedisLeaseLockFactory(300))) {
+            Lock staleLock = stale.obtainLock("write.lock");
+            try (IndexOutput output = stale.createOutput("_0.cfs", IOContext.DEFAULT)) {
+                output.writeInt(1);
+            }
+            IndexOutput pending = stale.createOutput("_1.cfs", IOContext.DEFAULT);
+            pending.writeInt(2);
+            //the lease ran out, e.g. the stale writer paused longer than it
+            inputOutputStream.eval(InputOutputStream.UNLINK_SCRIPT, Collections.singletonList(("{" + Constants
+                    .DIRECTORY_METADATA + "}:write.lock").getBytes()), Collections.emptyList());
+            Lock takerLock = taker.obtainLock("write.lock");
+            try {
+                pending.close();
+                fail("The stale writer published a file");
+            } catch (AlreadyClosedException expected) {
+            }
+            try {
+                stale.renameFile("_0.cfs", "_2.cfs");
+                fail("The stale writer renamed a file");
+            } catch (AlreadyClosedException expected) {
+            }
+            try {
+                stale.deleteFile("_0.cfs");
+                fail("The stale writer deleted a file");
+            } catch (AlreadyClosedException expected) {
+            }
+            assertEquals(Collections.singletonList("_0.cfs"), Arrays.asList(taker.listAll()));
+            //the new holder changes the directory as usual
+            taker.renameFile("_0.cfs", "_2.cfs");
+            taker.deleteFile("_2.cfs");
+            assertEquals(0, taker.listAll().length);
+            takerLock.close();
+            try {
+                staleLock.close();
+            } catch (IOException | AlreadyClosedException ignored) {
+                //the lock is held by someone else
+            }
+        }
+    }
+}
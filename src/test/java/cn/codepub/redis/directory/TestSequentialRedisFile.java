@@ -0,0 +1,168 @@
+package cn.codepub.redis.directory;
+
+import cn.codepub.redis.directory.codec.BlockCodecs;
+import cn.codepub.redis.directory.io.InputOutputStream;
+import cn.codepub.redis.directory.io.JedisPoolStream;
+import cn.codepub.redis.directory.server.RespServer;
+import cn.codepub.redis.directory.util.Constants;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MergeInfo;
+import org.apache.lucene.store.SingleInstanceLockFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/20 15:30.
+ * </p>
+ * <p>
+ * Description: The read-ahead of merges and inputs read once against the redis stand-in
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class TestSequentialRedisFile {
+    private static final int BLOCK_SIZE = 1024;
+    private static final int READ_AHEAD_BLOCKS = 4;
+    private RespServer respServer;
+    private JedisPool jedisPool;
+    //the ranges of blocks fetched, as from, to pairs
+    private final List<int[]> fetches = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() throws IOException {
+        respServer = new RespServer();
+        jedisPool = new JedisPool(new JedisPoolConfig(), respServer.getHost(), respServer.getPort(), Constants.TIME_OUT);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        jedisPool.close();
+        respServer.close();
+    }
+
+    /**
+     * @return the stream of the stand-in, recording the ranges of blocks fetched
+     */
+    private InputOutputStream newInputOutputStream() {
+        InputOutputStream target = new JedisPoolStream(jedisPool);
+        return (InputOutputStream) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{InputOutputStream
+                .class}, (proxy, method, args) -> {
+            if ("loadBlocks".equals(method.getName())) {
+                fetches.add(new int[]{(Integer) args[2], (Integer) args[3]});
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    private static List<byte[]> newBlocks(int count) {
+        List<byte[]> blocks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] block = new byte[BLOCK_SIZE];
+            Arrays.fill(block, (byte) i);
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    private SequentialRedisFile newFile(InputOutputStream inputOutputStream, List<byte[]> blocks) {
+        FileMetadata metadata = new FileMetadata((long) blocks.size() * BLOCK_SIZE, FileMetadata.newContentId("_0.cfs"), false,
+                1, BlockCodecs.forName("none").getId(), BLOCK_SIZE);
+        inputOutputStream.saveFile(Constants.DIRECTORY_METADATA, Constants.FILE_METADATA, "_0.cfs", new ArrayList<>(blocks),
+                metadata, null);
+        fetches.clear();
+        return new SequentialRedisFile("_0.cfs", metadata, inputOutputStream, READ_AHEAD_BLOCKS * BLOCK_SIZE, IOContext
+                .READONCE);
+    }
+
+    private void assertFetches(int... ranges) {
+        assertEquals(ranges.length / 2, fetches.size());
+        for (int i = 0; i < fetches.size(); i++) {
+            assertArrayEquals("fetch " + i, new int[]{ranges[2 * i], ranges[2 * i + 1]}, fetches.get(i));
+        }
+    }
+
+    @Test
+    public void testReadAhead() {
+        List<byte[]> blocks = newBlocks(10);
+        SequentialRedisFile redisFile = newFile(newInputOutputStream(), blocks);
+        for (int i = 0; i < blocks.size(); i++) {
+            assertArrayEquals("block " + i, blocks.get(i), redisFile.getBuffer(i));
+        }
+        //one round trip per READ_AHEAD_BLOCKS, the last one stops at the end of the file
+        assertFetches(0, 4, 4, 8, 8, 10);
+    }
+
+    @Test
+    public void testWindows() {
+        List<byte[]> blocks = newBlocks(40);
+        SequentialRedisFile redisFile = newFile(newInputOutputStream(), blocks);
+        //two slices of a compound file read side by side keep their windows
+        for (int i = 0; i < 8; i++) {
+            assertArrayEquals(blocks.get(i), redisFile.getBuffer(i));
+            assertArrayEquals(blocks.get(20 + i), redisFile.getBuffer(20 + i));
+        }
+        assertFetches(0, 4, 20, 24, 4, 8, 24, 28);
+        assertEquals(4 * READ_AHEAD_BLOCKS * BLOCK_SIZE, redisFile.ramBytesUsed());
+        //a fifth window drops the one used least recently, the first one
+        redisFile.getBuffer(30);
+        redisFile.getBuffer(0);
+        assertFetches(0, 4, 20, 24, 4, 8, 24, 28, 30, 34, 0, 4);
+        assertEquals(4 * READ_AHEAD_BLOCKS * BLOCK_SIZE, redisFile.ramBytesUsed());
+    }
+
+    @Test
+    public void testDirectory() throws IOException {
+        byte[] content = new byte[Constants.BUFFER_SIZE * 2 + 1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        IOContext merge = new IOContext(new MergeInfo(1, content.length, false, 1));
+        try (RedisDirectory redisDirectory = new RedisDirectory(newInputOutputStream(), new SingleInstanceLockFactory())) {
+            //no BUFFER_SIZE_POLICY for it, so blocks of BUFFER_SIZE
+            try (IndexOutput output = redisDirectory.createOutput("_0.doc", IOContext.DEFAULT)) {
+                output.writeBytes(content, content.length);
+            }
+            for (IOContext context : new IOContext[]{IOContext.READONCE, merge}) {
+                fetches.clear();
+                try (IndexInput input = redisDirectory.openInput("_0.doc", context)) {
+                    byte[] read = new byte[content.length];
+                    input.readBytes(read, 0, read.length);
+                    assertArrayEquals(context.toString(), content, read);
+                }
+                //the whole file in one round trip of READ_AHEAD_SIZE, the block cache left to the searches
+                assertFetches(0, 3);
+                assertEquals(context.toString(), 0, redisDirectory.getBlockCache().ramBytesUsed());
+            }
+            try (IndexInput input = redisDirectory.openInput("_0.doc", IOContext.DEFAULT)) {
+                assertEquals(content.length, input.length());
+            }
+            assertTrue(redisDirectory.getBlockCache().ramBytesUsed() > 0);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package cn.codepub.redis.directory.io;
+
+import cn.codepub.redis.directory.FileMetadata;
+import cn.codepub.redis.directory.codec.BlockCodecs;
+import cn.codepub.redis.directory.server.RespServer;
+import cn.codepub.redis.directory.util.Constants;
+import org.apache.lucene.store.FlushInfo;
+import org.apache.lucene.store.IOContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/16 10:20.
+ * </p>
+ * <p>
+ * Description: The write behind stage against the redis stand-in, the bound of its bytes in flight and its failures
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class TestAsyncBlockWriter {
+    private static final int BLOCK_SIZE = 1024;
+    private RespServer respServer;
+    private JedisPool jedisPool;
+    private InputOutputStream inputOutputStream;
+
+    @Before
+    public void setUp() throws IOException {
+        respServer = new RespServer();
+        jedisPool = new JedisPool(new JedisPoolConfig(), respServer.getHost(), respServer.getPort(), Constants.TIME_OUT);
+        inputOutputStream = new JedisPoolStream(jedisPool);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        jedisPool.close();
+        respServer.close();
+    }
+
+    private static FileMetadata newMetadata(int blocks) {
+        return new FileMetadata((long) blocks * BLOCK_SIZE, FileMetadata.newContentId("_0.doc"), false, 1, BlockCodecs
+                .forName("none").getId(), BLOCK_SIZE);
+    }
+
+    private static byte[] newBlock(int seed, int length) {
+        byte[] block = new byte[length];
+        Arrays.fill(block, (byte) seed);
+        return block;
+    }
+
+    @Test(timeout = 30000)
+    public void testBytesInFlight() throws Exception {
+        FileMetadata metadata = newMetadata(3);
+        //the first block is still being saved when the third is handed over
+        respServer.setCommandMicros("HSET", 300000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (AsyncBlockWriter blockWriter = new AsyncBlockWriter(inputOutputStream, 1, 2 * BLOCK_SIZE)) {
+            blockWriter.saveBlock(Constants.FILE_METADATA, metadata, 0, newBlock(0, BLOCK_SIZE));
+            blockWriter.saveBlock(Constants.FILE_METADATA, metadata, 1, newBlock(1, BLOCK_SIZE));
+            assertEquals(2 * BLOCK_SIZE, blockWriter.getBytesInFlight());
+            Future<Future<?>> handedOver = executor.submit(() -> blockWriter.saveBlock(Constants.FILE_METADATA, metadata, 2,
+                    newBlock(2, BLOCK_SIZE)));
+            try {
+                handedOver.get(100, TimeUnit.MILLISECONDS);
+                fail("The bytes in flight went over the bound");
+            } catch (TimeoutException expected) {
+            }
+            //let in once the first block is saved
+            handedOver.get().get();
+            blockWriter.awaitAll();
+            assertEquals(0, blockWriter.getBytesInFlight());
+        } finally {
+            executor.shutdown();
+        }
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(newBlock(i, BLOCK_SIZE), inputOutputStream.loadBlock(Constants.FILE_METADATA, metadata, i));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testBlockLargerThanBound() throws Exception {
+        FileMetadata metadata = newMetadata(4);
+        try (AsyncBlockWriter blockWriter = new AsyncBlockWriter(inputOutputStream, 2, BLOCK_SIZE)) {
+            //takes the whole bound instead of waiting for room which never comes
+            blockWriter.saveBlock(Constants.FILE_METADATA, metadata, 0, newBlock(0, 4 * BLOCK_SIZE)).get();
+            assertEquals(0, blockWriter.getBytesInFlight());
+        }
+        assertArrayEquals(newBlock(0, 4 * BLOCK_SIZE), inputOutputStream.loadBlock(Constants.FILE_METADATA, metadata, 0));
+    }
+
+    @Test(timeout = 30000)
+    public void testFailure() throws Exception {
+        FileMetadata metadata = newMetadata(2);
+        try (AsyncBlockWriter blockWriter = new AsyncBlockWriter(inputOutputStream, 1, BLOCK_SIZE)) {
+            respServer.injectError("HSET", "ERR injected", 1);
+            Future<?> failed = blockWriter.saveBlock(Constants.FILE_METADATA, metadata, 0, newBlock(0, BLOCK_SIZE));
+            try {
+                failed.get();
+                fail("The failed block was not reported");
+            } catch (ExecutionException expected) {
+            }
+            //the room of the failed block is given back
+            blockWriter.saveBlock(Constants.FILE_METADATA, metadata, 1, newBlock(1, BLOCK_SIZE)).get();
+            blockWriter.awaitAll();
+            assertEquals(0, blockWriter.getBytesInFlight());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testOutput() throws Exception {
+        byte[] content = new byte[Constants.BUFFER_SIZE * 3 + 1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        respServer.setCommandMicros("HSET", 20000);
+        IOContext largeFlush = new IOContext(new FlushInfo(1000, Constants.STREAM_OUTPUT_MIN_SIZE));
+        try (AsyncBlockWriter blockWriter = new AsyncBlockWriter(inputOutputStream, 2, Constants.BUFFER_SIZE)) {
+            RedisOutputStream output = new RedisOutputStream("_0.doc", inputOutputStream, blockWriter, largeFlush, null, null);
+            output.writeBytes(content, content.length);
+            assertTrue(blockWriter.getBytesInFlight() > 0);
+            //close waits for the blocks of the file before it publishes it
+            output.close();
+        }
+        FileMetadata metadata = inputOutputStream.getFileMetadata(Constants.DIRECTORY_METADATA, "_0.doc");
+        assertEquals(content.length, metadata.getLength());
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals("block " + i, Arrays.copyOfRange(content, i * Constants.BUFFER_SIZE, Math.min(content.length,
+                    (i + 1) * Constants.BUFFER_SIZE)), inputOutputStream.loadBlock(Constants.FILE_METADATA, metadata, i));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package cn.codepub.redis.directory.io;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/11 10:30.
+ * </p>
+ * <p>
+ * Description: The tickets of the group commit, which callers a barrier covers and who runs the next one
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class TestGroupCommit {
+    private static final int CALLERS = 8;
+    private final AtomicInteger runs = new AtomicInteger();
+    private final CountDownLatch firstStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseFirst = new CountDownLatch(1);
+
+    /**
+     * @param failFirst true if the first barrier fails
+     * @return a group commit whose first barrier waits for releaseFirst
+     */
+    private GroupCommit newGroupCommit(boolean failFirst) {
+        return new GroupCommit(() -> {
+            if (runs.incrementAndGet() == 1) {
+                firstStarted.countDown();
+                Uninterruptibles.awaitUninterruptibly(releaseFirst);
+                if (failFirst) {
+                    throw new IOException("injected");
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testSingleCaller() throws IOException {
+        GroupCommit groupCommit = newGroupCommit(false);
+        releaseFirst.countDown();
+        groupCommit.await();
+        groupCommit.await();
+        //nothing runs concurrently, every call gets a barrier of its own
+        assertEquals(2, runs.get());
+    }
+
+    @Test(timeout = 30000)
+    public void testCallersShareBarrier() throws Exception {
+        assertCallersShareBarrier(false);
+    }
+
+    @Test(timeout = 30000)
+    public void testFailedBarrier() throws Exception {
+        assertCallersShareBarrier(true);
+    }
+
+    private void assertCallersShareBarrier(boolean failFirst) throws Exception {
+        GroupCommit groupCommit = newGroupCommit(failFirst);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<?> first = executor.submit(() -> {
+                groupCommit.await();
+                return null;
+            });
+            firstStarted.await();
+            //arrived while the first barrier runs, so it does not cover them
+            List<Thread> threads = new ArrayList<>();
+            List<Future<?>> callers = new ArrayList<>();
+            for (int i = 0; i < CALLERS; i++) {
+                callers.add(executor.submit(() -> {
+                    synchronized (threads) {
+                        threads.add(Thread.currentThread());
+                    }
+                    groupCommit.await();
+                    return null;
+                }));
+            }
+            awaitWaiting(threads);
+            releaseFirst.countDown();
+            try {
+                first.get();
+                assertFalse("The first barrier failed but its caller returned", failFirst);
+            } catch (ExecutionException e) {
+                assertTrue(failFirst && e.getCause() instanceof IOException);
+            }
+            //a failed barrier covers nobody, one of the callers waiting runs the next barrier for all of them
+            for (Future<?> caller : callers) {
+                caller.get();
+            }
+            assertEquals(2, runs.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void awaitWaiting(List<Thread> threads) throws InterruptedException {
+        while (true) {
+            synchronized (threads) {
+                if (threads.size() == CALLERS && threads.stream().allMatch(thread -> thread.getState() == Thread.State.WAITING)) {
+                    return;
+                }
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testInterrupted() throws Exception {
+        GroupCommit groupCommit = newGroupCommit(false);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> first = executor.submit(() -> {
+                groupCommit.await();
+                return null;
+            });
+            firstStarted.await();
+            Thread.currentThread().interrupt();
+            try {
+                groupCommit.await();
+                fail("An interrupted caller kept waiting");
+            } catch (IOException expected) {
+                assertTrue(Thread.interrupted());
+            }
+            releaseFirst.countDown();
+            first.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package cn.codepub.redis.directory.io;
+
+import cn.codepub.redis.directory.FileMetadata;
+import cn.codepub.redis.directory.Operations;
+import cn.codepub.redis.directory.codec.BlockCodecs;
+import cn.codepub.redis.directory.server.RespServer;
+import cn.codepub.redis.directory.util.Constants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/03 11:20.
+ * </p>
+ * <p>
+ * Description: The block commands pipelined per node of a cluster of redis stand-ins, and the commands redirected by MOVED
+ * and ASK
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class TestJedisClusterStream {
+    private static final int BLOCK_SIZE = 1024;
+    private static final int BLOCKS = 64;
+    private static final int NODES = 3;
+    private List<RespServer> nodes;
+    private JedisClusterStream inputOutputStream;
+
+    @Before
+    public void setUp() throws IOException {
+        nodes = RespServer.startCluster(NODES);
+        Set<HostAndPort> seeds = new HashSet<>();
+        for (RespServer node : nodes) {
+            seeds.add(new HostAndPort(node.getHost(), node.getPort()));
+        }
+        inputOutputStream = new JedisClusterStream(new JedisCluster(seeds, Constants.TIME_OUT, 5, new JedisPoolConfig()));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        inputOutputStream.close();
+        for (RespServer node : nodes) {
+            node.close();
+        }
+    }
+
+    private static List<byte[]> newBlocks() {
+        List<byte[]> blocks = new ArrayList<>();
+        for (int i = 0; i < BLOCKS; i++) {
+            byte[] block = new byte[BLOCK_SIZE];
+            for (int j = 0; j < BLOCK_SIZE; j++) {
+                block[j] = (byte) (i * 31 + j);
+            }
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    private FileMetadata saveFile(List<byte[]> blocks) {
+        //the blocks spread over hashes of their own, so over the slots of every node
+        FileMetadata metadata = new FileMetadata(BLOCKS * BLOCK_SIZE, FileMetadata.newContentId("_0.doc"), true, 16,
+                BlockCodecs.forName("none").getId(), BLOCK_SIZE);
+        inputOutputStream.saveFile(Constants.DIRECTORY_METADATA, Constants.FILE_METADATA, "_0.doc", new ArrayList<>(blocks),
+                metadata, null);
+        return metadata;
+    }
+
+    private void assertLoaded(String message, List<byte[]> blocks, FileMetadata metadata) {
+        List<byte[]> loaded = inputOutputStream.loadFileOnce(Constants.FILE_METADATA, metadata, Operations.FILE_DATA);
+        assertEquals(message, BLOCKS, loaded.size());
+        for (int i = 0; i < BLOCKS; i++) {
+            assertArrayEquals(message + " block " + i, blocks.get(i), loaded.get(i));
+        }
+    }
+
+    @Test
+    public void testLoadInOrder() {
+        List<byte[]> blocks = newBlocks();
+        FileMetadata metadata = saveFile(blocks);
+        for (RespServer node : nodes) {
+            assertTrue("blocks on node " + node.getPort(), node.getKeyspace().size() > 0);
+        }
+        assertLoaded("file", blocks, metadata);
+        List<byte[]> range = inputOutputStream.loadBlocks(Constants.FILE_METADATA, metadata, 10, 20, Operations.FILE_DATA);
+        assertEquals(10, range.size());
+        for (int i = 0; i < range.size(); i++) {
+            assertArrayEquals("block " + (10 + i), blocks.get(10 + i), range.get(i));
+        }
+    }
+
+    @Test
+    public void testMoved() {
+        List<byte[]> blocks = newBlocks();
+        FileMetadata metadata = saveFile(blocks);
+        //the slots of the first node go to the second one, the pipeline sent to the first node gets MOVED for each block
+        RespServer first = nodes.get(0);
+        first.moveSlots(nodes.get(1), 0, 16384 / NODES - 1);
+        assertLoaded("moved", blocks, metadata);
+        assertEquals(0, first.getKeyspace().size());
+        //and the slot owners learned from it
+        assertLoaded("renewed", blocks, metadata);
+    }
+
+    @Test
+    public void testAsk() {
+        List<byte[]> blocks = newBlocks();
+        FileMetadata metadata = saveFile(blocks);
+        //a slot being migrated answers the keys moved already by ASK, they are sent again through the cluster client
+        RespServer first = nodes.get(0);
+        RespServer second = nodes.get(1);
+        first.injectError("HGET", "ASK 0 " + second.getHost() + ":" + second.getPort(), 2);
+        assertLoaded("asked", blocks, metadata);
+    }
+}
@@ -0,0 +1,124 @@
+package cn.codepub.redis.directory.io;
+
+import cn.codepub.redis.directory.FileMetadata;
+import cn.codepub.redis.directory.Operations;
+import cn.codepub.redis.directory.codec.BlockCodecs;
+import cn.codepub.redis.directory.server.RespServer;
+import cn.codepub.redis.directory.util.Constants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/05 15:10.
+ * </p>
+ * <p>
+ * Description: The fetch of a file through several pooled connections against the redis stand-in
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class TestJedisPoolStream {
+    private static final int BLOCK_SIZE = 1024;
+    private static final int FETCH_THREADS = 4;
+    private RespServer respServer;
+    private JedisPool jedisPool;
+
+    @Before
+    public void setUp() throws IOException {
+        respServer = new RespServer();
+        jedisPool = new JedisPool(new JedisPoolConfig(), respServer.getHost(), respServer.getPort(), Constants.TIME_OUT);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        jedisPool.close();
+        respServer.close();
+    }
+
+    private static List<byte[]> newBlocks(int count) {
+        List<byte[]> blocks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] block = new byte[BLOCK_SIZE];
+            for (int j = 0; j < BLOCK_SIZE; j++) {
+                block[j] = (byte) (i * 31 + j);
+            }
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    private static FileMetadata saveFile(InputOutputStream inputOutputStream, String fileName, List<byte[]> blocks) {
+        FileMetadata metadata = new FileMetadata((long) blocks.size() * BLOCK_SIZE, FileMetadata.newContentId(fileName), false,
+                1, BlockCodecs.forName("none").getId(), BLOCK_SIZE);
+        inputOutputStream.saveFile(Constants.DIRECTORY_METADATA, Constants.FILE_METADATA, fileName, new ArrayList<>(blocks),
+                metadata, null);
+        return metadata;
+    }
+
+    private static void assertLoaded(InputOutputStream inputOutputStream, List<byte[]> blocks, FileMetadata metadata) {
+        List<byte[]> loaded = inputOutputStream.loadFileOnce(Constants.FILE_METADATA, metadata, Operations.FILE_DATA);
+        assertEquals(blocks.size(), loaded.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            assertArrayEquals(blocks.size() + " blocks, block " + i, blocks.get(i), loaded.get(i));
+        }
+    }
+
+    @Test
+    public void testRanges() {
+        //every file is fetched in ranges, fewer blocks than ranges and ranges of unequal size included
+        InputOutputStream inputOutputStream = new JedisPoolStream(jedisPool, FETCH_THREADS, 0);
+        for (int count : new int[]{1, 2, 3, 4, 5, 7, 9, 64}) {
+            List<byte[]> blocks = newBlocks(count);
+            assertLoaded(inputOutputStream, blocks, saveFile(inputOutputStream, "_" + count + ".doc", blocks));
+        }
+    }
+
+    @Test
+    public void testConnections() {
+        InputOutputStream inputOutputStream = new JedisPoolStream(jedisPool, FETCH_THREADS, 0);
+        List<byte[]> blocks = newBlocks(64);
+        FileMetadata metadata = saveFile(inputOutputStream, "_0.doc", blocks);
+        //the ranges overlap in time only if each takes a while
+        respServer.setCommandMicros("HGET", 1000);
+        assertLoaded(inputOutputStream, blocks, metadata);
+        assertTrue(respServer.getConnectionCount() >= 2);
+        //a file shorter than the minimum size goes through one connection
+        jedisPool.close();
+        jedisPool = new JedisPool(new JedisPoolConfig(), respServer.getHost(), respServer.getPort(), Constants.TIME_OUT);
+        inputOutputStream = new JedisPoolStream(jedisPool, FETCH_THREADS, metadata.getLength() + 1);
+        assertLoaded(inputOutputStream, blocks, metadata);
+        assertEquals(1, jedisPool.getNumIdle() + jedisPool.getNumActive());
+    }
+
+    @Test
+    public void testRangeFailure() {
+        InputOutputStream inputOutputStream = new JedisPoolStream(jedisPool, FETCH_THREADS, 0);
+        List<byte[]> blocks = newBlocks(64);
+        FileMetadata metadata = saveFile(inputOutputStream, "_0.doc", blocks);
+        respServer.injectError("HGET", "ERR injected", 1);
+        try {
+            inputOutputStream.loadFileOnce(Constants.FILE_METADATA, metadata, Operations.FILE_DATA);
+            fail("The failure of a range was lost");
+        } catch (JedisException expected) {
+        }
+        assertLoaded(inputOutputStream, blocks, metadata);
+    }
+}
@@ -0,0 +1,131 @@
+package cn.codepub.redis.directory.io;
+
+import cn.codepub.redis.directory.FileMetadata;
+import cn.codepub.redis.directory.Operations;
+import cn.codepub.redis.directory.server.RespServer;
+import cn.codepub.redis.directory.util.Constants;
+import org.apache.lucene.store.FlushInfo;
+import org.apache.lucene.store.IOContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/03/22 15:40.
+ * </p>
+ * <p>
+ * Description: The outputs which send every full block at once, against the redis stand-in
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class TestRedisOutputStream {
+    //no BUFFER_SIZE_POLICY for it, so blocks of BUFFER_SIZE
+    private static final String FILE_NAME = "_0.doc";
+    //a flush as large as STREAM_OUTPUT_MIN_SIZE streams its files
+    private static final IOContext LARGE_FLUSH = new IOContext(new FlushInfo(1000, Constants.STREAM_OUTPUT_MIN_SIZE));
+    private RespServer respServer;
+    private JedisPool jedisPool;
+    private InputOutputStream inputOutputStream;
+
+    @Before
+    public void setUp() throws IOException {
+        respServer = new RespServer();
+        jedisPool = new JedisPool(new JedisPoolConfig(), respServer.getHost(), respServer.getPort(), Constants.TIME_OUT);
+        inputOutputStream = new JedisPoolStream(jedisPool);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        jedisPool.close();
+        respServer.close();
+    }
+
+    private static byte[] newBlock(int seed) {
+        byte[] block = new byte[Constants.BUFFER_SIZE];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) (seed * 31 + i % 251);
+        }
+        return block;
+    }
+
+    //the blocks of the files whose blocks share the data hash, KEY_PER_FILE is off
+    private long storedBlocks() {
+        return (Long) respServer.getKeyspace().execute(Arrays.asList("HLEN".getBytes(), Constants.FILE_METADATA.getBytes()));
+    }
+
+    @Test
+    public void testStreaming() throws IOException {
+        byte[][] blocks = {newBlock(0), newBlock(1), Arrays.copyOf(newBlock(2), 1000)};
+        try (RedisOutputStream output = new RedisOutputStream(FILE_NAME, inputOutputStream, null, LARGE_FLUSH, null, null)) {
+            for (byte[] block : blocks) {
+                output.writeBytes(block, block.length);
+            }
+            //the full blocks are in redis already, the file is not published before close
+            assertEquals(2, storedBlocks());
+            assertNull(inputOutputStream.getFileMetadata(Constants.DIRECTORY_METADATA, FILE_NAME));
+        }
+        FileMetadata metadata = inputOutputStream.getFileMetadata(Constants.DIRECTORY_METADATA, FILE_NAME);
+        assertEquals(Constants.BUFFER_SIZE * 2 + 1000, metadata.getLength());
+        List<byte[]> loaded = inputOutputStream.loadFileOnce(Constants.FILE_METADATA, metadata, Operations.FILE_DATA);
+        assertEquals(blocks.length, loaded.size());
+        for (int i = 0; i < blocks.length; i++) {
+            assertArrayEquals("block " + i, blocks[i], loaded.get(i));
+        }
+    }
+
+    @Test
+    public void testDiscardOnFailure() throws IOException {
+        RedisOutputStream output = new RedisOutputStream(FILE_NAME, inputOutputStream, null, LARGE_FLUSH, null, null);
+        output.writeBytes(newBlock(0), Constants.BUFFER_SIZE);
+        output.writeBytes(newBlock(1), Constants.BUFFER_SIZE);
+        output.writeByte((byte) 2);
+        assertEquals(2, storedBlocks());
+        respServer.injectError("HSET", "ERR injected", 1);
+        try {
+            output.writeBytes(newBlock(2), Constants.BUFFER_SIZE);
+            fail("The failed block was not reported");
+        } catch (IOException | RuntimeException expected) {
+        }
+        try {
+            output.close();
+            fail("A file with a failed block was published");
+        } catch (IOException expected) {
+        }
+        //never published, and the blocks saved before the failure are gone
+        assertNull(inputOutputStream.getFileMetadata(Constants.DIRECTORY_METADATA, FILE_NAME));
+        assertEquals(0, storedBlocks());
+    }
+
+    @Test
+    public void testDiscardOnFailedPublish() throws IOException {
+        RedisOutputStream output = new RedisOutputStream(FILE_NAME, inputOutputStream, null, LARGE_FLUSH, null, null);
+        output.writeBytes(newBlock(0), Constants.BUFFER_SIZE);
+        output.writeBytes(newBlock(1), 1000);
+        //the metadata is saved by a script
+        respServer.injectError("EVAL", "ERR injected", 1);
+        try {
+            output.close();
+            fail("The failed publish was not reported");
+        } catch (IOException | RuntimeException expected) {
+        }
+        assertNull(inputOutputStream.getFileMetadata(Constants.DIRECTORY_METADATA, FILE_NAME));
+        assertEquals(0, storedBlocks());
+    }
+}
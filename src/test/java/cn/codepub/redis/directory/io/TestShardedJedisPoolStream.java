@@ -0,0 +1,131 @@
+package cn.codepub.redis.directory.io;
+
+import cn.codepub.redis.directory.FileMetadata;
+import cn.codepub.redis.directory.Operations;
+import cn.codepub.redis.directory.codec.BlockCodecs;
+import cn.codepub.redis.directory.server.RespServer;
+import cn.codepub.redis.directory.util.Constants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.ShardedJedisPool;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/24 14:30.
+ * </p>
+ * <p>
+ * Description: The fan-out of the block commands over two shards of the redis stand-in
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class TestShardedJedisPoolStream {
+    private static final int BLOCK_SIZE = 1024;
+    private static final int BLOCKS = 64;
+    private List<RespServer> shards = new ArrayList<>();
+    private ShardedJedisPool shardedJedisPool;
+    private ShardedJedisPoolStream inputOutputStream;
+
+    @Before
+    public void setUp() throws IOException {
+        List<JedisShardInfo> shardInfos = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            RespServer shard = new RespServer();
+            shards.add(shard);
+            shardInfos.add(new JedisShardInfo(shard.getHost(), shard.getPort(), Constants.TIME_OUT));
+        }
+        //a single ShardedJedis, so a connection still in use by a shard thread is the one the next call gets
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(1);
+        shardedJedisPool = new ShardedJedisPool(config, shardInfos);
+        inputOutputStream = new ShardedJedisPoolStream(shardedJedisPool);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        inputOutputStream.close();
+        for (RespServer shard : shards) {
+            shard.close();
+        }
+    }
+
+    private static List<byte[]> newBlocks() {
+        List<byte[]> blocks = new ArrayList<>();
+        for (int i = 0; i < BLOCKS; i++) {
+            byte[] block = new byte[BLOCK_SIZE];
+            for (int j = 0; j < BLOCK_SIZE; j++) {
+                block[j] = (byte) (i * 31 + j);
+            }
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    private FileMetadata saveFile(List<byte[]> blocks) {
+        //the blocks spread over hashes of their own, so over both shards
+        FileMetadata metadata = new FileMetadata(BLOCKS * BLOCK_SIZE, FileMetadata.newContentId("_0.cfs"), true, 16,
+                BlockCodecs.forName("none").getId(), BLOCK_SIZE);
+        inputOutputStream.saveFile(Constants.DIRECTORY_METADATA, Constants.FILE_METADATA, "_0.cfs", new ArrayList<>(blocks),
+                metadata, null);
+        return metadata;
+    }
+
+    @Test
+    public void testLoadInOrder() {
+        List<byte[]> blocks = newBlocks();
+        FileMetadata metadata = saveFile(blocks);
+        List<byte[]> loaded = inputOutputStream.loadFileOnce(Constants.FILE_METADATA, metadata, Operations.FILE_DATA);
+        assertEquals(BLOCKS, loaded.size());
+        for (int i = 0; i < BLOCKS; i++) {
+            assertArrayEquals("block " + i, blocks.get(i), loaded.get(i));
+        }
+        List<byte[]> range = inputOutputStream.loadBlocks(Constants.FILE_METADATA, metadata, 10, 20, Operations.FILE_DATA);
+        assertEquals(10, range.size());
+        for (int i = 0; i < range.size(); i++) {
+            assertArrayEquals("block " + (10 + i), blocks.get(10 + i), range.get(i));
+        }
+    }
+
+    //two threads reading one connection may hang instead of failing
+    @Test(timeout = 30000)
+    public void testShardFailure() {
+        List<byte[]> blocks = newBlocks();
+        FileMetadata metadata = saveFile(blocks);
+        //either shard fails while the other one is slow, so the failure comes first on the calling thread once and on a
+        //shard thread once
+        for (int round = 0; round < 4; round++) {
+            RespServer failing = shards.get(round % 2);
+            RespServer slow = shards.get(1 - round % 2);
+            slow.setCommandMicros("HGET", 1000);
+            failing.injectError("HGET", "ERR injected", 1);
+            try {
+                inputOutputStream.loadFileOnce(Constants.FILE_METADATA, metadata, Operations.FILE_DATA);
+                fail("The failure of a shard was lost");
+            } catch (JedisException expected) {
+            }
+            slow.reset();
+            //the connections went back to the pool only after every shard was done with them
+            List<byte[]> loaded = inputOutputStream.loadFileOnce(Constants.FILE_METADATA, metadata, Operations.FILE_DATA);
+            for (int i = 0; i < BLOCKS; i++) {
+                assertArrayEquals("round " + round + " block " + i, blocks.get(i), loaded.get(i));
+            }
+        }
+        assertEquals(0, shardedJedisPool.getNumActive());
+    }
+}
@@ -0,0 +1,456 @@
+package cn.codepub.redis.directory.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/17 10:05.
+ * </p>
+ * <p>
+ * Description: The keys of a {@link RespServer} and the commands the backends send, hashes, strings with a time to live,
+ * transactions and scripts. Commands run one at a time like in redis, so transactions and scripts are atomic. There is no lua:
+ * EVAL runs the scripts of this project, recognised by the redis commands they call, other scripts fail
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+public class RespKeyspace {
+    static final String OK = "OK";
+    private static final Pattern REDIS_CALL = Pattern.compile("redis\\.call\\('(\\w+)'");
+    //key -> byte[] for strings, Map<ByteBuffer, byte[]> for hashes
+    private final Map<ByteBuffer, Object> data = new HashMap<>();
+    //key -> System.currentTimeMillis() it expires at
+    private final Map<ByteBuffer, Long> expires = new HashMap<>();
+    //delivers the messages of scripts, the subscribers are connections of the server
+    private final Publisher publisher;
+
+    public RespKeyspace(Publisher publisher) {
+        this.publisher = publisher;
+    }
+
+    /**
+     * @param command the command name and its arguments
+     * @return the reply: Long, byte[], null, List, a String status or a {@link RespError}
+     */
+    public synchronized Object execute(List<byte[]> command) {
+        try {
+            return run(command);
+        } catch (RespError e) {
+            return e;
+        }
+    }
+
+    /**
+     * Run the commands of a transaction without any other command in between
+     */
+    public synchronized List<Object> executeAll(List<List<byte[]>> commands) {
+        List<Object> replies = new ArrayList<>();
+        for (List<byte[]> command : commands) {
+            replies.add(execute(command));
+        }
+        return replies;
+    }
+
+    public synchronized int size() {
+        expireAll();
+        return data.size();
+    }
+
+    public synchronized void clear() {
+        data.clear();
+        expires.clear();
+    }
+
+    /**
+     * Move the keys chosen by the filter with their time to live to another keyspace, like MIGRATE does for a slot
+     */
+    public void moveKeys(Predicate<byte[]> filter, RespKeyspace target) {
+        Map<ByteBuffer, Object> moved = new HashMap<>();
+        Map<ByteBuffer, Long> movedExpires = new HashMap<>();
+        synchronized (this) {
+            expireAll();
+            for (ByteBuffer key : new ArrayList<>(data.keySet())) {
+                if (filter.test(bytes(key))) {
+                    moved.put(key, data.remove(key));
+                    Long expire = expires.remove(key);
+                    if (expire != null) {
+                        movedExpires.put(key, expire);
+                    }
+                }
+            }
+        }
+        synchronized (target) {
+            target.data.putAll(moved);
+            target.expires.putAll(movedExpires);
+        }
+    }
+
+    private Object run(List<byte[]> command) {
+        String name = string(command.get(0)).toUpperCase();
+        switch (name) {
+            case "PING":
+                return command.size() > 1 ? command.get(1) : "PONG";
+            case "ECHO":
+                return arg(command, 1);
+            case "SELECT":
+            case "AUTH":
+            case "CLIENT":
+                return OK;
+            case "FLUSHALL":
+            case "FLUSHDB":
+                clear();
+                return OK;
+            case "DBSIZE":
+                return (long) size();
+            case "HSET":
+                return hset(command);
+            case "HGET":
+                return hash(arg(command, 1), false).get(ByteBuffer.wrap(arg(command, 2)));
+            case "HEXISTS":
+                return hash(arg(command, 1), false).containsKey(ByteBuffer.wrap(arg(command, 2))) ? 1L : 0L;
+            case "HDEL":
+                return hdel(arg(command, 1), command.subList(2, command.size()));
+            case "HLEN":
+                return (long) hash(arg(command, 1), false).size();
+            case "HKEYS":
+                return hash(arg(command, 1), false).keySet().stream().map(RespKeyspace::bytes).collect(Collectors.toList());
+            case "HVALS":
+                return new ArrayList<>(hash(arg(command, 1), false).values());
+            case "HGETALL":
+                return hgetall(arg(command, 1));
+            case "HMGET":
+                return hmget(command);
+            case "HINCRBY":
+                return hincrby(arg(command, 1), arg(command, 2), number(arg(command, 3)));
+            case "SET":
+                return set(command);
+            case "GET":
+                return stringValue(arg(command, 1));
+            case "INCR":
+                return incr(arg(command, 1));
+            case "DEL":
+            case "UNLINK":
+                return del(command.subList(1, command.size()));
+            case "EXISTS":
+                return command.subList(1, command.size()).stream().filter(key -> get(key) != null).count();
+            case "PEXPIRE":
+                return pexpire(arg(command, 1), number(arg(command, 2)));
+            case "PTTL":
+                return pttl(arg(command, 1));
+            case "WAIT":
+                //no replicas
+                return 0L;
+            case "WAITAOF":
+                //fsynced locally, no replicas
+                return Arrays.asList(1L, 0L);
+            case "EVAL":
+                return eval(command);
+            default:
+                throw new RespError("ERR unknown command '" + name + "'");
+        }
+    }
+
+    private Object hset(List<byte[]> command) {
+        if (command.size() < 4 || command.size() % 2 != 0) {
+            throw new RespError("ERR wrong number of arguments for 'hset' command");
+        }
+        Map<ByteBuffer, byte[]> hash = hash(arg(command, 1), true);
+        long added = 0;
+        for (int i = 2; i < command.size(); i += 2) {
+            if (hash.put(ByteBuffer.wrap(command.get(i)), command.get(i + 1)) == null) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    private long hdel(byte[] key, List<byte[]> fields) {
+        Map<ByteBuffer, byte[]> hash = hash(key, false);
+        long removed = 0;
+        for (byte[] field : fields) {
+            if (hash.remove(ByteBuffer.wrap(field)) != null) {
+                removed++;
+            }
+        }
+        if (hash.isEmpty()) {
+            remove(ByteBuffer.wrap(key));
+        }
+        return removed;
+    }
+
+    private List<byte[]> hgetall(byte[] key) {
+        List<byte[]> reply = new ArrayList<>();
+        hash(key, false).forEach((field, value) -> {
+            reply.add(bytes(field));
+            reply.add(value);
+        });
+        return reply;
+    }
+
+    private List<byte[]> hmget(List<byte[]> command) {
+        Map<ByteBuffer, byte[]> hash = hash(arg(command, 1), false);
+        List<byte[]> reply = new ArrayList<>();
+        for (byte[] field : command.subList(2, command.size())) {
+            reply.add(hash.get(ByteBuffer.wrap(field)));
+        }
+        return reply;
+    }
+
+    private long hincrby(byte[] key, byte[] field, long increment) {
+        Map<ByteBuffer, byte[]> hash = hash(key, true);
+        byte[] value = hash.get(ByteBuffer.wrap(field));
+        long result = (value == null ? 0 : number(value)) + increment;
+        hash.put(ByteBuffer.wrap(field), Long.toString(result).getBytes(StandardCharsets.UTF_8));
+        return result;
+    }
+
+    /**
+     * SET key value [NX|XX] [PX milliseconds|EX seconds]
+     */
+    private Object set(List<byte[]> command) {
+        byte[] key = arg(command, 1);
+        boolean nx = false;
+        boolean xx = false;
+        long ttl = -1;
+        for (int i = 3; i < command.size(); i++) {
+            String option = string(command.get(i)).toUpperCase();
+            if ("NX".equals(option)) {
+                nx = true;
+            } else if ("XX".equals(option)) {
+                xx = true;
+            } else if ("PX".equals(option)) {
+                ttl = number(arg(command, ++i));
+            } else if ("EX".equals(option)) {
+                ttl = number(arg(command, ++i)) * 1000;
+            } else {
+                throw new RespError("ERR syntax error");
+            }
+        }
+        return set(key, arg(command, 2), nx, xx, ttl);
+    }
+
+    /**
+     * @return OK, or null if NX or XX prevented it
+     */
+    private Object set(byte[] key, byte[] value, boolean nx, boolean xx, long ttl) {
+        boolean exists = get(key) != null;
+        if ((nx && exists) || (xx && !exists)) {
+            return null;
+        }
+        ByteBuffer wrapped = ByteBuffer.wrap(key);
+        data.put(wrapped, value);
+        if (ttl > 0) {
+            expires.put(wrapped, System.currentTimeMillis() + ttl);
+        } else {
+            expires.remove(wrapped);
+        }
+        return OK;
+    }
+
+    private long incr(byte[] key) {
+        byte[] value = stringValue(key);
+        long result = (value == null ? 0 : number(value)) + 1;
+        data.put(ByteBuffer.wrap(key), Long.toString(result).getBytes(StandardCharsets.UTF_8));
+        return result;
+    }
+
+    private long del(List<byte[]> keys) {
+        long removed = 0;
+        for (byte[] key : keys) {
+            if (get(key) != null) {
+                remove(ByteBuffer.wrap(key));
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private long pexpire(byte[] key, long ttl) {
+        if (get(key) == null) {
+            return 0;
+        }
+        expires.put(ByteBuffer.wrap(key), System.currentTimeMillis() + ttl);
+        return 1;
+    }
+
+    private long pttl(byte[] key) {
+        if (get(key) == null) {
+            return -2;
+        }
+        Long expire = expires.get(ByteBuffer.wrap(key));
+        return expire == null ? -1 : Math.max(0, expire - System.currentTimeMillis());
+    }
+
+    /**
+     * EVAL script numkeys key... arg..., the script is picked by the sequence of redis commands it calls
+     */
+    private Object eval(List<byte[]> command) {
+        String script = string(arg(command, 1));
+        int numKeys = (int) number(arg(command, 2));
+        List<byte[]> keys = command.subList(3, 3 + numKeys);
+        List<byte[]> args = command.subList(3 + numKeys, command.size());
+        List<String> calls = new ArrayList<>();
+        Matcher matcher = REDIS_CALL.matcher(script);
+        while (matcher.find()) {
+            calls.add(matcher.group(1).toUpperCase());
+        }
+        String joined = String.join(",", calls);
+        if (joined.startsWith("GET,H")) {
+            //the fence check of the scripts changing the metadata hash, the token is the last argument of a fenced writer
+            if (keys.size() > 1) {
+                long token = number(args.get(args.size() - 1));
+                byte[] counter = stringValue(keys.get(1));
+                if (counter != null && number(counter) > token) {
+                    throw new RespError("FENCED stale fencing token " + token);
+                }
+                args = args.subList(0, args.size() - 1);
+            }
+            joined = joined.substring("GET,".length());
+        }
+        switch (joined) {
+            case "UNLINK":
+                return del(keys);
+            case "PUBLISH":
+                return publisher.publish(keys.get(0), args.get(0));
+            case "HSET,HINCRBY":
+                //save metadata
+                hash(keys.get(0), true).put(ByteBuffer.wrap(args.get(0)), args.get(1));
+                return hincrby(keys.get(0), args.get(2), 1);
+            case "HDEL,HINCRBY": {
+                //delete metadata
+                long removed = hdel(keys.get(0), args.subList(0, 1));
+                if (removed > 0) {
+                    hincrby(keys.get(0), args.get(1), 1);
+                }
+                return removed;
+            }
+            case "HSET,HDEL,HINCRBY": {
+                //rename
+                hash(keys.get(0), true).put(ByteBuffer.wrap(args.get(1)), args.get(2));
+                long removed = hdel(keys.get(0), args.subList(0, 1));
+                hincrby(keys.get(0), args.get(3), 1);
+                return removed;
+            }
+            case "HGET,HGETALL": {
+                //manifest fetch
+                byte[] version = hash(keys.get(0), false).get(ByteBuffer.wrap(args.get(0)));
+                if (version != null && Arrays.equals(version, args.get(1))) {
+                    return version;
+                }
+                return hgetall(keys.get(0));
+            }
+            case "SET,INCR":
+                //lock acquire, the first key only picks the shard
+                if (set(keys.get(1), args.get(0), true, false, number(args.get(1))) == null) {
+                    return 0L;
+                }
+                return incr(keys.get(2));
+            case "GET,PEXPIRE":
+                //lock renew
+                return Arrays.equals(stringValue(keys.get(1)), args.get(0)) ? pexpire(keys.get(1), number(args.get(1))) : 0L;
+            case "GET,DEL":
+                //lock release
+                return Arrays.equals(stringValue(keys.get(1)), args.get(0)) ? del(keys.subList(1, 2)) : 0L;
+            default:
+                throw new RespError("ERR script calling " + calls + " is not supported by the stand-in");
+        }
+    }
+
+    private Object get(byte[] key) {
+        ByteBuffer wrapped = ByteBuffer.wrap(key);
+        Long expire = expires.get(wrapped);
+        if (expire != null && expire <= System.currentTimeMillis()) {
+            remove(wrapped);
+        }
+        return data.get(wrapped);
+    }
+
+    private void remove(ByteBuffer key) {
+        data.remove(key);
+        expires.remove(key);
+    }
+
+    private void expireAll() {
+        new ArrayList<>(expires.keySet()).forEach(key -> get(bytes(key)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<ByteBuffer, byte[]> hash(byte[] key, boolean create) {
+        Object value = get(key);
+        if (value == null) {
+            if (!create) {
+                return new LinkedHashMap<>();
+            }
+            value = new LinkedHashMap<ByteBuffer, byte[]>();
+            data.put(ByteBuffer.wrap(key), value);
+        }
+        if (!(value instanceof Map)) {
+            throw new RespError("WRONGTYPE Operation against a key holding the wrong kind of value");
+        }
+        return (Map<ByteBuffer, byte[]>) value;
+    }
+
+    private byte[] stringValue(byte[] key) {
+        Object value = get(key);
+        if (value != null && !(value instanceof byte[])) {
+            throw new RespError("WRONGTYPE Operation against a key holding the wrong kind of value");
+        }
+        return (byte[]) value;
+    }
+
+    private static byte[] arg(List<byte[]> command, int index) {
+        if (index >= command.size()) {
+            throw new RespError("ERR wrong number of arguments for '" + string(command.get(0)).toLowerCase() + "' command");
+        }
+        return command.get(index);
+    }
+
+    private static long number(byte[] value) {
+        try {
+            return Long.parseLong(string(value));
+        } catch (NumberFormatException e) {
+            throw new RespError("ERR value is not an integer or out of range");
+        }
+    }
+
+    static String string(byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset(), buffer.arrayOffset() + buffer.limit());
+    }
+
+    public interface Publisher {
+        /**
+         * @return the number of subscribers which got the message
+         */
+        long publish(byte[] channel, byte[] message);
+    }
+
+    /**
+     * An error reply, thrown by a command to abort it
+     */
+    public static final class RespError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public RespError(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,675 @@
+package cn.codepub.redis.directory.server;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.util.JedisClusterCRC16;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>
+ * Created by wangxu on 2017/04/17 10:40.
+ * </p>
+ * <p>
+ * Description: Redis protocol stand-in running in the test process, so the backends can be measured and tried without a
+ * redis. Every connection gets a thread of its own, the replies of pipelined commands are flushed together. Besides the
+ * commands of {@link RespKeyspace} it speaks MULTI/EXEC and pub/sub. A few servers form a cluster by {@link
+ * #startCluster(int)}: every one owns some of the slots, answers CLUSTER SLOTS for all of them and redirects commands on keys
+ * it does not own by MOVED; {@link #moveSlots(RespServer, int, int)} reshards while clients are connected.
+ * </p>
+ * <p>
+ * Production conditions are injected per server: a delay per round trip and per command, a bandwidth cap per connection and
+ * direction, errors or dropped connections on the next commands of a name
+ * </p>
+ *
+ * @author Wang Xu
+ * @version V1.0.0
+ * @since V1.0.0 <br></br>
+ * WebSite: http://codepub.cn <br></br>
+ * Licence: Apache v2 License
+ */
+@Log4j2
+public class RespServer implements Closeable {
+    private static final int HASH_SLOTS = 16384;
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    //the key of a command is its second word but for these, EVAL without keys has none
+    private static final Set<String> KEYLESS = new HashSet<>(Arrays.asList("PING", "ECHO", "SELECT", "AUTH", "CLIENT",
+            "FLUSHALL", "FLUSHDB", "DBSIZE", "WAIT", "WAITAOF"));
+    private final ServerSocket serverSocket;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    //channel -> the connections subscribed to it
+    private final Map<ByteBuffer, Set<Connection>> subscribers = new ConcurrentHashMap<>();
+    @Getter
+    private final RespKeyspace keyspace = new RespKeyspace(this::publish);
+    //all nodes of the cluster, empty unless this server is a cluster node
+    private volatile List<RespServer> cluster = Collections.emptyList();
+    //the owner of every slot, shared by the nodes of the cluster
+    private RespServer[] slotOwners;
+    //commands on keys share it, a reshard takes it exclusively, so no command runs against keys being moved
+    private ReadWriteLock resharding = new ReentrantReadWriteLock();
+    //injected conditions
+    private volatile long roundTripMicros;
+    private final Map<String, Long> commandMicros = new ConcurrentHashMap<>();
+    private volatile long bytesPerSecond;
+    private final Map<String, Fault> faults = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * Listen on a free port of the loopback interface
+     */
+    public RespServer() throws IOException {
+        this(0);
+    }
+
+    public RespServer(int port) throws IOException {
+        this.serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "resp-server-" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @param nodes the number of master nodes, they split the slots evenly
+     * @return the nodes of the cluster
+     */
+    public static List<RespServer> startCluster(int nodes) throws IOException {
+        List<RespServer> servers = new ArrayList<>();
+        RespServer[] owners = new RespServer[HASH_SLOTS];
+        for (int i = 0; i < nodes; i++) {
+            RespServer server = new RespServer();
+            Arrays.fill(owners, HASH_SLOTS * i / nodes, HASH_SLOTS * (i + 1) / nodes, server);
+            servers.add(server);
+        }
+        List<RespServer> cluster = Collections.unmodifiableList(servers);
+        ReadWriteLock resharding = new ReentrantReadWriteLock();
+        for (RespServer server : servers) {
+            server.cluster = cluster;
+            server.slotOwners = owners;
+            server.resharding = resharding;
+        }
+        return cluster;
+    }
+
+    /**
+     * Hand the slots with their keys over to another node of the cluster, commands on them sent here get MOVED from now on
+     */
+    public void moveSlots(RespServer target, int firstSlot, int lastSlot) {
+        if (!cluster.contains(target)) {
+            throw new IllegalArgumentException("Not a node of the cluster: " + target.getPort());
+        }
+        resharding.writeLock().lock();
+        try {
+            keyspace.moveKeys(key -> {
+                int slot = JedisClusterCRC16.getSlot(key);
+                return slot >= firstSlot && slot <= lastSlot;
+            }, target.keyspace);
+            Arrays.fill(slotOwners, firstSlot, lastSlot + 1, target);
+        } finally {
+            resharding.writeLock().unlock();
+        }
+    }
+
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @param micros added once to every flush of replies, a pipeline pays it once like a network round trip
+     */
+    public void setRoundTripMicros(long micros) {
+        this.roundTripMicros = micros;
+    }
+
+    /**
+     * @param command the command name, or * for every command
+     * @param micros  added to every execution of the command, 0 removes it
+     */
+    public void setCommandMicros(String command, long micros) {
+        commandMicros.put(command.toUpperCase(), micros);
+    }
+
+    /**
+     * @param bytesPerSecond the cap of every connection in either direction, 0 for none
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @param command the command name, or * for every command
+     * @param error   the error reply, e.g. "LOADING Redis is loading the dataset in memory"
+     * @param times   how many of the next executions fail
+     */
+    public void injectError(String command, String error, int times) {
+        faults.put(command.toUpperCase(), new Fault(error, times));
+    }
+
+    /**
+     * @param command the command name, or * for every command
+     * @param times   how many of the next executions close the connection instead of replying
+     */
+    public void injectDisconnect(String command, int times) {
+        faults.put(command.toUpperCase(), new Fault(null, times));
+    }
+
+    /**
+     * Close every client connection, as if the server crashed and came back
+     */
+    public void disconnectAll() {
+        connections.forEach(Connection::close);
+    }
+
+    /**
+     * Remove the injected delays, bandwidth cap and faults
+     */
+    public void reset() {
+        roundTripMicros = 0;
+        commandMicros.clear();
+        bytesPerSecond = 0;
+        faults.clear();
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                Thread thread = new Thread(connection::serve, "resp-connection-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    log.error("Accept on port " + getPort() + " failed!", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deliver the message to the subscribers of all nodes, like the cluster bus does
+     */
+    private long publish(byte[] channel, byte[] message) {
+        long received = 0;
+        for (RespServer node : cluster.isEmpty() ? Collections.singletonList(this) : cluster) {
+            for (Connection subscriber : node.subscribers.getOrDefault(ByteBuffer.wrap(channel), Collections.emptySet())) {
+                if (subscriber.push(Arrays.asList("message".getBytes(StandardCharsets.UTF_8), channel, message))) {
+                    received++;
+                }
+            }
+        }
+        return received;
+    }
+
+    /**
+     * @return the MOVED error if the key of the command lives on another node, else null
+     */
+    private RespKeyspace.RespError redirect(String name, List<byte[]> command) {
+        if (cluster.isEmpty() || KEYLESS.contains(name) || command.size() < 2) {
+            return null;
+        }
+        byte[] key = command.get(1);
+        if ("EVAL".equals(name)) {
+            if (command.size() < 4 || "0".equals(RespKeyspace.string(command.get(2)))) {
+                return null;
+            }
+            key = command.get(3);
+        }
+        int slot = JedisClusterCRC16.getSlot(key);
+        RespServer owner = slotOwners[slot];
+        if (owner == this) {
+            return null;
+        }
+        return new RespKeyspace.RespError("MOVED " + slot + " " + owner.getHost() + ":" + owner.getPort());
+    }
+
+    private Object cluster(List<byte[]> command) {
+        String subcommand = command.size() > 1 ? RespKeyspace.string(command.get(1)).toUpperCase() : "";
+        if (cluster.isEmpty()) {
+            return new RespKeyspace.RespError("ERR This instance has cluster support disabled");
+        }
+        switch (subcommand) {
+            case "SLOTS":
+                List<Object> slots = new ArrayList<>();
+                resharding.readLock().lock();
+                try {
+                    int first = 0;
+                    for (int slot = 1; slot <= HASH_SLOTS; slot++) {
+                        if (slot == HASH_SLOTS || slotOwners[slot] != slotOwners[first]) {
+                            RespServer node = slotOwners[first];
+                            List<Object> master = Arrays.asList(node.getHost().getBytes(StandardCharsets.UTF_8), (long) node
+                                    .getPort(), node.getNodeId().getBytes(StandardCharsets.UTF_8));
+                            slots.add(Arrays.asList((long) first, (long) slot - 1, master));
+                            first = slot;
+                        }
+                    }
+                } finally {
+                    resharding.readLock().unlock();
+                }
+                return slots;
+            case "INFO":
+                return ("cluster_state:ok\r\ncluster_slots_assigned:" + HASH_SLOTS + "\r\ncluster_known_nodes:" + cluster.size()
+                        + "\r\n").getBytes(StandardCharsets.UTF_8);
+            case "MYID":
+                return getNodeId().getBytes(StandardCharsets.UTF_8);
+            default:
+                return new RespKeyspace.RespError("ERR unknown subcommand '" + subcommand + "'");
+        }
+    }
+
+    /**
+     * 40 hex digits like the ids of redis, made of the port
+     */
+    private String getNodeId() {
+        return String.format("%040x", getPort());
+    }
+
+    /**
+     * @return the injected fault the command runs into, null if none
+     */
+    private Fault takeFault(String name) {
+        for (String command : new String[]{name, "*"}) {
+            Fault fault = faults.get(command);
+            if (fault != null && fault.remaining.getAndDecrement() > 0) {
+                return fault;
+            }
+        }
+        return null;
+    }
+
+    private void delay(long micros) throws InterruptedIOException {
+        if (micros <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MICROSECONDS.sleep(micros);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static List<byte[]> readCommand(InputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            return null;
+        }
+        if (type != '*') {
+            throw new IOException("Expect an array of bulk strings, got " + (char) type);
+        }
+        int count = (int) readNumber(in);
+        List<byte[]> command = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.read() != '$') {
+                throw new IOException("Expect a bulk string");
+            }
+            byte[] value = new byte[(int) readNumber(in)];
+            int read = 0;
+            while (read < value.length) {
+                int n = in.read(value, read, value.length - read);
+                if (n == -1) {
+                    throw new EOFException();
+                }
+                read += n;
+            }
+            //the CRLF after the bulk string
+            if (in.read() == -1 || in.read() == -1) {
+                throw new EOFException();
+            }
+            command.add(value);
+        }
+        return command;
+    }
+
+    private static long readNumber(InputStream in) throws IOException {
+        long value = 0;
+        boolean negative = false;
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b == -1) {
+                throw new EOFException();
+            }
+            if (b == '-') {
+                negative = true;
+            } else {
+                value = value * 10 + (b - '0');
+            }
+        }
+        in.read();
+        return negative ? -value : value;
+    }
+
+    private static void writeReply(OutputStream out, Object reply) throws IOException {
+        if (reply == null) {
+            out.write("$-1".getBytes(StandardCharsets.US_ASCII));
+            out.write(CRLF);
+        } else if (reply instanceof Long) {
+            out.write((":" + reply).getBytes(StandardCharsets.US_ASCII));
+            out.write(CRLF);
+        } else if (reply instanceof byte[]) {
+            byte[] value = (byte[]) reply;
+            out.write(("$" + value.length).getBytes(StandardCharsets.US_ASCII));
+            out.write(CRLF);
+            out.write(value);
+            out.write(CRLF);
+        } else if (reply instanceof String) {
+            out.write(("+" + reply).getBytes(StandardCharsets.UTF_8));
+            out.write(CRLF);
+        } else if (reply instanceof RespKeyspace.RespError) {
+            out.write(("-" + ((RespKeyspace.RespError) reply).getMessage()).getBytes(StandardCharsets.UTF_8));
+            out.write(CRLF);
+        } else if (reply instanceof List) {
+            List<?> values = (List<?>) reply;
+            out.write(("*" + values.size()).getBytes(StandardCharsets.US_ASCII));
+            out.write(CRLF);
+            for (Object value : values) {
+                writeReply(out, value);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown reply " + reply.getClass());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        disconnectAll();
+    }
+
+    private static final class Fault {
+        //null closes the connection
+        private final String error;
+        private final AtomicInteger remaining;
+
+        private Fault(String error, int times) {
+            this.error = error;
+            this.remaining = new AtomicInteger(times);
+        }
+    }
+
+    private final class Connection {
+        private final Socket socket;
+        //guards the output, messages are pushed to subscribers by the threads of other connections
+        private final Object writeLock = new Object();
+        private OutputStream out;
+        //the commands queued by MULTI, null outside of a transaction
+        private List<List<byte[]>> transaction;
+        private final Set<ByteBuffer> channels = ConcurrentHashMap.newKeySet();
+
+        private Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        private void serve() {
+            try {
+                InputStream in = new BufferedInputStream(new ThrottledInputStream(socket.getInputStream()));
+                synchronized (writeLock) {
+                    out = new BufferedOutputStream(new ThrottledOutputStream(socket.getOutputStream()));
+                }
+                while (!closed) {
+                    List<byte[]> command = readCommand(in);
+                    if (command == null) {
+                        return;
+                    }
+                    String name = RespKeyspace.string(command.get(0)).toUpperCase();
+                    delay(commandMicros.getOrDefault(name, commandMicros.getOrDefault("*", 0L)));
+                    Fault fault = takeFault(name);
+                    if (fault != null && fault.error == null) {
+                        log.debug("Drop connection {} on {}", socket, name);
+                        return;
+                    }
+                    Object reply = fault != null ? new RespKeyspace.RespError(fault.error) : execute(name, command);
+                    if (reply == Connection.this) {
+                        //QUIT
+                        return;
+                    }
+                    //pipelined commands still in the buffer get their replies in the same flush
+                    boolean flush = in.available() == 0;
+                    if (flush) {
+                        delay(roundTripMicros);
+                    }
+                    synchronized (writeLock) {
+                        if (reply instanceof Replies) {
+                            for (Object one : (Replies) reply) {
+                                writeReply(out, one);
+                            }
+                        } else {
+                            writeReply(out, reply);
+                        }
+                        if (flush) {
+                            out.flush();
+                        }
+                    }
+                }
+            } catch (EOFException | SocketException e) {
+                log.debug("Connection {} closed", socket);
+            } catch (IOException e) {
+                log.error("Connection " + socket + " failed!", e);
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * @return the reply, {@link Replies} for several, or this connection to close it after OK
+         */
+        private Object execute(String name, List<byte[]> command) throws IOException {
+            if (!channels.isEmpty() && !Arrays.asList("SUBSCRIBE", "UNSUBSCRIBE", "PING", "QUIT").contains(name)) {
+                return new RespKeyspace.RespError("ERR only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING / QUIT allowed in this context");
+            }
+            switch (name) {
+                case "QUIT":
+                    synchronized (writeLock) {
+                        writeReply(out, RespKeyspace.OK);
+                        out.flush();
+                    }
+                    return this;
+                case "MULTI":
+                    transaction = new ArrayList<>();
+                    return RespKeyspace.OK;
+                case "EXEC": {
+                    List<List<byte[]>> queued = transaction;
+                    transaction = null;
+                    if (queued == null) {
+                        return new RespKeyspace.RespError("ERR EXEC without MULTI");
+                    }
+                    resharding.readLock().lock();
+                    try {
+                        return keyspace.executeAll(queued);
+                    } finally {
+                        resharding.readLock().unlock();
+                    }
+                }
+                case "DISCARD": {
+                    List<List<byte[]>> queued = transaction;
+                    transaction = null;
+                    return queued == null ? new RespKeyspace.RespError("ERR DISCARD without MULTI") : RespKeyspace.OK;
+                }
+                case "SUBSCRIBE":
+                    return subscribe(command.subList(1, command.size()));
+                case "UNSUBSCRIBE":
+                    return unsubscribe(command.size() > 1 ? command.subList(1, command.size()) : new ArrayList<>(channelBytes()));
+                case "PUBLISH":
+                    return publish(command.get(1), command.get(2));
+                case "CLUSTER":
+                    return cluster(command);
+                default:
+                    resharding.readLock().lock();
+                    try {
+                        RespKeyspace.RespError moved = redirect(name, command);
+                        if (moved != null) {
+                            return moved;
+                        }
+                        if (transaction != null) {
+                            transaction.add(command);
+                            return "QUEUED";
+                        }
+                        return keyspace.execute(command);
+                    } finally {
+                        resharding.readLock().unlock();
+                    }
+            }
+        }
+
+        private Replies subscribe(List<byte[]> toSubscribe) {
+            Replies replies = new Replies();
+            for (byte[] channel : toSubscribe) {
+                ByteBuffer wrapped = ByteBuffer.wrap(channel);
+                channels.add(wrapped);
+                subscribers.computeIfAbsent(wrapped, k -> ConcurrentHashMap.newKeySet()).add(this);
+                replies.add(Arrays.asList("subscribe".getBytes(StandardCharsets.UTF_8), channel, (long) channels.size()));
+            }
+            return replies;
+        }
+
+        private Replies unsubscribe(List<byte[]> toUnsubscribe) {
+            Replies replies = new Replies();
+            for (byte[] channel : toUnsubscribe) {
+                ByteBuffer wrapped = ByteBuffer.wrap(channel);
+                channels.remove(wrapped);
+                subscribers.getOrDefault(wrapped, Collections.emptySet()).remove(this);
+                replies.add(Arrays.asList("unsubscribe".getBytes(StandardCharsets.UTF_8), channel, (long) channels.size()));
+            }
+            return replies;
+        }
+
+        private List<byte[]> channelBytes() {
+            List<byte[]> names = new ArrayList<>();
+            channels.forEach(channel -> names.add(channel.array()));
+            return names;
+        }
+
+        /**
+         * @return false if the message could not be written, the connection is gone
+         */
+        private boolean push(List<byte[]> message) {
+            synchronized (writeLock) {
+                if (out == null) {
+                    return false;
+                }
+                try {
+                    writeReply(out, message);
+                    out.flush();
+                    return true;
+                } catch (IOException e) {
+                    close();
+                    return false;
+                }
+            }
+        }
+
+        private void close() {
+            connections.remove(this);
+            channels.forEach(channel -> subscribers.getOrDefault(channel, Collections.emptySet()).remove(this));
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Close connection {} failed", socket, e);
+            }
+        }
+    }
+
+    /**
+     * Several replies to one command, like SUBSCRIBE of several channels
+     */
+    private static final class Replies extends ArrayList<Object> {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Holds the bytes back to the bandwidth cap of the server, the cap may change at any time
+     */
+    private final class Pacer {
+        //System.nanoTime() the bytes transferred so far are due at
+        private long due = System.nanoTime();
+
+        private void pace(long bytes) throws InterruptedIOException {
+            long cap = bytesPerSecond;
+            if (cap <= 0 || bytes <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            due = Math.max(due, now) + TimeUnit.SECONDS.toNanos(bytes) / cap;
+            delay(TimeUnit.NANOSECONDS.toMicros(due - now));
+        }
+    }
+
+    private final class ThrottledInputStream extends FilterInputStream {
+        private final Pacer pacer = new Pacer();
+
+        private ThrottledInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            pacer.pace(b == -1 ? 0 : 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            pacer.pace(n);
+            return n;
+        }
+    }
+
+    private final class ThrottledOutputStream extends FilterOutputStream {
+        private final Pacer pacer = new Pacer();
+
+        private ThrottledOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            pacer.pace(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            pacer.pace(len);
+            out.write(b, off, len);
+        }
+    }
+}